@@ -0,0 +1,296 @@
+/*
+ * Copyright (C) 2010  David G Loone
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package au.id.loone.apps.tasklistbot.bot;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import au.id.loone.apps.tasklistbot.batch.Json;
+import au.id.loone.apps.tasklistbot.load.SyntheticBundle;
+
+import com.google.wave.api.Element;
+import com.google.wave.api.ElementType;
+import com.google.wave.api.Gadget;
+import com.google.wave.api.Line;
+
+/**
+ * Compares the cost of reading a bundle lazily ({@link LazyBundle}) against deserialising all of it,
+ * up to the point of having each blip's tracker tree.
+ *
+ * <p>The full read parses the whole bundle into objects and builds every element of every blip
+ *      (standing in for the robot API's deserialisation, which also builds the text, annotations and so on),
+ *      then builds the trees from the elements.
+ *      The lazy read scans the bundle and builds the trees from the lines and gadgets it kept.
+ *      For each bundle, the median time and the bytes allocated per read are reported
+ *      (allocation is only measured on JVMs that can count it per thread).</p>
+ *
+ * <p>Arguments are either <b>-dir</b> <i>dir</i>, for a directory of bundles recorded by
+ *      {@link BundleRecorderFilter}, or <i>shape</i>:<i>lines</i>:<i>blips</i> specs for synthetic bundles
+ *      (default PATHOLOGICAL:10000:1 FLAT:2000:10 DEEP:1000:1).</p>
+ *
+ * @author David G Loone
+ */
+public final class LazyBundleComparison
+{
+
+    /**
+     * The number of reads before measuring starts.
+     */
+    private static final int WARMUP = 20;
+
+    /**
+     * The number of reads measured.
+     */
+    private static final int RUNS = 50;
+
+    /**
+     */
+    private LazyBundleComparison()
+    {
+        super();
+    }
+
+    /**
+     */
+    public static void main(
+            final String[] args
+    )
+            throws IOException
+    {
+        final List<String> names = new ArrayList<String>();
+        final List<byte[]> bundles = new ArrayList<byte[]>();
+        if ((args.length == 2) && "-dir".equals(args[0])) {
+            final File[] files = new File(args[1]).listFiles();
+            if (files == null) {
+                throw new IOException("not a directory: " + args[1]);
+            }
+            Arrays.sort(files);
+            for (final File file : files) {
+                if (file.getName().endsWith(".json")) {
+                    names.add(file.getName());
+                    bundles.add(readFile(file));
+                }
+            }
+        }
+        else {
+            final String[] specs = (args.length > 0) ? args :
+                    new String[] {"PATHOLOGICAL:10000:1", "FLAT:2000:10", "DEEP:1000:1"};
+            for (final String spec : specs) {
+                final String[] parts = spec.split(":");
+                names.add(spec);
+                bundles.add(SyntheticBundle.gadgetStateChanged(SyntheticBlip.Shape.valueOf(parts[0]),
+                        Integer.parseInt(parts[1]), 0, Integer.parseInt(parts[2])).getBytes("UTF-8"));
+            }
+        }
+
+        for (int bundleIdx = 0; bundleIdx < bundles.size(); bundleIdx++) {
+            final byte[] bundle = bundles.get(bundleIdx);
+            final Result full = measure(bundle, false);
+            final Result lazy = measure(bundle, true);
+            System.out.println(names.get(bundleIdx) + " bytes=" + bundle.length + " trackers=" + lazy.numTrackers +
+                    " full: " + full + " lazy: " + lazy +
+                    String.format(" speedup=%.2f", (lazy.nanos == 0) ? 0.0 : ((double)full.nanos / lazy.nanos)));
+        }
+    }
+
+    /**
+     * Read a bundle over and over.
+     */
+    private static Result measure(
+            final byte[] bundle,
+            final boolean lazy
+    )
+    {
+        final Result result = new Result();
+        for (int run = 0; run < WARMUP; run++) {
+            result.numTrackers = lazy ? readLazy(bundle) : readFull(bundle);
+        }
+
+        final long[] nanos = new long[RUNS];
+        final long startBytes = allocatedBytes();
+        for (int run = 0; run < RUNS; run++) {
+            final long start = System.nanoTime();
+            result.numTrackers = lazy ? readLazy(bundle) : readFull(bundle);
+            nanos[run] = System.nanoTime() - start;
+        }
+        final long endBytes = allocatedBytes();
+        Arrays.sort(nanos);
+        result.nanos = nanos[RUNS / 2];
+        result.bytes = ((startBytes < 0) || (endBytes < 0)) ? -1 : ((endBytes - startBytes) / RUNS);
+        return result;
+    }
+
+    /**
+     * @return
+     *      The number of trackers in the bundle.
+     */
+    private static int readLazy(
+            final byte[] bundle
+    )
+    {
+        final LazyBundle parsed = LazyBundle.parse(bundle);
+        if (parsed == null) {
+            throw new IllegalArgumentException("bundle can't be scanned");
+        }
+        int result = 0;
+        for (final LazyBundle.LazyEvent event : parsed.getEvents()) {
+            final LazyBundle.LazyBlip blip = parsed.getBlip(event.getBlipId());
+            if (blip != null) {
+                final TrackerTree tree = new TrackerTree(blip.getNumElements());
+                blip.walk(tree);
+                result += tree.getRollup().getSize();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return
+     *      The number of trackers in the bundle.
+     */
+    @SuppressWarnings({"unchecked"})
+    private static int readFull(
+            final byte[] bundle
+    )
+    {
+        final Map<String, Object> parsed;
+        try {
+            parsed = (Map<String, Object>)Json.parse(new String(bundle, "UTF-8"));
+        }
+        catch (final IOException e) {
+            throw new IllegalStateException(e);
+        }
+
+        final Map<String, Object> blips = (Map<String, Object>)parsed.get("blips");
+        final Map<String, SortedMap<Integer, Element>> blipElements = new TreeMap<String, SortedMap<Integer, Element>>();
+        for (final Map.Entry<String, Object> blipEntry : blips.entrySet()) {
+            final Map<String, Object> elementsJson =
+                    (Map<String, Object>)((Map<String, Object>)blipEntry.getValue()).get("elements");
+            final SortedMap<Integer, Element> elements = new TreeMap<Integer, Element>();
+            for (final Map.Entry<String, Object> elementEntry : elementsJson.entrySet()) {
+                final Map<String, Object> elementJson = (Map<String, Object>)elementEntry.getValue();
+                final ElementType type = ElementType.valueOf((String)elementJson.get("type"));
+                final Element el = (type == ElementType.LINE) ? new Line() :
+                        ((type == ElementType.GADGET) ? new Gadget((String)null) : new Element(type));
+                for (final Map.Entry<String, Object> property :
+                        ((Map<String, Object>)elementJson.get("properties")).entrySet()) {
+                    el.setProperty(property.getKey(), (String)property.getValue());
+                }
+                elements.put(Integer.valueOf(elementEntry.getKey()), el);
+            }
+            blipElements.put(blipEntry.getKey(), elements);
+        }
+
+        int result = 0;
+        for (final Object eventObj : (List<Object>)parsed.get("events")) {
+            final Map<String, Object> properties =
+                    (Map<String, Object>)((Map<String, Object>)eventObj).get("properties");
+            final SortedMap<Integer, Element> elements = blipElements.get(properties.get("blipId"));
+            if (elements != null) {
+                result += TrackerTree.build(elements, new ArrayList<Gadget>()).getRollup().getSize();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return
+     *      The number of bytes allocated by this thread so far, or -1 if the JVM can't say.
+     */
+    private static long allocatedBytes()
+    {
+        final java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean)bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    /**
+     * @return
+     *      The contents of a file.
+     */
+    private static byte[] readFile(
+            final File file
+    )
+            throws IOException
+    {
+        final byte[] result = new byte[(int)file.length()];
+        final InputStream in = new FileInputStream(file);
+        try {
+            int numRead = 0;
+            while (numRead < result.length) {
+                final int n = in.read(result, numRead, result.length - numRead);
+                if (n == -1) {
+                    break;
+                }
+                numRead += n;
+            }
+        }
+        finally {
+            in.close();
+        }
+        return result;
+    }
+
+    /**
+     * The measurements of one way of reading a bundle.
+     */
+    private static final class Result
+    {
+
+        /**
+         * The median time taken by a read.
+         */
+        long nanos;
+
+        /**
+         * The bytes allocated per read, or -1 if not known.
+         */
+        long bytes;
+
+        /**
+         * The number of trackers found.
+         */
+        int numTrackers;
+
+        /**
+         */
+        Result()
+        {
+            super();
+        }
+
+        /**
+         */
+        public String toString()
+        {
+            return String.format("ms=%.3f", nanos / 1e6) + " allocated=" + ((bytes < 0) ? "?" : String.valueOf(bytes));
+        }
+
+    }
+
+}
\ No newline at end of file
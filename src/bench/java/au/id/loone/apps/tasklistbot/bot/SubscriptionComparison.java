@@ -0,0 +1,439 @@
+/*
+ * Copyright (C) 2010  David G Loone
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package au.id.loone.apps.tasklistbot.bot;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import au.id.loone.apps.tasklistbot.batch.Json;
+
+import com.google.wave.api.Element;
+
+/**
+ * Measures how much less the robot is sent with its narrowed event subscriptions.
+ *
+ * <p>Each bundle is taken as it was sent under the old subscriptions
+ *      (gadget state changes and blip submits for every blip, with the root, parent and child blips,
+ *      and wavelet self added events),
+ *      and cut down to what the server sends under the new ones
+ *      (gadget state changes for task tracker gadgets only, and submits, each with just the blip and the root,
+ *      and no wavelet self added events).
+ *      Bundles left with no events aren't sent at all.
+ *      The events that still get through, but that the robot drops before looking at any tree, are also counted.
+ *      Both sides are measured as re-serialised JSON, so the sizes are comparable.</p>
+ *
+ * <p>Arguments are either <b>-dir</b> <i>dir</i>, for a directory of bundles recorded by
+ *      {@link BundleRecorderFilter} (which were recorded under the old subscriptions),
+ *      or <b>-synthetic</b> <i>blips</i>:<i>trackerBlips</i>:<i>lines</i>:<i>bundles</i>
+ *      for a synthetic wavelet (default 20:5:200:500),
+ *      in which the other blips each have a gadget that isn't a task tracker.</p>
+ *
+ * @author David G Loone
+ */
+public final class SubscriptionComparison
+{
+
+    /**
+     * The URL used for the tracker gadgets (the one that the robot is shipped with).
+     */
+    private static final String GADGET_URL = "http://tasklistbot.appspot.com/gadgets/TaskTrackerGadget.xml";
+
+    /**
+     * The URL used for the gadgets that aren't trackers.
+     */
+    private static final String OTHER_GADGET_URL = "http://localhost/gadgets/Poll.xml";
+
+    /**
+     * The server side filter on gadget events.
+     */
+    private static final Pattern FILTER = Pattern.compile(TaskListBot.TRACKER_GADGET_FILTER);
+
+    /**
+     */
+    private SubscriptionComparison()
+    {
+        super();
+    }
+
+    /**
+     */
+    public static void main(
+            final String[] args
+    )
+            throws IOException
+    {
+        final List<String> bundles = ((args.length == 2) && "-dir".equals(args[0])) ? readDir(new File(args[1])) :
+                synthetic(((args.length == 2) && "-synthetic".equals(args[0])) ? args[1] : "20:5:200:500");
+
+        final Totals before = new Totals();
+        final Totals after = new Totals();
+        long numRejected = 0;
+        for (final String bundle : bundles) {
+            @SuppressWarnings({"unchecked"})
+            final Map<String, Object> parsed = (Map<String, Object>)Json.parse(bundle);
+            before.add(parsed);
+            final Map<String, Object> narrowed = narrow(parsed);
+            if (narrowed != null) {
+                after.add(narrowed);
+                numRejected += countRejected(narrowed);
+            }
+        }
+
+        System.out.println("before: " + before);
+        System.out.println("after:  " + after);
+        System.out.println("after, dropped by the robot before any tree work: events=" + numRejected);
+        System.out.println(String.format("ratio: events=%.2f bytes=%.2f",
+                (after.numEvents == 0) ? 0.0 : ((double)before.numEvents / after.numEvents),
+                (after.numBytes == 0) ? 0.0 : ((double)before.numBytes / after.numBytes)));
+    }
+
+    /**
+     * Cut a bundle down to what the new subscriptions would have had sent.
+     *
+     * @return
+     *      The bundle, or null if it wouldn't have been sent at all.
+     */
+    @SuppressWarnings({"unchecked"})
+    private static Map<String, Object> narrow(
+            final Map<String, Object> bundle
+    )
+    {
+        final Map<String, Object> blips = (Map<String, Object>)bundle.get("blips");
+        final Map<String, Object> wavelet = (Map<String, Object>)bundle.get("wavelet");
+        final String rootBlipId = (wavelet == null) ? null : (String)wavelet.get("rootBlipId");
+
+        final List<Object> events = new ArrayList<Object>();
+        final Set<String> blipIds = new LinkedHashSet<String>();
+        for (final Object eventObj : (List<Object>)bundle.get("events")) {
+            final Map<String, Object> event = (Map<String, Object>)eventObj;
+            final String type = (String)event.get("type");
+            final Map<String, Object> properties = (Map<String, Object>)event.get("properties");
+            final String blipId = (properties == null) ? null : (String)properties.get("blipId");
+            if ("DOCUMENT_CHANGED".equals(type)) {
+                events.add(event);
+                blipIds.add(blipId);
+            }
+            else if ("BLIP_SUBMITTED".equals(type) ||
+                    ("GADGET_STATE_CHANGED".equals(type) && isTrackerChange(blips, blipId, properties))) {
+                events.add(event);
+                blipIds.add(blipId);
+                blipIds.add(rootBlipId);
+            }
+        }
+        if (events.isEmpty()) {
+            return null;
+        }
+
+        final Map<String, Object> result = new LinkedHashMap<String, Object>(bundle);
+        final Map<String, Object> resultBlips = new LinkedHashMap<String, Object>();
+        for (final String blipId : blipIds) {
+            if ((blips != null) && blips.containsKey(blipId)) {
+                resultBlips.put(blipId, blips.get(blipId));
+            }
+        }
+        result.put("events", events);
+        result.put("blips", resultBlips);
+        return result;
+    }
+
+    /**
+     * @return
+     *      Whether a gadget state change would get past the server side filter
+     *      (if the gadget can't be found, it is assumed to).
+     */
+    @SuppressWarnings({"unchecked"})
+    private static boolean isTrackerChange(
+            final Map<String, Object> blips,
+            final String blipId,
+            final Map<String, Object> properties
+    )
+    {
+        final Map<String, Object> blip = (blips == null) ? null : (Map<String, Object>)blips.get(blipId);
+        final Map<String, Object> elements = (blip == null) ? null : (Map<String, Object>)blip.get("elements");
+        final Object index = properties.get("index");
+        final Map<String, Object> el = ((elements == null) || !(index instanceof Double)) ? null :
+                (Map<String, Object>)elements.get(String.valueOf(((Double)index).intValue()));
+        final String url = (el == null) ? null : getUrl(el);
+        return (el == null) || ((url != null) && FILTER.matcher(url).find());
+    }
+
+    /**
+     * @return
+     *      The number of events in a (narrowed) bundle that the robot drops before doing any tree work:
+     *      submits of blips with no trackers.
+     */
+    @SuppressWarnings({"unchecked"})
+    private static int countRejected(
+            final Map<String, Object> bundle
+    )
+    {
+        final Map<String, Object> blips = (Map<String, Object>)bundle.get("blips");
+        int result = 0;
+        for (final Object eventObj : (List<Object>)bundle.get("events")) {
+            final Map<String, Object> event = (Map<String, Object>)eventObj;
+            final Map<String, Object> properties = (Map<String, Object>)event.get("properties");
+            final Map<String, Object> blip = (properties == null) ? null :
+                    (Map<String, Object>)blips.get(properties.get("blipId"));
+            if ("BLIP_SUBMITTED".equals(event.get("type")) && (blip != null) && !hasTracker(blip)) {
+                result++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return
+     *      Whether a blip (as JSON) has a task tracker gadget.
+     */
+    @SuppressWarnings({"unchecked"})
+    private static boolean hasTracker(
+            final Map<String, Object> blip
+    )
+    {
+        final Map<String, Object> elements = (Map<String, Object>)blip.get("elements");
+        if (elements != null) {
+            for (final Object el : elements.values()) {
+                final String url = getUrl((Map<String, Object>)el);
+                if ((url != null) && FILTER.matcher(url).find()) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return
+     *      The URL of a gadget element (as JSON), or null if it isn't a gadget.
+     */
+    @SuppressWarnings({"unchecked"})
+    private static String getUrl(
+            final Map<String, Object> el
+    )
+    {
+        final Map<String, Object> properties = (Map<String, Object>)el.get("properties");
+        return (!"GADGET".equals(el.get("type")) || (properties == null)) ? null : (String)properties.get("url");
+    }
+
+    /**
+     * @return
+     *      The bundles in a directory of recorded bundles, in file name order.
+     */
+    private static List<String> readDir(
+            final File dir
+    )
+            throws IOException
+    {
+        final File[] files = dir.listFiles();
+        if (files == null) {
+            throw new IOException("not a directory: " + dir);
+        }
+        Arrays.sort(files);
+
+        final List<String> result = new ArrayList<String>();
+        for (final File file : files) {
+            if (file.getName().endsWith(".json")) {
+                final byte[] bytes = new byte[(int)file.length()];
+                final InputStream in = new FileInputStream(file);
+                try {
+                    int numRead = 0;
+                    while (numRead < bytes.length) {
+                        final int n = in.read(bytes, numRead, bytes.length - numRead);
+                        if (n == -1) {
+                            break;
+                        }
+                        numRead += n;
+                    }
+                }
+                finally {
+                    in.close();
+                }
+                result.add(new String(bytes, "UTF-8"));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Generate the bundles that a synthetic wavelet is sent under the old subscriptions.
+     *
+     * <p>Blip 0 is the root, and the rest are its children.
+     *      The first few blips are full of trackers, and the others each have a line of text and another gadget.
+     *      Each bundle is a submit of a random blip, half the time with a state change of one of its gadgets.</p>
+     *
+     * @param spec
+     *      <i>blips</i>:<i>trackerBlips</i>:<i>lines</i>:<i>bundles</i>
+     */
+    private static List<String> synthetic(
+            final String spec
+    )
+    {
+        final String[] parts = spec.split(":");
+        final int numBlips = Integer.parseInt(parts[0]);
+        final int numTrackerBlips = Integer.parseInt(parts[1]);
+        final int numLines = Integer.parseInt(parts[2]);
+        final int numBundles = Integer.parseInt(parts[3]);
+
+        final SyntheticBlip trackerBlip = new SyntheticBlip(SyntheticBlip.Shape.PATHOLOGICAL, numLines, false);
+        final String[] blipJson = new String[numBlips];
+        final int[] gadgetOffsets = new int[numBlips];
+        for (int blipIdx = 0; blipIdx < numBlips; blipIdx++) {
+            final StringBuilder buf = new StringBuilder();
+            final List<String> childBlipIds = new ArrayList<String>();
+            if (blipIdx == 0) {
+                for (int childIdx = 1; childIdx < numBlips; childIdx++) {
+                    childBlipIds.add("b+" + childIdx);
+                }
+            }
+            buf.append("{\"blipId\":\"b+").append(blipIdx).append("\",");
+            buf.append("\"parentBlipId\":").append((blipIdx == 0) ? "null" : "\"b+0\"").append(',');
+            buf.append("\"childBlipIds\":").append(Json.write(childBlipIds)).append(',');
+            buf.append("\"waveId\":\"example.com!w+load\",\"waveletId\":\"example.com!conv+root\",");
+            buf.append("\"creator\":\"someone@example.com\",\"contributors\":[\"someone@example.com\"],");
+            buf.append("\"annotations\":[],\"lastModifiedTime\":0,\"version\":1,");
+            if (blipIdx < numTrackerBlips) {
+                buf.append("\"content\":").append(Json.quote(trackerBlip.getContent())).append(",\"elements\":{");
+                boolean first = true;
+                for (final Map.Entry<Integer, Element> entry : trackerBlip.getElements().entrySet()) {
+                    final Map<String, String> properties = new LinkedHashMap<String, String>();
+                    if (entry.getValue() instanceof com.google.wave.api.Gadget) {
+                        properties.put("url", GADGET_URL);
+                        gadgetOffsets[blipIdx] = entry.getKey();
+                    }
+                    properties.putAll(entry.getValue().getProperties());
+                    buf.append(first ? "" : ",").append(Json.quote(String.valueOf(entry.getKey())));
+                    buf.append(":{\"type\":").append(Json.quote(entry.getValue().getType().name()));
+                    buf.append(",\"properties\":").append(Json.write(properties)).append('}');
+                    first = false;
+                }
+                buf.append("}}");
+            }
+            else {
+                buf.append("\"content\":\"\\nWhat do we think? \",\"elements\":{");
+                buf.append("\"0\":{\"type\":\"LINE\",\"properties\":{}},");
+                buf.append("\"18\":{\"type\":\"GADGET\",\"properties\":{\"url\":").append(Json.quote(OTHER_GADGET_URL));
+                buf.append(",\"votes\":\"3\"}}}}");
+                gadgetOffsets[blipIdx] = 18;
+            }
+            blipJson[blipIdx] = buf.toString();
+        }
+
+        final Random random = new Random(numBundles);
+        final List<String> result = new ArrayList<String>(numBundles);
+        for (int bundleIdx = 0; bundleIdx < numBundles; bundleIdx++) {
+            final int blipIdx = random.nextInt(numBlips);
+            final StringBuilder buf = new StringBuilder();
+            buf.append("{\"events\":[");
+            if (bundleIdx == 0) {
+                buf.append("{\"type\":\"WAVELET_SELF_ADDED\",\"modifiedBy\":\"someone@example.com\",");
+                buf.append("\"timestamp\":0,\"properties\":{\"blipId\":\"b+0\"}},");
+            }
+            if (random.nextBoolean()) {
+                buf.append("{\"type\":\"GADGET_STATE_CHANGED\",\"modifiedBy\":\"someone@example.com\",");
+                buf.append("\"timestamp\":0,\"properties\":{\"blipId\":\"b+").append(blipIdx);
+                buf.append("\",\"index\":").append(gadgetOffsets[blipIdx]).append(",\"oldState\":{}}},");
+            }
+            buf.append("{\"type\":\"BLIP_SUBMITTED\",\"modifiedBy\":\"someone@example.com\",");
+            buf.append("\"timestamp\":0,\"properties\":{\"blipId\":\"b+").append(blipIdx).append("\"}}],");
+            buf.append("\"wavelet\":{\"waveId\":\"example.com!w+load\",\"waveletId\":\"example.com!conv+root\",");
+            buf.append("\"creator\":\"someone@example.com\",\"creationTime\":0,\"lastModifiedTime\":0,\"version\":1,");
+            buf.append("\"participants\":[\"someone@example.com\",\"tasklistbot@appspot.com\"],");
+            buf.append("\"participantRoles\":{},\"dataDocuments\":{},\"tags\":[],\"title\":\"\",");
+            buf.append("\"rootBlipId\":\"b+0\"},\"blips\":{");
+
+            // The old subscriptions' contexts: the blip itself, the root, its parent (the root) and its children.
+            final Set<Integer> blipIdxs = new LinkedHashSet<Integer>();
+            blipIdxs.add(blipIdx);
+            blipIdxs.add(0);
+            if (blipIdx == 0) {
+                for (int childIdx = 1; childIdx < numBlips; childIdx++) {
+                    blipIdxs.add(childIdx);
+                }
+            }
+            boolean first = true;
+            for (final int idx : blipIdxs) {
+                buf.append(first ? "" : ",").append("\"b+").append(idx).append("\":").append(blipJson[idx]);
+                first = false;
+            }
+            buf.append("},\"robotAddress\":\"tasklistbot@appspot.com\"}");
+            result.add(buf.toString());
+        }
+        return result;
+    }
+
+    /**
+     * Running totals for a set of bundles.
+     */
+    private static final class Totals
+    {
+
+        /**
+         * The number of bundles.
+         */
+        long numBundles;
+
+        /**
+         * The number of events.
+         */
+        long numEvents;
+
+        /**
+         * The number of bytes.
+         */
+        long numBytes;
+
+        /**
+         */
+        Totals()
+        {
+            super();
+        }
+
+        /**
+         * Add a bundle.
+         */
+        void add(
+                final Map<String, Object> bundle
+        )
+        {
+            numBundles++;
+            numEvents += ((List<?>)bundle.get("events")).size();
+            numBytes += Json.write(bundle).length();
+        }
+
+        /**
+         */
+        public String toString()
+        {
+            return "bundles=" + numBundles + " events=" + numEvents + " bytes=" + numBytes +
+                    " bytes/event=" + ((numEvents == 0) ? 0 : (numBytes / numEvents));
+        }
+
+    }
+
+}
\ No newline at end of file
@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2010  David G Loone
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package au.id.loone.apps.tasklistbot.bot;
+
+import java.util.Random;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import au.id.loone.apps.tasklistbot.core.TrackerRollup;
+
+import com.google.wave.api.Element;
+import com.google.wave.api.Gadget;
+import com.google.wave.api.Line;
+
+/**
+ * An in-memory stand-in for the content and elements of a blip full of task trackers.
+ *
+ * <p>Each line of the blip is an "li" line holding either a task tracker gadget
+ *      or the marker that gets converted to one,
+ *      followed by some text.
+ *      The indent of each line is determined by the {@link Shape}.</p>
+ *
+ * @author David G Loone
+ */
+public final class SyntheticBlip
+{
+
+    /**
+     * The indenting structures that can be generated.
+     */
+    public enum Shape
+    {
+        /**
+         * Every line at the top level.
+         */
+        FLAT,
+
+        /**
+         * A handful of top level trackers, each with a very large number of children.
+         */
+        WIDE,
+
+        /**
+         * Every line indented one more than the line before it.
+         */
+        DEEP,
+
+        /**
+         * Random indents, including jumps of several levels in and out.
+         */
+        PATHOLOGICAL
+    }
+
+    /**
+     * The URL used for the tracker gadgets (the one that the robot is shipped with).
+     */
+    private static final String GADGET_URL = "http://tasklistbot.appspot.com/gadgets/TaskTrackerGadget.xml";
+
+    /**
+     * The text that follows the tracker on each line.
+     */
+    private static final String LINE_TEXT = " do something";
+
+    /**
+     * Current value of the <b>content</b> property.
+     */
+    private final String content;
+
+    /**
+     * Current value of the <b>elements</b> property.
+     */
+    private final SortedMap<Integer, Element> elements;
+
+    /**
+     * @param shape
+     *      The indenting structure.
+     * @param numLines
+     *      The number of lines (and so the number of trackers or markers).
+     * @param markers
+     *      Whether the lines hold the marker instead of a tracker gadget.
+     */
+    public SyntheticBlip(
+            final Shape shape,
+            final int numLines,
+            final boolean markers
+    )
+    {
+        super();
+
+        final Random random = new Random(numLines);
+        final StringBuilder contentBuf = new StringBuilder();
+        elements = new TreeMap<Integer, Element>();
+        for (int lineIdx = 0; lineIdx < numLines; lineIdx++) {
+            final Line line = new Line();
+            line.getProperties().put("lineType", "li");
+            line.getProperties().put("indent", String.valueOf(indent(shape, lineIdx, numLines, random)));
+            elements.put(contentBuf.length(), line);
+            contentBuf.append('\n');
+
+            if (markers) {
+                contentBuf.append(TrackerMarkerScanner.MARKER);
+            }
+            else {
+                final Gadget gadget = new Gadget(GADGET_URL);
+                gadget.getProperties().put("taskTrackerId", String.valueOf(lineIdx));
+                gadget.getProperties().put("progress", String.valueOf(random.nextBoolean() ? 100 : 0));
+                gadget.getProperties().put("readonly", String.valueOf(random.nextBoolean()));
+                gadget.getProperties().put("version", String.valueOf(1));
+                elements.put(contentBuf.length(), gadget);
+                contentBuf.append(' ');
+            }
+
+            contentBuf.append(LINE_TEXT);
+        }
+        content = contentBuf.toString();
+    }
+
+    /**
+     * @return
+     *      The indent of a line.
+     */
+    private static int indent(
+            final Shape shape,
+            final int lineIdx,
+            final int numLines,
+            final Random random
+    )
+    {
+        final int result;
+
+        switch (shape) {
+            case FLAT:
+                result = 0;
+                break;
+            case WIDE:
+                result = (lineIdx % Math.max(numLines / 4, 1) == 0) ? 0 : 1;
+                break;
+            case DEEP:
+                result = lineIdx;
+                break;
+            case PATHOLOGICAL:
+                result = random.nextBoolean() ? random.nextInt(3) : random.nextInt(50);
+                break;
+            default:
+                throw new IllegalArgumentException(String.valueOf(shape));
+        }
+
+        return result;
+    }
+
+    /**
+     * Find the element offset of the last tracker that is a leaf,
+     * which is the one with the most ancestors to update in the deep shapes.
+     *
+     * @param tree
+     *      The tree built from this blip.
+     * @return
+     *      The index of the tracker (in document order).
+     */
+    public static int lastLeaf(
+            final TrackerTree tree
+    )
+    {
+        final TrackerRollup rollup = tree.getRollup();
+        int result = rollup.getSize() - 1;
+        while ((result > 0) && rollup.hasChildren(result)) {
+            result--;
+        }
+        return result;
+    }
+
+    /**
+     * Getter method for the <b>content</b> property.
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public String getContent() {return content;}
+
+    /**
+     * Getter method for the <b>elements</b> property.
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public SortedMap<Integer, Element> getElements() {return elements;}
+
+}
\ No newline at end of file
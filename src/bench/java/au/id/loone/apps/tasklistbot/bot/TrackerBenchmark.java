@@ -0,0 +1,296 @@
+/*
+ * Copyright (C) 2010  David G Loone
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package au.id.loone.apps.tasklistbot.bot;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import au.id.loone.apps.tasklistbot.core.TrackerRollup;
+import au.id.loone.apps.tasklistbot.load.SyntheticBundle;
+
+import com.google.gson.Gson;
+import com.google.wave.api.Blip;
+import com.google.wave.api.EventMessageBundle;
+import com.google.wave.api.Gadget;
+import com.google.wave.api.impl.GsonFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Microbenchmarks for the tracker hot paths.
+ *
+ * <p>Run with the <b>bench</b> target,
+ *      which also turns on the GC profiler so that the allocation rate is reported along with the throughput.</p>
+ *
+ * @author David G Loone
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TrackerBenchmark
+{
+
+    /**
+     * The indenting structure of the blip.
+     */
+    @Param({"FLAT", "WIDE", "DEEP", "PATHOLOGICAL"})
+    public SyntheticBlip.Shape shape;
+
+    /**
+     * The number of lines in the blip.
+     */
+    @Param({"10", "100", "1000", "10000", "100000"})
+    public int numLines;
+
+    /**
+     * A blip full of trackers.
+     */
+    private SyntheticBlip trackerBlip;
+
+    /**
+     * A blip full of markers.
+     */
+    private SyntheticBlip markerBlip;
+
+    /**
+     * A tree that has already been rolled up, for the incremental update.
+     */
+    private TrackerTree tree;
+
+    /**
+     * The leaf that the incremental update toggles.
+     */
+    private int leafIdx;
+
+    /**
+     * The progress that the incremental update sets the leaf to next.
+     */
+    private int leafProgress;
+
+    /**
+     * The threads for the parallel rollup.
+     */
+    private ExecutorService executor;
+
+    /**
+     */
+    @Setup(Level.Trial)
+    public void setUp()
+    {
+        executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        trackerBlip = new SyntheticBlip(shape, numLines, false);
+        markerBlip = new SyntheticBlip(shape, numLines, true);
+        final List<Gadget> gadgets = new ArrayList<Gadget>();
+        tree = TrackerTree.build(trackerBlip.getElements(), gadgets);
+        tree.rollup(gadgets, new TrackerUpdatePlan());
+        leafIdx = SyntheticBlip.lastLeaf(tree);
+    }
+
+    /**
+     */
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        executor.shutdown();
+    }
+
+    /**
+     * Everything that <b>checkTrackers</b> does short of writing to the document:
+     * walk the elements, roll up the tree, and work out the update plan.
+     */
+    @Benchmark
+    public TrackerUpdatePlan checkTrackers()
+    {
+        final List<Gadget> gadgets = new ArrayList<Gadget>();
+        final TrackerTree newTree = TrackerTree.build(trackerBlip.getElements(), gadgets);
+        final TrackerUpdatePlan plan = new TrackerUpdatePlan();
+        newTree.rollup(gadgets, plan);
+        return plan;
+    }
+
+    /**
+     * Just the rollup (<i>ie</i> what used to be <b>processTrackersTree</b>).
+     */
+    @Benchmark
+    public int processTrackersTree()
+    {
+        final TrackerRollup rollup = new TrackerRollup(numLines);
+        final TrackerRollup source = tree.getRollup();
+        for (int idx = 0; idx < source.getSize(); idx++) {
+            rollup.add(source.getIndent(idx), source.getProgress(idx), source.getReadonly(idx));
+        }
+        return rollup.rollup();
+    }
+
+    /**
+     * The rollup done in parallel,
+     * for comparing with {@link #processTrackersTree()} to find where parallelism starts to pay off
+     * (<i>ie</i> what the <b>parallelRollupThreshold</b> should be).
+     */
+    @Benchmark
+    public int parallelRollup()
+    {
+        final TrackerRollup rollup = new TrackerRollup(numLines);
+        final TrackerRollup source = tree.getRollup();
+        for (int idx = 0; idx < source.getSize(); idx++) {
+            rollup.add(source.getIndent(idx), source.getProgress(idx), source.getReadonly(idx));
+        }
+        return rollup.rollup(executor);
+    }
+
+    /**
+     * A single checkbox click (<i>ie</i> what <b>onGadgetStateChanged</b> does with a cached tree).
+     */
+    @Benchmark
+    public int updateTracker()
+    {
+        leafProgress = 100 - leafProgress;
+        final TrackerRollup rollup = tree.getRollup();
+        final int result = rollup.update(leafIdx, leafProgress);
+        for (int idx = rollup.getParent(leafIdx); idx != -1; idx = rollup.getParent(idx)) {
+            rollup.commit(idx);
+        }
+        return result;
+    }
+
+    /**
+     * The marker scan in <b>onDocumentChanged</b>.
+     */
+    @Benchmark
+    public int[] scanMarkers()
+    {
+        return TrackerMarkerScanner.find(markerBlip.getContent(), markerBlip.getElements(), 0, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Writing a full check's changes back to the blip (<i>ie</i> <b>setTrackerStates</b>),
+     * including the version claim, in each update mode.
+     *
+     * @param writeBack
+     *      A freshly deserialised blip and its plan.
+     * @return
+     *      Whether all the changes were made.
+     */
+    @Benchmark
+    public boolean setTrackerStates(
+            final WriteBack writeBack
+    )
+    {
+        return writeBack.robot.setTrackerStates(writeBack.blip, writeBack.plan, writeBack.deltaUpdates);
+    }
+
+    /**
+     * A blip to write a plan back to, deserialised by the robot API as the robot would be sent it.
+     *
+     * <p>Each write queues operations on the blip's wavelet (and a replace changes the blip),
+     *      so every invocation gets a new blip.
+     *      Each one has a later version than the last, so that the version guard lets every write through.</p>
+     */
+    @State(Scope.Thread)
+    public static class WriteBack
+    {
+
+        /**
+         * The update mode.
+         */
+        @Param({"delta", "replace"})
+        public String mode;
+
+        /**
+         * The robot that does the writing.
+         */
+        TaskListBot robot;
+
+        /**
+         * Whether to update the gadgets in place (otherwise they are replaced).
+         */
+        boolean deltaUpdates;
+
+        /**
+         * The blip to write to.
+         */
+        Blip blip;
+
+        /**
+         * The changes to write.
+         */
+        TrackerUpdatePlan plan;
+
+        /**
+         * The robot API's serialiser.
+         */
+        private Gson serializer;
+
+        /**
+         * The bundle that the blip is deserialised from, in the robot JSON wire format.
+         */
+        private String bundle;
+
+        /**
+         * The version of the last blip.
+         */
+        private long version;
+
+        /**
+         * @param benchmark
+         *      Has the shape and size of the blip.
+         */
+        @Setup(Level.Trial)
+        public void setUp(
+                final TrackerBenchmark benchmark
+        )
+        {
+            robot = new TaskListBot();
+            deltaUpdates = "delta".equals(mode);
+            serializer = new GsonFactory().create();
+            bundle = SyntheticBundle.gadgetStateChanged(benchmark.shape, benchmark.numLines, 0);
+        }
+
+        /**
+         */
+        @Setup(Level.Invocation)
+        public void prepare()
+        {
+            final EventMessageBundle events = serializer.fromJson(
+                    bundle.replace("\"version\":1,", "\"version\":" + ++version + ","), EventMessageBundle.class);
+            blip = events.getWavelet().getBlip("b+0");
+            final List<Gadget> gadgets = new ArrayList<Gadget>();
+            final TrackerTree tree = TrackerTree.build(blip.getElements(), gadgets);
+            plan = new TrackerUpdatePlan();
+            tree.rollup(gadgets, plan);
+        }
+
+    }
+
+}
\ No newline at end of file
@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2010  David G Loone
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package au.id.loone.apps.tasklistbot.bot;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import au.id.loone.apps.tasklistbot.batch.Json;
+import au.id.loone.apps.tasklistbot.load.SyntheticBundle;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import com.google.wave.api.Blip;
+import com.google.wave.api.EventMessageBundle;
+import com.google.wave.api.Gadget;
+import com.google.wave.api.OperationQueue;
+import com.google.wave.api.OperationRequest;
+import com.google.wave.api.Wavelet;
+import com.google.wave.api.impl.GsonFactory;
+
+/**
+ * Compares the two ways of writing tracker state changes back to a blip:
+ * updating just the changed properties of each gadget ("delta"),
+ * and replacing each gadget with a new one ("replace").
+ *
+ * <p>For each synthetic blip, a bundle is deserialised by the robot API as the robot would be sent it,
+ *      the full check's update plan is worked out from the blip,
+ *      and each change is made through the robot API in the way that each mode makes it.
+ *      The operations that the robot API queues up are then serialised as they would be for the response,
+ *      and measured.
+ *      A replaced gadget is reloaded by every client that has the blip open,
+ *      whereas an updated one just sees a state change,
+ *      so the re-render count (per client) is the number of gadgets that the operations replace.</p>
+ *
+ * <p>Arguments are <i>shape</i>:<i>lines</i> pairs (default PATHOLOGICAL:10000 DEEP:1000 WIDE:10000).</p>
+ *
+ * @author David G Loone
+ */
+public final class UpdateModeComparison
+{
+
+    /**
+     * The URL used for the tracker gadgets (the one that the robot is shipped with).
+     */
+    private static final String GADGET_URL = "http://tasklistbot.appspot.com/gadgets/TaskTrackerGadget.xml";
+
+    /**
+     * The id of the blip in the bundle.
+     */
+    private static final String BLIP_ID = "b+0";
+
+    /**
+     * The type of a list of operations, for the serialiser.
+     */
+    private static final Type OPERATIONS_TYPE = new TypeToken<List<OperationRequest>>() {}.getType();
+
+    /**
+     */
+    private UpdateModeComparison()
+    {
+        super();
+    }
+
+    /**
+     */
+    public static void main(
+            final String[] args
+    )
+    {
+        final Gson serializer = new GsonFactory().create();
+        final String[] blips = (args.length > 0) ? args :
+                new String[] {"PATHOLOGICAL:10000", "DEEP:1000", "WIDE:10000"};
+        for (final String blipSpec : blips) {
+            final String[] parts = blipSpec.split(":");
+            final String bundle = SyntheticBundle.gadgetStateChanged(SyntheticBlip.Shape.valueOf(parts[0]),
+                    Integer.parseInt(parts[1]), 0);
+
+            final Result delta = run(serializer, bundle, true);
+            final Result replace = run(serializer, bundle, false);
+            System.out.println(blipSpec + " updates=" + delta.numUpdates +
+                    " delta: ops=" + delta.numOps + " bytes=" + delta.numBytes + " rerenders=" + delta.numRerenders +
+                    " replace: ops=" + replace.numOps + " bytes=" + replace.numBytes +
+                    " rerenders=" + replace.numRerenders +
+                    String.format(" ratio=%.2f",
+                            (delta.numBytes == 0) ? 0.0 : ((double)replace.numBytes / delta.numBytes)));
+        }
+    }
+
+    /**
+     * Write the full check's changes back to the blip in a bundle, in one of the modes.
+     *
+     * @param serializer
+     *      The robot API's serialiser.
+     * @param bundle
+     *      The bundle, in the robot JSON wire format.
+     * @param deltaUpdates
+     *      Whether to update the gadgets in place (otherwise they are replaced).
+     * @return
+     *      The measurements of the operations.
+     */
+    private static Result run(
+            final Gson serializer,
+            final String bundle,
+            final boolean deltaUpdates
+    )
+    {
+        final EventMessageBundle events = serializer.fromJson(bundle, EventMessageBundle.class);
+        final Blip blip = events.getWavelet().getBlip(BLIP_ID);
+        final List<Gadget> gadgets = new ArrayList<Gadget>();
+        final TrackerTree tree = TrackerTree.build(blip.getElements(), gadgets);
+        final TrackerUpdatePlan plan = new TrackerUpdatePlan();
+        tree.rollup(gadgets, plan);
+
+        // The same calls that the robot makes for each mode.
+        for (final TrackerUpdatePlan.Update update : plan.getUpdates()) {
+            if (deltaUpdates) {
+                blip.at(update.getOffset()).updateElement(update.getDelta(blip.getVersion()));
+            }
+            else {
+                final Gadget newTracker = new Gadget(GADGET_URL);
+                newTracker.getProperties().putAll(update.getProperties(blip.getVersion()));
+                blip.range(update.getOffset(), update.getOffset() + 1).replace(newTracker);
+            }
+        }
+
+        final List<OperationRequest> ops = getPendingOperations(events.getWavelet());
+        final String json = serializer.toJson(ops, OPERATIONS_TYPE);
+        return new Result(plan.size(), ops.size(), json.length(), countReplacedGadgets(json));
+    }
+
+    /**
+     * @param wavelet
+     *      A deserialised wavelet.
+     * @return
+     *      The operations queued up for the wavelet (and its blips).
+     *      The robot API only lets its own package at the queue, so it is got at reflectively.
+     */
+    private static List<OperationRequest> getPendingOperations(
+            final Wavelet wavelet
+    )
+    {
+        try {
+            final Method method = Wavelet.class.getDeclaredMethod("getOperationQueue");
+            method.setAccessible(true);
+            return ((OperationQueue)method.invoke(wavelet)).getPendingOperations();
+        }
+        catch (final Exception e) {
+            throw new IllegalStateException("can't get the operation queue", e);
+        }
+    }
+
+    /**
+     * @param json
+     *      Serialised operations.
+     * @return
+     *      The number of gadgets that the operations replace (each of which every client reloads).
+     */
+    @SuppressWarnings({"unchecked"})
+    private static int countReplacedGadgets(
+            final String json
+    )
+    {
+        int result = 0;
+        for (final Object op : (List<Object>)Json.parse(json)) {
+            final Object params = ((Map<String, Object>)op).get("params");
+            final Object action = (params instanceof Map) ? ((Map<String, Object>)params).get("modifyAction") : null;
+            if ((action instanceof Map) && "REPLACE".equals(((Map<String, Object>)action).get("modifyHow")) &&
+                    (((Map<String, Object>)action).get("elements") instanceof List)) {
+                for (final Object el : (List<Object>)((Map<String, Object>)action).get("elements")) {
+                    if ((el instanceof Map) && "GADGET".equals(((Map<String, Object>)el).get("type"))) {
+                        result++;
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The measurements of the operations sent for one mode.
+     */
+    private static final class Result
+    {
+
+        /**
+         * The number of tracker state changes in the plan.
+         */
+        final int numUpdates;
+
+        /**
+         * The number of operations queued.
+         */
+        final int numOps;
+
+        /**
+         * The size of the serialised operations (in characters).
+         */
+        final int numBytes;
+
+        /**
+         * The number of gadgets replaced.
+         */
+        final int numRerenders;
+
+        /**
+         */
+        Result(
+                final int numUpdates,
+                final int numOps,
+                final int numBytes,
+                final int numRerenders
+        )
+        {
+            super();
+
+            this.numUpdates = numUpdates;
+            this.numOps = numOps;
+            this.numBytes = numBytes;
+            this.numRerenders = numRerenders;
+        }
+
+    }
+
+}
@@ -0,0 +1,398 @@
+/*
+ * Copyright (C) 2010  David G Loone
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package au.id.loone.apps.tasklistbot.bot;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import au.id.loone.apps.tasklistbot.core.TrackerRollup;
+
+/**
+ * Shows that racing instances converge on the right tracker state when they go through a version guard.
+ *
+ * <p>A shared in-memory document stands in for a blip.
+ *      A "user" toggles random leaf trackers, and each toggle is delivered as an event to two instances at once
+ *      (as happens when App Engine runs several instances and a bundle is retried, or two bundles overlap).
+ *      Each instance is a thread that takes a snapshot of the document, works out the changes,
+ *      waits a little (the time taken to handle the request),
+ *      and then writes them back stamped with the version of the snapshot,
+ *      claiming the version from a shared {@link MemoryTrackerVersionGuard} first unless the guard is off.
+ *      Once everything has settled, the document is checked from scratch:
+ *      it has converged if no tracker needs to change.
+ *      A write is stale if a write from a later snapshot had already been applied.</p>
+ *
+ * <p>Options: <b>-instances</b> (default 4), <b>-trackers</b> (default 200), <b>-toggles</b> (default 300),
+ *      <b>-rounds</b> (default 20), <b>-delayMicros</b> (default 500).</p>
+ *
+ * @author David G Loone
+ */
+public final class VersionRaceHarness
+{
+
+    /**
+     * The event that tells an instance to stop.
+     */
+    private static final Long POISON = Long.MIN_VALUE;
+
+    /**
+     */
+    private VersionRaceHarness()
+    {
+        super();
+    }
+
+    /**
+     */
+    public static void main(
+            final String[] args
+    )
+            throws InterruptedException
+    {
+        int numInstances = 4;
+        int numTrackers = 200;
+        int numToggles = 300;
+        int numRounds = 20;
+        int delayMicros = 500;
+        for (int argIdx = 0; argIdx < args.length - 1; argIdx += 2) {
+            final int value = Integer.parseInt(args[argIdx + 1]);
+            if ("-instances".equals(args[argIdx])) {
+                numInstances = value;
+            }
+            else if ("-trackers".equals(args[argIdx])) {
+                numTrackers = value;
+            }
+            else if ("-toggles".equals(args[argIdx])) {
+                numToggles = value;
+            }
+            else if ("-rounds".equals(args[argIdx])) {
+                numRounds = value;
+            }
+            else if ("-delayMicros".equals(args[argIdx])) {
+                delayMicros = value;
+            }
+            else {
+                throw new IllegalArgumentException("Unknown option: " + args[argIdx]);
+            }
+        }
+
+        for (final boolean guarded : new boolean[] {false, true}) {
+            final Stats stats = new Stats();
+            for (int round = 0; round < numRounds; round++) {
+                runRound(new Random(round), guarded, numInstances, numTrackers, numToggles, delayMicros, stats);
+            }
+            System.out.println("guard=" + (guarded ? "on " : "off") +
+                    " converged=" + stats.converged + "/" + numRounds +
+                    " writes=" + stats.writes.get() +
+                    " staleWrites=" + stats.staleWrites.get() +
+                    " conflicts=" + stats.conflicts.get());
+        }
+    }
+
+    /**
+     * Run one round: a burst of toggles, raced over by the instances, then a check of the result.
+     */
+    private static void runRound(
+            final Random random,
+            final boolean guarded,
+            final int numInstances,
+            final int numTrackers,
+            final int numToggles,
+            final int delayMicros,
+            final Stats stats
+    )
+            throws InterruptedException
+    {
+        final Doc doc = new Doc(random, numTrackers);
+        final TrackerVersionGuard guard = guarded ? new MemoryTrackerVersionGuard(1) : null;
+        final List<BlockingQueue<Long>> queues = new ArrayList<BlockingQueue<Long>>();
+        final List<Thread> instances = new ArrayList<Thread>();
+        for (int instanceIdx = 0; instanceIdx < numInstances; instanceIdx++) {
+            final BlockingQueue<Long> queue = new LinkedBlockingQueue<Long>();
+            final String instanceId = "i" + instanceIdx;
+            final Random instanceRandom = new Random(random.nextLong());
+            final Thread instance = new Thread(new Runnable() {
+                public void run()
+                {
+                    try {
+                        int requestNum = 0;
+                        for (Long event = queue.take(); !POISON.equals(event); event = queue.take()) {
+                            handle(doc, guard, instanceId + "." + requestNum++, instanceRandom, delayMicros, stats);
+                        }
+                    }
+                    catch (final InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+            queues.add(queue);
+            instances.add(instance);
+            instance.start();
+        }
+
+        for (int toggleNum = 0; toggleNum < numToggles; toggleNum++) {
+            final long version = doc.toggle(random);
+            final int first = random.nextInt(numInstances);
+            final int second = (first + 1 + random.nextInt(Math.max(numInstances - 1, 1))) % numInstances;
+            queues.get(first).put(version);
+            queues.get(second).put(version);
+            LockSupport.parkNanos(random.nextInt(delayMicros + 1) * 1000L);
+        }
+        for (final BlockingQueue<Long> queue : queues) {
+            queue.put(POISON);
+        }
+        for (final Thread instance : instances) {
+            instance.join();
+        }
+
+        if (doc.snapshot().changes().isEmpty()) {
+            stats.converged++;
+        }
+    }
+
+    /**
+     * Handle one event, as an instance of the robot would.
+     */
+    private static void handle(
+            final Doc doc,
+            final TrackerVersionGuard guard,
+            final String requestId,
+            final Random random,
+            final int delayMicros,
+            final Stats stats
+    )
+    {
+        final Snapshot snapshot = doc.snapshot();
+        final List<int[]> changes = snapshot.changes();
+        LockSupport.parkNanos(random.nextInt(delayMicros + 1) * 1000L);
+        if ((guard != null) && !guard.claim("blip", snapshot.version, requestId)) {
+            stats.conflicts.incrementAndGet();
+            return;
+        }
+        if (!changes.isEmpty()) {
+            doc.apply(snapshot.version, changes, stats);
+        }
+    }
+
+    /**
+     * What happened over all the rounds in one mode.
+     */
+    private static final class Stats
+    {
+
+        /**
+         * Number of rounds that converged.
+         */
+        int converged;
+
+        /**
+         * Number of tracker writes applied.
+         */
+        final AtomicInteger writes = new AtomicInteger();
+
+        /**
+         * Number of tracker writes applied from a snapshot older than one already written from.
+         */
+        final AtomicInteger staleWrites = new AtomicInteger();
+
+        /**
+         * Number of requests that lost a claim.
+         */
+        final AtomicInteger conflicts = new AtomicInteger();
+
+    }
+
+    /**
+     * The shared document.
+     */
+    private static final class Doc
+    {
+
+        /**
+         * The indent of each tracker.
+         */
+        private final int[] indents;
+
+        /**
+         * The progress of each tracker.
+         */
+        private final int[] progress;
+
+        /**
+         * Whether each tracker is readonly.
+         */
+        private final boolean[] readonly;
+
+        /**
+         * The <b>version</b> property of each tracker.
+         */
+        private final long[] generations;
+
+        /**
+         * The indexes of the leaf trackers (the ones that the user can toggle).
+         */
+        private final int[] leaves;
+
+        /**
+         * The version of the document.
+         */
+        private long version;
+
+        /**
+         * The latest snapshot version that has been written from.
+         */
+        private long latestWritten;
+
+        /**
+         */
+        Doc(
+                final Random random,
+                final int numTrackers
+        )
+        {
+            super();
+
+            indents = new int[numTrackers];
+            progress = new int[numTrackers];
+            readonly = new boolean[numTrackers];
+            generations = new long[numTrackers];
+            for (int idx = 1; idx < numTrackers; idx++) {
+                indents[idx] = Math.max(0, indents[idx - 1] + random.nextInt(3) - 1);
+            }
+
+            // Start from a converged document.
+            final TrackerRollup rollup = snapshot().rollup;
+            final List<Integer> leafList = new ArrayList<Integer>();
+            for (int idx = 0; idx < numTrackers; idx++) {
+                progress[idx] = rollup.getTargetProgress(idx);
+                readonly[idx] = rollup.getTargetReadonly(idx);
+                generations[idx] = 1;
+                if (!rollup.hasChildren(idx)) {
+                    leafList.add(idx);
+                }
+            }
+            leaves = new int[leafList.size()];
+            for (int leafIdx = 0; leafIdx < leaves.length; leafIdx++) {
+                leaves[leafIdx] = leafList.get(leafIdx);
+            }
+            version = 1;
+        }
+
+        /**
+         * Toggle a random leaf tracker.
+         *
+         * @return
+         *      The new version of the document.
+         */
+        synchronized long toggle(
+                final Random random
+        )
+        {
+            final int idx = leaves[random.nextInt(leaves.length)];
+            progress[idx] = (progress[idx] == 100) ? 0 : 100;
+            return ++version;
+        }
+
+        /**
+         * @return
+         *      A snapshot of the document, rolled up.
+         */
+        synchronized Snapshot snapshot()
+        {
+            final TrackerRollup rollup = new TrackerRollup();
+            for (int idx = 0; idx < indents.length; idx++) {
+                rollup.add(indents[idx], progress[idx], readonly[idx]);
+            }
+            rollup.rollup();
+            return new Snapshot(version, rollup);
+        }
+
+        /**
+         * Write tracker changes, stamping each tracker with the version of the snapshot they were worked out from.
+         */
+        synchronized void apply(
+                final long snapshotVersion,
+                final List<int[]> changes,
+                final Stats stats
+        )
+        {
+            for (final int[] change : changes) {
+                progress[change[0]] = change[1];
+                readonly[change[0]] = (change[2] != 0);
+                generations[change[0]] = snapshotVersion;
+                version++;
+            }
+            stats.writes.addAndGet(changes.size());
+            if (snapshotVersion < latestWritten) {
+                stats.staleWrites.addAndGet(changes.size());
+            }
+            latestWritten = Math.max(latestWritten, snapshotVersion);
+        }
+
+    }
+
+    /**
+     * A rolled up snapshot of the document.
+     */
+    private static final class Snapshot
+    {
+
+        /**
+         * The version of the document that the snapshot was taken at.
+         */
+        final long version;
+
+        /**
+         * The rolled up trackers.
+         */
+        final TrackerRollup rollup;
+
+        /**
+         */
+        Snapshot(
+                final long version,
+                final TrackerRollup rollup
+        )
+        {
+            super();
+
+            this.version = version;
+            this.rollup = rollup;
+        }
+
+        /**
+         * @return
+         *      The tracker changes needed, each as index, progress and readonly (0 or 1).
+         */
+        List<int[]> changes()
+        {
+            final List<int[]> result = new ArrayList<int[]>();
+            for (int idx = 0; idx < rollup.getSize(); idx++) {
+                if (rollup.isChanged(idx)) {
+                    result.add(new int[] {idx, rollup.getTargetProgress(idx), rollup.getTargetReadonly(idx) ? 1 : 0});
+                }
+            }
+            return result;
+        }
+
+    }
+
+}
\ No newline at end of file
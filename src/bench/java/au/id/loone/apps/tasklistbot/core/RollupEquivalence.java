@@ -0,0 +1,338 @@
+/*
+ * Copyright (C) 2010  David G Loone
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package au.id.loone.apps.tasklistbot.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Checks the stack based {@link TrackerRollup} against the recursive algorithm that it replaced,
+ * on random indent trees.
+ *
+ * <p>For each tree, the progress and readonly state that every tracker should have,
+ *      and the progress of the whole list,
+ *      must be exactly what the old recursive <b>processTrackersTree</b> worked out
+ *      (including its quirks: a tracker that is the only member of its list is taken at face value,
+ *      and an indent that jumps by more than one is just a deeper child).
+ *      This is checked for the rollup done in one go, the rollup done in parallel chunks,
+ *      and a leaf being changed with {@link TrackerRollup#update(int, int)} after the rollup.</p>
+ *
+ * <p>Arguments are the number of trees (default 100000), the most trackers in a tree (default 64),
+ *      and the random seed (default the time).
+ *      Any mismatch is printed along with the tree and fails the run.</p>
+ *
+ * @author David G Loone
+ */
+public final class RollupEquivalence
+{
+
+    /**
+     */
+    private RollupEquivalence()
+    {
+        super();
+    }
+
+    /**
+     */
+    public static void main(
+            final String[] args
+    )
+    {
+        final int numTrees = (args.length > 0) ? Integer.parseInt(args[0]) : 100000;
+        final int maxSize = (args.length > 1) ? Integer.parseInt(args[1]) : 64;
+        final long seed = (args.length > 2) ? Long.parseLong(args[2]) : System.currentTimeMillis();
+        System.out.println("trees=" + numTrees + " maxSize=" + maxSize + " seed=" + seed);
+
+        final Random random = new Random(seed);
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        int numFailed = 0;
+        try {
+            for (int treeNum = 0; treeNum < numTrees; treeNum++) {
+                final Spec[] specs = randomTree(random, 1 + random.nextInt(maxSize));
+                final String failure = check(specs, executor, random);
+                if (failure != null) {
+                    numFailed++;
+                    System.out.println("tree " + treeNum + ": " + failure + ": " + Arrays.toString(specs));
+                    if (numFailed == 10) {
+                        break;
+                    }
+                }
+            }
+        }
+        finally {
+            executor.shutdown();
+        }
+
+        if (numFailed > 0) {
+            throw new IllegalStateException(numFailed + " mismatches (seed " + seed + ")");
+        }
+        System.out.println("all " + numTrees + " trees match");
+    }
+
+    /**
+     * Make a random tree.
+     *
+     * <p>The indent mostly goes up or down by one,
+     *      but sometimes jumps up by more than one or drops straight back to the top,
+     *      and the trackers start out in any state (<i>eg</i> a leaf that is readonly).</p>
+     */
+    private static Spec[] randomTree(
+            final Random random,
+            final int size
+    )
+    {
+        final Spec[] result = new Spec[size];
+        int indent = random.nextInt(3);
+        for (int idx = 0; idx < size; idx++) {
+            final int step = random.nextInt(10);
+            if (step < 3) {
+                indent++;
+            }
+            else if (step < 6) {
+                indent = Math.max(0, indent - 1);
+            }
+            else if (step == 6) {
+                indent += 2 + random.nextInt(3);
+            }
+            else if (step == 7) {
+                indent = 0;
+            }
+            result[idx] = new Spec(indent, random.nextInt(101), random.nextInt(4) == 0);
+        }
+        return result;
+    }
+
+    /**
+     * @return
+     *      What doesn't match, or null if everything does.
+     */
+    private static String check(
+            final Spec[] specs,
+            final ExecutorService executor,
+            final Random random
+    )
+    {
+        final Spec[] expected = copy(specs);
+        final int expectedResult = recursive(expected, indexes(expected.length));
+
+        final TrackerRollup serial = rollupOf(specs);
+        String result = compare("serial", expected, expectedResult, serial, serial.rollup((ExecutorService)null));
+        if (result == null) {
+            final TrackerRollup parallel = rollupOf(specs);
+            result = compare("parallel", expected, expectedResult, parallel, parallel.rollup(executor));
+        }
+
+        // Change a leaf (as a click on it does), and check the update against a full recalculation.
+        if (result == null) {
+            final List<Integer> leaves = new ArrayList<Integer>();
+            for (int idx = 0; idx < specs.length; idx++) {
+                if (!serial.hasChildren(idx)) {
+                    leaves.add(idx);
+                }
+            }
+            final int leaf = leaves.get(random.nextInt(leaves.size()));
+            final Spec[] changed = copy(specs);
+            changed[leaf] = new Spec(specs[leaf].indent, random.nextInt(101), specs[leaf].readonly);
+            final Spec[] expectedChanged = copy(changed);
+            final int expectedChangedResult = recursive(expectedChanged, indexes(expectedChanged.length));
+            result = compare("update of " + leaf + " to " + changed[leaf].progress, expectedChanged,
+                    expectedChangedResult, serial, serial.update(leaf, changed[leaf].progress));
+        }
+
+        return result;
+    }
+
+    /**
+     * @return
+     *      What doesn't match, or null if everything does.
+     */
+    private static String compare(
+            final String what,
+            final Spec[] expected,
+            final int expectedResult,
+            final TrackerRollup rollup,
+            final int actualResult
+    )
+    {
+        if (actualResult != expectedResult) {
+            return what + ": result " + actualResult + " != " + expectedResult;
+        }
+        for (int idx = 0; idx < expected.length; idx++) {
+            if ((rollup.getTargetProgress(idx) != expected[idx].progress) ||
+                    (rollup.getTargetReadonly(idx) != expected[idx].readonly)) {
+                return what + ": tracker " + idx + " (" + rollup.getTargetProgress(idx) + ", " +
+                        rollup.getTargetReadonly(idx) + ") != " + expected[idx];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The recursive algorithm that the rollup replaced, as it was,
+     * except that instead of writing a tracker's new state back to the document it is written back to its spec.
+     *
+     * @param specs
+     *      All the trackers (updated in place with the state that they should have).
+     * @param trackers
+     *      The indexes of the trackers in the list being processed.
+     * @return
+     *      The progress level of the list (as a percentage).
+     */
+    private static int recursive(
+            final Spec[] specs,
+            final List<Integer> trackers
+    )
+    {
+        final int result;
+
+        if (trackers.size() == 1) {
+            // Single tracker, just return its progress.
+            result = specs[trackers.get(0)].progress;
+        }
+        else {
+            int idx = 0;
+            int total = 0;
+            int numNodes = 0;
+            while (idx < trackers.size()) {
+                final int indent = specs[trackers.get(idx)].indent;
+                final List<Integer> children = new ArrayList<Integer>();
+                if (idx < trackers.size() - 1) {
+                    int childIdx = idx + 1;
+                    while ((childIdx < trackers.size()) &&
+                            (specs[trackers.get(childIdx)].indent > indent)) {
+                        children.add(trackers.get(childIdx));
+                        childIdx++;
+                    }
+                }
+                final Spec spec = specs[trackers.get(idx)];
+                if (children.size() == 0) {
+                    total += spec.progress;
+                    numNodes++;
+                    if (spec.readonly) {
+                        specs[trackers.get(idx)] = new Spec(spec.indent, spec.progress, false);
+                    }
+                }
+                else {
+                    final int childrenProgress = recursive(specs, children);
+                    specs[trackers.get(idx)] = new Spec(spec.indent, childrenProgress, true);
+                    total += childrenProgress;
+                    numNodes++;
+                }
+
+                idx += (children.size() + 1);
+            }
+
+            result = total / numNodes;
+        }
+
+        return result;
+    }
+
+    /**
+     * @return
+     *      A rollup of the trackers, ready to roll up.
+     */
+    private static TrackerRollup rollupOf(
+            final Spec[] specs
+    )
+    {
+        final TrackerRollup result = new TrackerRollup(specs.length);
+        for (final Spec spec : specs) {
+            result.add(spec.indent, spec.progress, spec.readonly);
+        }
+        return result;
+    }
+
+    /**
+     * @return
+     *      The indexes 0 to <code>size - 1</code>.
+     */
+    private static List<Integer> indexes(
+            final int size
+    )
+    {
+        final List<Integer> result = new ArrayList<Integer>(size);
+        for (int idx = 0; idx < size; idx++) {
+            result.add(idx);
+        }
+        return result;
+    }
+
+    /**
+     * @return
+     *      A copy of the specs (which are immutable, so the copy can be updated in place).
+     */
+    private static Spec[] copy(
+            final Spec[] specs
+    )
+    {
+        final Spec[] result = new Spec[specs.length];
+        System.arraycopy(specs, 0, result, 0, specs.length);
+        return result;
+    }
+
+    /**
+     * The indent and state of a tracker.
+     */
+    private static final class Spec
+    {
+
+        /**
+         * The indent of the line that the tracker is in.
+         */
+        final int indent;
+
+        /**
+         * The progress of the tracker (as a percentage).
+         */
+        final int progress;
+
+        /**
+         * The readonly state of the tracker.
+         */
+        final boolean readonly;
+
+        /**
+         */
+        Spec(
+                final int indent,
+                final int progress,
+                final boolean readonly
+        )
+        {
+            super();
+
+            this.indent = indent;
+            this.progress = progress;
+            this.readonly = readonly;
+        }
+
+        /**
+         */
+        public String toString()
+        {
+            return indent + ":" + progress + (readonly ? "r" : "");
+        }
+
+    }
+
+}
\ No newline at end of file
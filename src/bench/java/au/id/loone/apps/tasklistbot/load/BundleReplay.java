@@ -0,0 +1,353 @@
+/*
+ * Copyright (C) 2010  David G Loone
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package au.id.loone.apps.tasklistbot.load;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import au.id.loone.apps.tasklistbot.bot.SyntheticBlip;
+import au.id.loone.apps.tasklistbot.bot.TaskListBot;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+
+/**
+ * Load generator that fires recorded or synthetic event bundles at the robot.
+ *
+ * <p>Unless a <b>-url</b> is given,
+ *      the robot servlet is started in an embedded Jetty container on the local machine
+ *      (mapped to <b>/_wave/*</b>, as in <b>web.xml</b>).
+ *      Config overrides (<i>eg</i> the tracker gadget URL) can be supplied in the usual way,
+ *      with a <b>tasklistbot.properties</b> resource on the classpath.</p>
+ *
+ * <p>Options:</p>
+ * <ul>
+ *      <li><b>-url</b> <i>url</i>: the robot RPC URL to post to (default: the embedded container).</li>
+ *      <li><b>-port</b> <i>n</i>: the port for the embedded container (default 8089).</li>
+ *      <li><b>-dir</b> <i>dir</i>: a directory of bundles recorded by the <b>BundleRecorderFilter</b>.</li>
+ *      <li><b>-synthetic</b> <i>shape</i>:<i>lines</i>:<i>blips</i>[:<i>blipsPerBundle</i>]:
+ *          generate bundles for synthetic blips (default one blip per bundle).</li>
+ *      <li><b>-concurrency</b> <i>n</i>: the number of requests in flight at once (default 4).</li>
+ *      <li><b>-requests</b> <i>n</i>: the number of requests to measure (default 1000).</li>
+ *      <li><b>-warmup</b> <i>n</i>: the number of requests to send before measuring (default 100).</li>
+ *      <li><b>-responses</b> <i>file</i>: first post each bundle once, one at a time,
+ *          and write the responses to the file (one per line),
+ *          <i>eg</i> to check that two configurations send back the same operations.</li>
+ * </ul>
+ *
+ * @author David G Loone
+ */
+public final class BundleReplay
+{
+
+    /**
+     * The path that the robot takes event bundles on.
+     */
+    static final String RPC_PATH = "/_wave/robot/jsonrpc";
+
+    /**
+     */
+    private BundleReplay()
+    {
+        super();
+    }
+
+    /**
+     */
+    public static void main(
+            final String[] args
+    )
+            throws Exception
+    {
+        String url = null;
+        int port = 8089;
+        int concurrency = 4;
+        int numRequests = 1000;
+        int numWarmup = 100;
+        String responsesFile = null;
+        final List<String> bundles = new ArrayList<String>();
+        for (int argIdx = 0; argIdx < args.length; argIdx += 2) {
+            final String arg = args[argIdx];
+            if (argIdx == args.length - 1) {
+                throw new IllegalArgumentException("Missing value for option: " + arg);
+            }
+            final String value = args[argIdx + 1];
+            if ("-url".equals(arg)) {
+                url = value;
+            }
+            else if ("-port".equals(arg)) {
+                port = Integer.parseInt(value);
+            }
+            else if ("-dir".equals(arg)) {
+                bundles.addAll(readBundles(new File(value)));
+            }
+            else if ("-synthetic".equals(arg)) {
+                final String[] parts = value.split(":");
+                final SyntheticBlip.Shape shape = SyntheticBlip.Shape.valueOf(parts[0]);
+                final int numLines = Integer.parseInt(parts[1]);
+                final int numBlips = (parts.length > 2) ? Integer.parseInt(parts[2]) : 1;
+                final int blipsPerBundle = (parts.length > 3) ? Integer.parseInt(parts[3]) : 1;
+                for (int blipNum = 0; blipNum < numBlips; blipNum += blipsPerBundle) {
+                    bundles.add(SyntheticBundle.gadgetStateChanged(shape, numLines, blipNum,
+                            Math.min(blipsPerBundle, numBlips - blipNum)));
+                }
+            }
+            else if ("-concurrency".equals(arg)) {
+                concurrency = Integer.parseInt(value);
+            }
+            else if ("-requests".equals(arg)) {
+                numRequests = Integer.parseInt(value);
+            }
+            else if ("-warmup".equals(arg)) {
+                numWarmup = Integer.parseInt(value);
+            }
+            else if ("-responses".equals(arg)) {
+                responsesFile = value;
+            }
+            else {
+                throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+        }
+        if (bundles.isEmpty()) {
+            throw new IllegalArgumentException("No bundles: use -dir and/or -synthetic.");
+        }
+
+        Server server = null;
+        if (url == null) {
+            server = new Server(port);
+            final ServletContextHandler context = new ServletContextHandler();
+            context.setContextPath("/");
+            context.addServlet(new ServletHolder(new TaskListBot()), "/_wave/*");
+            server.setHandler(context);
+            server.start();
+            url = "http://localhost:" + port + RPC_PATH;
+        }
+
+        try {
+            final URL target = new URL(url);
+            if (responsesFile != null) {
+                writeResponses(target, bundles, new File(responsesFile));
+            }
+            run(target, bundles, concurrency, numWarmup, new LatencyStats());
+            final LatencyStats stats = new LatencyStats();
+            final long elapsed = run(target, bundles, concurrency, numRequests, stats);
+            System.out.println("bundles=" + bundles.size() + " concurrency=" + concurrency + " " +
+                    stats.report(elapsed));
+        }
+        finally {
+            if (server != null) {
+                server.stop();
+            }
+        }
+    }
+
+    /**
+     * Fire bundles at the robot.
+     *
+     * @return
+     *      The wall-clock time that it took (in nanoseconds).
+     */
+    private static long run(
+            final URL target,
+            final List<String> bundles,
+            final int concurrency,
+            final int numRequests,
+            final LatencyStats stats
+    )
+            throws InterruptedException
+    {
+        final ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+        final AtomicInteger next = new AtomicInteger();
+        final long start = System.nanoTime();
+        for (int threadIdx = 0; threadIdx < concurrency; threadIdx++) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run()
+                {
+                    int requestIdx = next.getAndIncrement();
+                    while (requestIdx < numRequests) {
+                        final byte[] body = toUtf8(bundles.get(requestIdx % bundles.size()));
+                        final long requestStart = System.nanoTime();
+                        if (post(target, body)) {
+                            stats.add(System.nanoTime() - requestStart);
+                        }
+                        else {
+                            stats.addError();
+                        }
+                        requestIdx = next.getAndIncrement();
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.DAYS);
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Post each bundle once, one at a time, and write the responses to a file (one per line).
+     */
+    private static void writeResponses(
+            final URL target,
+            final List<String> bundles,
+            final File file
+    )
+            throws IOException
+    {
+        final OutputStream out = new FileOutputStream(file);
+        try {
+            for (final String bundle : bundles) {
+                final byte[] response = exchange(target, toUtf8(bundle));
+                out.write((response == null) ? toUtf8("ERROR") : response);
+                out.write('\n');
+            }
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Post a single bundle.
+     *
+     * @return
+     *      Whether the robot accepted it.
+     */
+    static boolean post(
+            final URL target,
+            final byte[] body
+    )
+    {
+        return exchange(target, body) != null;
+    }
+
+    /**
+     * Post a single bundle.
+     *
+     * @return
+     *      The response, or null if the robot didn't accept the bundle.
+     */
+    private static byte[] exchange(
+            final URL target,
+            final byte[] body
+    )
+    {
+        byte[] result;
+        try {
+            final HttpURLConnection conn = (HttpURLConnection)target.openConnection();
+            conn.setRequestMethod("POST");
+            conn.setDoOutput(true);
+            conn.setRequestProperty("Content-Type", "application/json; charset=UTF-8");
+            conn.setFixedLengthStreamingMode(body.length);
+            final OutputStream out = conn.getOutputStream();
+            try {
+                out.write(body);
+            }
+            finally {
+                out.close();
+            }
+            final boolean accepted = (conn.getResponseCode() == HttpURLConnection.HTTP_OK);
+            final InputStream in = accepted ? conn.getInputStream() : conn.getErrorStream();
+            final byte[] response = (in == null) ? new byte[0] : readAll(in);
+            result = accepted ? response : null;
+        }
+        catch (final IOException e) {
+            result = null;
+        }
+        return result;
+    }
+
+    /**
+     * @return
+     *      The bundles in a directory (one per file), in file name order.
+     */
+    private static List<String> readBundles(
+            final File dir
+    )
+            throws IOException
+    {
+        final File[] files = dir.listFiles();
+        if (files == null) {
+            throw new IOException("Not a directory: " + dir);
+        }
+        Arrays.sort(files);
+        final List<String> result = new ArrayList<String>();
+        for (final File file : files) {
+            if (file.isFile() && file.getName().endsWith(".json")) {
+                final InputStream in = new FileInputStream(file);
+                try {
+                    result.add(new String(readAll(in), "UTF-8"));
+                }
+                finally {
+                    in.close();
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return
+     *      Everything that's left in a stream.
+     */
+    private static byte[] readAll(
+            final InputStream in
+    )
+            throws IOException
+    {
+        final ByteArrayOutputStream result = new ByteArrayOutputStream();
+        final byte[] buf = new byte[8192];
+        int numRead = in.read(buf);
+        while (numRead != -1) {
+            result.write(buf, 0, numRead);
+            numRead = in.read(buf);
+        }
+        return result.toByteArray();
+    }
+
+    /**
+     * @return
+     *      A string encoded as UTF-8.
+     */
+    static byte[] toUtf8(
+            final String str
+    )
+    {
+        try {
+            return str.getBytes("UTF-8");
+        }
+        catch (final IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
\ No newline at end of file
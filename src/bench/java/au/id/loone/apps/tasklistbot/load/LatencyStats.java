@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2010  David G Loone
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package au.id.loone.apps.tasklistbot.load;
+
+import java.util.Arrays;
+
+/**
+ * Collects request latencies and works out percentiles.
+ *
+ * @author David G Loone
+ */
+public final class LatencyStats
+{
+
+    /**
+     * The latencies recorded so far (in nanoseconds).
+     */
+    private long[] latencies;
+
+    /**
+     * The number of latencies recorded so far.
+     */
+    private int count;
+
+    /**
+     * The number of failed requests.
+     */
+    private int numErrors;
+
+    /**
+     */
+    public LatencyStats()
+    {
+        super();
+
+        latencies = new long[1024];
+        count = 0;
+        numErrors = 0;
+    }
+
+    /**
+     * @param latency
+     *      The latency of a successful request (in nanoseconds).
+     */
+    public synchronized void add(
+            final long latency
+    )
+    {
+        if (count == latencies.length) {
+            latencies = Arrays.copyOf(latencies, count * 2);
+        }
+        latencies[count++] = latency;
+    }
+
+    /**
+     * Record a failed request.
+     */
+    public synchronized void addError()
+    {
+        numErrors++;
+    }
+
+    /**
+     * @param elapsed
+     *      The wall-clock time that the whole run took (in nanoseconds).
+     * @return
+     *      A human readable summary.
+     */
+    public synchronized String report(
+            final long elapsed
+    )
+    {
+        final long[] sorted = Arrays.copyOf(latencies, count);
+        Arrays.sort(sorted);
+        final double seconds = elapsed / 1e9;
+        return String.format(
+                "requests=%d errors=%d elapsed=%.2fs rps=%.1f p50=%.2fms p99=%.2fms p999=%.2fms max=%.2fms",
+                count, numErrors, seconds, (seconds > 0) ? (count / seconds) : 0.0,
+                percentile(sorted, 0.50), percentile(sorted, 0.99), percentile(sorted, 0.999),
+                (count == 0) ? 0.0 : sorted[count - 1] / 1e6);
+    }
+
+    /**
+     * @return
+     *      A percentile of some sorted latencies (in milliseconds).
+     */
+    private static double percentile(
+            final long[] sorted,
+            final double fraction
+    )
+    {
+        final double result;
+        if (sorted.length == 0) {
+            result = 0.0;
+        }
+        else {
+            final int idx = Math.min(sorted.length - 1, (int)Math.ceil(fraction * sorted.length) - 1);
+            result = sorted[Math.max(idx, 0)] / 1e6;
+        }
+        return result;
+    }
+
+}
\ No newline at end of file
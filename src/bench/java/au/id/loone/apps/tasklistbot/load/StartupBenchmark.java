@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2010  David G Loone
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package au.id.loone.apps.tasklistbot.load;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import au.id.loone.apps.tasklistbot.bot.SyntheticBlip;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+
+/**
+ * Measures cold starts: the time from the robot's classes being loaded to the first event bundle being handled.
+ *
+ * <p>Each run is a fresh JVM,
+ *      which starts an embedded Jetty container with the robot servlet mapped (but not yet loaded),
+ *      and then posts a single synthetic bundle to it.
+ *      The robot's classes are first loaded by that request,
+ *      so the time it takes is the robot's cold start.
+ *      The JVM's uptime when the response arrives is reported as well.</p>
+ *
+ * <p>Options:</p>
+ * <ul>
+ *      <li><b>-runs</b> <i>n</i>: the number of JVMs to start (default 10).</li>
+ *      <li><b>-port</b> <i>n</i>: the port for the embedded container (default 8089).</li>
+ *      <li><b>-synthetic</b> <i>shape</i>:<i>lines</i>: the blip in the bundle (default FLAT:100).</li>
+ * </ul>
+ *
+ * @author David G Loone
+ */
+public final class StartupBenchmark
+{
+
+    /**
+     * The option that makes a JVM do a single run.
+     */
+    private static final String CHILD_OPTION = "-child";
+
+    /**
+     * The start of the line that a single run reports its times on.
+     */
+    private static final String RESULT_PREFIX = "startup:";
+
+    /**
+     */
+    private StartupBenchmark()
+    {
+        super();
+    }
+
+    /**
+     */
+    public static void main(
+            final String[] args
+    )
+            throws Exception
+    {
+        int numRuns = 10;
+        int port = 8089;
+        String synthetic = "FLAT:100";
+        boolean child = false;
+        for (int argIdx = 0; argIdx < args.length; argIdx++) {
+            final String arg = args[argIdx];
+            if (CHILD_OPTION.equals(arg)) {
+                child = true;
+            }
+            else if (argIdx == args.length - 1) {
+                throw new IllegalArgumentException("Missing value for option: " + arg);
+            }
+            else if ("-runs".equals(arg)) {
+                numRuns = Integer.parseInt(args[++argIdx]);
+            }
+            else if ("-port".equals(arg)) {
+                port = Integer.parseInt(args[++argIdx]);
+            }
+            else if ("-synthetic".equals(arg)) {
+                synthetic = args[++argIdx];
+            }
+            else {
+                throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+        }
+
+        if (child) {
+            runOnce(port, synthetic);
+        }
+        else {
+            runAll(numRuns, port, synthetic);
+        }
+    }
+
+    /**
+     * Start a JVM for each run, and report on the times that they come back with.
+     */
+    private static void runAll(
+            final int numRuns,
+            final int port,
+            final String synthetic
+    )
+            throws IOException, InterruptedException
+    {
+        final String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        final long[] firstBundle = new long[numRuns];
+        final long[] uptime = new long[numRuns];
+        for (int runIdx = 0; runIdx < numRuns; runIdx++) {
+            final List<String> command = new ArrayList<String>();
+            command.add(java);
+            command.add("-cp");
+            command.add(System.getProperty("java.class.path"));
+            command.add(StartupBenchmark.class.getName());
+            command.add(CHILD_OPTION);
+            command.add("-port");
+            command.add(String.valueOf(port));
+            command.add("-synthetic");
+            command.add(synthetic);
+            final Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+
+            String result = null;
+            final BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream(), "UTF-8"));
+            try {
+                for (String line = in.readLine(); line != null; line = in.readLine()) {
+                    if (line.startsWith(RESULT_PREFIX)) {
+                        result = line;
+                    }
+                }
+            }
+            finally {
+                in.close();
+            }
+            if ((process.waitFor() != 0) || (result == null)) {
+                throw new IllegalStateException("Run " + runIdx + " failed.");
+            }
+
+            final String[] parts = result.substring(RESULT_PREFIX.length()).trim().split(" ");
+            firstBundle[runIdx] = Long.parseLong(parts[0]);
+            uptime[runIdx] = Long.parseLong(parts[1]);
+        }
+
+        System.out.println("runs=" + numRuns + " synthetic=" + synthetic +
+                " firstBundle(ms): " + summary(firstBundle) + " uptime(ms): " + summary(uptime));
+    }
+
+    /**
+     * A single run: start the container, post a bundle, and print the times.
+     */
+    private static void runOnce(
+            final int port,
+            final String synthetic
+    )
+            throws Exception
+    {
+        final String[] parts = synthetic.split(":");
+        final String bundle = SyntheticBundle.gadgetStateChanged(SyntheticBlip.Shape.valueOf(parts[0]),
+                Integer.parseInt(parts[1]), 0);
+
+        // Map the servlet by name so that it isn't loaded until the first request arrives.
+        final Server server = new Server(port);
+        final ServletContextHandler context = new ServletContextHandler();
+        context.setContextPath("/");
+        context.addServlet("au.id.loone.apps.tasklistbot.bot.TaskListBot", "/_wave/*");
+        server.setHandler(context);
+        server.start();
+        try {
+            final long start = System.nanoTime();
+            if (!BundleReplay.post(new URL("http://localhost:" + port + BundleReplay.RPC_PATH),
+                    BundleReplay.toUtf8(bundle))) {
+                throw new IllegalStateException("The robot didn't accept the bundle.");
+            }
+            final long firstBundle = System.nanoTime() - start;
+            System.out.println(RESULT_PREFIX + " " + (firstBundle / 1000000) + " " +
+                    ManagementFactory.getRuntimeMXBean().getUptime());
+        }
+        finally {
+            server.stop();
+        }
+    }
+
+    /**
+     * @return
+     *      A human readable summary of some times.
+     */
+    private static String summary(
+            final long[] times
+    )
+    {
+        final long[] sorted = Arrays.copyOf(times, times.length);
+        Arrays.sort(sorted);
+        return (sorted.length == 0) ? "none" :
+                ("min=" + sorted[0] + " p50=" + sorted[sorted.length / 2] + " max=" + sorted[sorted.length - 1]);
+    }
+
+}
\ No newline at end of file
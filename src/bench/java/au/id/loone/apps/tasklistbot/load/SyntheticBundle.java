@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2010  David G Loone
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package au.id.loone.apps.tasklistbot.load;
+
+import java.util.Map;
+
+import au.id.loone.apps.tasklistbot.bot.SyntheticBlip;
+
+import com.google.wave.api.Element;
+
+/**
+ * Generates event bundles (in the robot JSON wire format) for a synthetic blip full of task trackers.
+ *
+ * @author David G Loone
+ */
+public final class SyntheticBundle
+{
+
+    /**
+     * The robot that the bundles are addressed to.
+     */
+    private static final String ROBOT_ADDRESS = "tasklistbot@appspot.com";
+
+    /**
+     * The participant that the events are from.
+     */
+    private static final String MODIFIED_BY = "someone@example.com";
+
+    /**
+     */
+    private SyntheticBundle()
+    {
+        super();
+    }
+
+    /**
+     * @param shape
+     *      The indenting structure of the blip.
+     * @param numLines
+     *      The number of lines (trackers) in the blip.
+     * @param blipNum
+     *      Used to give each generated blip its own id.
+     * @return
+     *      A bundle with a single gadget state changed event for the last tracker in the blip.
+     */
+    public static String gadgetStateChanged(
+            final SyntheticBlip.Shape shape,
+            final int numLines,
+            final int blipNum
+    )
+    {
+        return gadgetStateChanged(shape, numLines, blipNum, 1);
+    }
+
+    /**
+     * @param shape
+     *      The indenting structure of the blips.
+     * @param numLines
+     *      The number of lines (trackers) in each blip.
+     * @param firstBlipNum
+     *      Used to give each generated blip its own id (the blips are numbered on from this).
+     * @param numBlips
+     *      The number of blips in the bundle.
+     * @return
+     *      A bundle with a gadget state changed event for the last tracker in each of the blips.
+     */
+    public static String gadgetStateChanged(
+            final SyntheticBlip.Shape shape,
+            final int numLines,
+            final int firstBlipNum,
+            final int numBlips
+    )
+    {
+        final SyntheticBlip blip = new SyntheticBlip(shape, numLines, false);
+        final int lastOffset = blip.getElements().isEmpty() ? 0 :
+                blip.getElements().lastKey();
+
+        final StringBuilder buf = new StringBuilder();
+        buf.append("{\"events\":[");
+        for (int blipIdx = 0; blipIdx < numBlips; blipIdx++) {
+            if (blipIdx > 0) {
+                buf.append(',');
+            }
+            buf.append("{\"type\":\"GADGET_STATE_CHANGED\",");
+            buf.append("\"modifiedBy\":").append(quote(MODIFIED_BY)).append(',');
+            buf.append("\"timestamp\":").append(System.currentTimeMillis()).append(',');
+            buf.append("\"properties\":{\"blipId\":").append(quote("b+" + (firstBlipNum + blipIdx)));
+            buf.append(",\"index\":").append(lastOffset).append(",\"oldState\":{}}}");
+        }
+        buf.append("],");
+        appendWavelet(buf, "b+" + firstBlipNum);
+        buf.append(",\"blips\":{");
+        for (int blipIdx = 0; blipIdx < numBlips; blipIdx++) {
+            final String blipId = "b+" + (firstBlipNum + blipIdx);
+            if (blipIdx > 0) {
+                buf.append(',');
+            }
+            buf.append(quote(blipId)).append(':');
+            appendBlip(buf, blipId, blip);
+        }
+        buf.append("},\"robotAddress\":").append(quote(ROBOT_ADDRESS)).append('}');
+        return buf.toString();
+    }
+
+    /**
+     */
+    private static void appendWavelet(
+            final StringBuilder buf,
+            final String rootBlipId
+    )
+    {
+        buf.append("\"wavelet\":{");
+        buf.append("\"waveId\":\"example.com!w+load\",\"waveletId\":\"example.com!conv+root\",");
+        buf.append("\"creator\":").append(quote(MODIFIED_BY)).append(',');
+        buf.append("\"creationTime\":0,\"lastModifiedTime\":0,\"version\":1,");
+        buf.append("\"participants\":[").append(quote(MODIFIED_BY)).append(',').append(quote(ROBOT_ADDRESS));
+        buf.append("],\"participantRoles\":{},\"dataDocuments\":{},\"tags\":[],\"title\":\"\",");
+        buf.append("\"rootBlipId\":").append(quote(rootBlipId)).append('}');
+    }
+
+    /**
+     */
+    private static void appendBlip(
+            final StringBuilder buf,
+            final String blipId,
+            final SyntheticBlip blip
+    )
+    {
+        buf.append("{\"blipId\":").append(quote(blipId)).append(',');
+        buf.append("\"waveId\":\"example.com!w+load\",\"waveletId\":\"example.com!conv+root\",");
+        buf.append("\"creator\":").append(quote(MODIFIED_BY)).append(',');
+        buf.append("\"contributors\":[").append(quote(MODIFIED_BY)).append("],");
+        buf.append("\"childBlipIds\":[],\"annotations\":[],\"lastModifiedTime\":0,\"version\":1,");
+        buf.append("\"content\":").append(quote(blip.getContent())).append(',');
+        buf.append("\"elements\":{");
+        boolean first = true;
+        for (final Map.Entry<Integer, Element> entry : blip.getElements().entrySet()) {
+            if (!first) {
+                buf.append(',');
+            }
+            first = false;
+            buf.append(quote(String.valueOf(entry.getKey()))).append(":{\"type\":");
+            buf.append(quote(entry.getValue().getType().name())).append(",\"properties\":{");
+            boolean firstProperty = true;
+            for (final Map.Entry<String, String> property : entry.getValue().getProperties().entrySet()) {
+                if (!firstProperty) {
+                    buf.append(',');
+                }
+                firstProperty = false;
+                buf.append(quote(property.getKey())).append(':').append(quote(property.getValue()));
+            }
+            buf.append("}}");
+        }
+        buf.append("}}");
+    }
+
+    /**
+     * @return
+     *      A string as a JSON string literal.
+     */
+    static String quote(
+            final String str
+    )
+    {
+        final StringBuilder result = new StringBuilder(str.length() + 2);
+        result.append('"');
+        for (int idx = 0; idx < str.length(); idx++) {
+            final char ch = str.charAt(idx);
+            switch (ch) {
+                case '"':
+                    result.append("\\\"");
+                    break;
+                case '\\':
+                    result.append("\\\\");
+                    break;
+                case '\n':
+                    result.append("\\n");
+                    break;
+                default:
+                    if (ch < 0x20) {
+                        result.append(String.format("\\u%04x", (int)ch));
+                    }
+                    else {
+                        result.append(ch);
+                    }
+                    break;
+            }
+        }
+        result.append('"');
+        return result.toString();
+    }
+
+}
\ No newline at end of file
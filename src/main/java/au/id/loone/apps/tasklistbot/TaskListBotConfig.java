@@ -36,6 +36,21 @@ public final class TaskListBotConfig
     @SuppressWarnings({"UnusedDeclaration"})
     private static final Logger LOG = TraceUtil.getLogger(TaskListBotConfig.class);
 
+    /**
+     * Current value of the <b>bundleParsing</b> property.
+     */
+    private String bundleParsing;
+
+    /**
+     * Current value of the <b>bundleRecordDir</b> property.
+     */
+    private String bundleRecordDir;
+
+    /**
+     * Current value of the <b>bundleThreads</b> property.
+     */
+    private int bundleThreads;
+
     /**
      * Current value of the <b>consumerData</b> property.
      */
@@ -46,6 +61,16 @@ public final class TaskListBotConfig
      */
     private String consumerKey;
 
+    /**
+     * Current value of the <b>parallelRollupThreshold</b> property.
+     */
+    private int parallelRollupThreshold;
+
+    /**
+     * Current value of the <b>progressReportSize</b> property.
+     */
+    private int progressReportSize;
+
     /**
      * Current value of the <b>robotAvatarUrl</b> property.
      */
@@ -71,6 +96,41 @@ public final class TaskListBotConfig
      */
     private URL taskTrackerGadgetUrl;
 
+    /**
+     * Current value of the <b>traceSampleInterval</b> property.
+     */
+    private int traceSampleInterval;
+
+    /**
+     * Current value of the <b>trackerStateDir</b> property.
+     */
+    private String trackerStateDir;
+
+    /**
+     * Current value of the <b>trackerStateStore</b> property.
+     */
+    private String trackerStateStore;
+
+    /**
+     * Current value of the <b>trackerTreeCacheSize</b> property.
+     */
+    private int trackerTreeCacheSize;
+
+    /**
+     * Current value of the <b>trackerUpdateMode</b> property.
+     */
+    private String trackerUpdateMode;
+
+    /**
+     * Current value of the <b>trackerVersionGuard</b> property.
+     */
+    private String trackerVersionGuard;
+
+    /**
+     * Current value of the <b>updateBudget</b> property.
+     */
+    private int updateBudget;
+
     /**
      * Current value of the <b>verificationToken</b> property.
      */
@@ -90,6 +150,42 @@ public final class TaskListBotConfig
         return new TaskListBotConfig();
     }
 
+    /**
+     * Setter for the <b>bundleParsing</b> property.
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public void setBundleParsing(final String bundleParsing) {this.bundleParsing = bundleParsing;}
+
+    /**
+     * Getter method for the <b>bundleParsing</b> property.
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public String getBundleParsing() {return bundleParsing;}
+
+    /**
+     * Setter for the <b>bundleRecordDir</b> property.
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public void setBundleRecordDir(final String bundleRecordDir) {this.bundleRecordDir = bundleRecordDir;}
+
+    /**
+     * Getter method for the <b>bundleRecordDir</b> property.
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public String getBundleRecordDir() {return bundleRecordDir;}
+
+    /**
+     * Setter for the <b>bundleThreads</b> property.
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public void setBundleThreads(final int bundleThreads) {this.bundleThreads = bundleThreads;}
+
+    /**
+     * Getter method for the <b>bundleThreads</b> property.
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public int getBundleThreads() {return bundleThreads;}
+
     /**
      * Setter for the <b>consumerData</b> property.
      */
@@ -114,6 +210,30 @@ public final class TaskListBotConfig
     @SuppressWarnings({"UnusedDeclaration"})
     public String getConsumerKey() {return consumerKey;}
 
+    /**
+     * Setter for the <b>parallelRollupThreshold</b> property.
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public void setParallelRollupThreshold(final int parallelRollupThreshold) {this.parallelRollupThreshold = parallelRollupThreshold;}
+
+    /**
+     * Getter method for the <b>parallelRollupThreshold</b> property.
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public int getParallelRollupThreshold() {return parallelRollupThreshold;}
+
+    /**
+     * Setter for the <b>progressReportSize</b> property.
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public void setProgressReportSize(final int progressReportSize) {this.progressReportSize = progressReportSize;}
+
+    /**
+     * Getter method for the <b>progressReportSize</b> property.
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public int getProgressReportSize() {return progressReportSize;}
+
     /**
      * Setter for the <b>robotAvatarUrl</b> property.
      */
@@ -174,6 +294,90 @@ public final class TaskListBotConfig
     @SuppressWarnings({"UnusedDeclaration"})
     public URL getTaskTrackerGadgetUrl() {return taskTrackerGadgetUrl;}
 
+    /**
+     * Setter for the <b>traceSampleInterval</b> property.
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public void setTraceSampleInterval(final int traceSampleInterval) {this.traceSampleInterval = traceSampleInterval;}
+
+    /**
+     * Getter method for the <b>traceSampleInterval</b> property.
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public int getTraceSampleInterval() {return traceSampleInterval;}
+
+    /**
+     * Setter for the <b>trackerStateDir</b> property.
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public void setTrackerStateDir(final String trackerStateDir) {this.trackerStateDir = trackerStateDir;}
+
+    /**
+     * Getter method for the <b>trackerStateDir</b> property.
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public String getTrackerStateDir() {return trackerStateDir;}
+
+    /**
+     * Setter for the <b>trackerStateStore</b> property.
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public void setTrackerStateStore(final String trackerStateStore) {this.trackerStateStore = trackerStateStore;}
+
+    /**
+     * Getter method for the <b>trackerStateStore</b> property.
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public String getTrackerStateStore() {return trackerStateStore;}
+
+    /**
+     * Setter for the <b>trackerTreeCacheSize</b> property.
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public void setTrackerTreeCacheSize(final int trackerTreeCacheSize) {this.trackerTreeCacheSize = trackerTreeCacheSize;}
+
+    /**
+     * Getter method for the <b>trackerTreeCacheSize</b> property.
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public int getTrackerTreeCacheSize() {return trackerTreeCacheSize;}
+
+    /**
+     * Setter for the <b>trackerUpdateMode</b> property.
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public void setTrackerUpdateMode(final String trackerUpdateMode) {this.trackerUpdateMode = trackerUpdateMode;}
+
+    /**
+     * Getter method for the <b>trackerUpdateMode</b> property.
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public String getTrackerUpdateMode() {return trackerUpdateMode;}
+
+    /**
+     * Setter for the <b>trackerVersionGuard</b> property.
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public void setTrackerVersionGuard(final String trackerVersionGuard) {this.trackerVersionGuard = trackerVersionGuard;}
+
+    /**
+     * Getter method for the <b>trackerVersionGuard</b> property.
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public String getTrackerVersionGuard() {return trackerVersionGuard;}
+
+    /**
+     * Setter for the <b>updateBudget</b> property.
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public void setUpdateBudget(final int updateBudget) {this.updateBudget = updateBudget;}
+
+    /**
+     * Getter method for the <b>updateBudget</b> property.
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public int getUpdateBudget() {return updateBudget;}
+
     /**
      * Setter for the <b>verificationToken</b> property.
      */
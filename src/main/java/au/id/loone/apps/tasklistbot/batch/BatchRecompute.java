@@ -0,0 +1,294 @@
+/*
+ * Copyright (C) 2010  David G Loone
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package au.id.loone.apps.tasklistbot.batch;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Map;
+import java.util.TreeMap;
+
+import au.id.loone.apps.tasklistbot.core.DocumentRollup;
+import au.id.loone.apps.tasklistbot.core.MarkerScanner;
+import au.id.loone.apps.tasklistbot.core.TrackerRollup;
+
+/**
+ * Recomputes the progress of exported documents, offline and in bulk.
+ *
+ * <p>The input has one document per line,
+ *      each a JSON object in the shape that the robot protocol uses for a blip:
+ *      a <b>blipId</b>, the <b>content</b>,
+ *      and the <b>elements</b> as an object keyed by offset,
+ *      each with a <b>type</b> (<i>eg</i> "LINE" or "GADGET") and <b>properties</b>.
+ *      As in the robot, only the gadgets whose <b>url</b> is the task tracker gadget URL are trackers.
+ *      The output has one JSON object per input line:
+ *      the <b>line</b> number, the <b>blipId</b>, the number of <b>trackers</b> and <b>summaries</b>,
+ *      the overall <b>progress</b>,
+ *      the number of trackers whose state is out of date (<b>changes</b>),
+ *      the number of unconverted <b>markers</b>,
+ *      and the recomputed <b>states</b> of the trackers, in document order
+ *      (each with its <b>offset</b>, <b>id</b>, <b>parent</b> id, <b>progress</b>, <b>readonly</b>,
+ *      and whether it has <b>changed</b> from what the document says),
+ *      so that stored tracker state can be checked against (or brought up to date from) the output.
+ *      A line that can't be processed gets an <b>error</b> instead, and processing carries on.</p>
+ *
+ * <p>Only one document is held in memory at a time, so any number of documents can be processed.</p>
+ *
+ * <p>Options:</p>
+ * <ul>
+ *      <li><b>-in</b> <i>file</i>: the documents (default: standard input).</li>
+ *      <li><b>-out</b> <i>file</i>: where to write the results (default: standard output).</li>
+ *      <li><b>-trackerUrl</b> <i>url</i>: the URL of the task tracker gadget
+ *          (default: {@link #DEFAULT_TRACKER_URL}, as the robot is shipped with).</li>
+ * </ul>
+ *
+ * @author David G Loone
+ */
+public final class BatchRecompute
+{
+
+    /**
+     * The URL of the task tracker gadget if the command line doesn't say.
+     */
+    static final String DEFAULT_TRACKER_URL = "http://tasklistbot.appspot.com/gadgets/TaskTrackerGadget.xml";
+
+    /**
+     * How to run the tool.
+     */
+    private static final String USAGE = "Usage: BatchRecompute [-in file] [-out file] [-trackerUrl url]";
+
+    /**
+     */
+    private BatchRecompute()
+    {
+        super();
+    }
+
+    /**
+     */
+    public static void main(
+            final String[] args
+    )
+            throws IOException
+    {
+        String in = null;
+        String out = null;
+        String trackerUrl = DEFAULT_TRACKER_URL;
+        for (int argIdx = 0; argIdx < args.length; argIdx += 2) {
+            if (argIdx == args.length - 1) {
+                throw new IllegalArgumentException("No value for option: " + args[argIdx] + "\n" + USAGE);
+            }
+            if ("-in".equals(args[argIdx])) {
+                in = args[argIdx + 1];
+            }
+            else if ("-out".equals(args[argIdx])) {
+                out = args[argIdx + 1];
+            }
+            else if ("-trackerUrl".equals(args[argIdx])) {
+                trackerUrl = args[argIdx + 1];
+            }
+            else {
+                throw new IllegalArgumentException("Unknown option: " + args[argIdx] + "\n" + USAGE);
+            }
+        }
+
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(
+                (in == null) ? System.in : new FileInputStream(in), "UTF-8"));
+        final Writer writer = new BufferedWriter(new OutputStreamWriter(
+                (out == null) ? System.out : new FileOutputStream(out), "UTF-8"));
+        final long start = System.nanoTime();
+        int numLines = 0;
+        int numErrors = 0;
+        try {
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                numLines++;
+                if (line.trim().length() == 0) {
+                    continue;
+                }
+                String result;
+                try {
+                    result = process(numLines, line, trackerUrl);
+                }
+                catch (final RuntimeException e) {
+                    numErrors++;
+                    result = "{\"line\":" + numLines + ",\"error\":" + Json.quote(String.valueOf(e.getMessage())) + "}";
+                }
+                writer.write(result);
+                writer.write('\n');
+            }
+        }
+        finally {
+            reader.close();
+            writer.close();
+        }
+
+        System.err.println("lines=" + numLines + " errors=" + numErrors +
+                String.format(" elapsed=%.2fs", (System.nanoTime() - start) / 1e9));
+    }
+
+    /**
+     * Recompute a single document.
+     *
+     * @param lineNum
+     *      The line number of the document.
+     * @param line
+     *      The document.
+     * @param trackerUrl
+     *      The URL of the task tracker gadget.
+     * @return
+     *      The result, as a JSON object.
+     */
+    @SuppressWarnings({"unchecked"})
+    static String process(
+            final int lineNum,
+            final String line,
+            final String trackerUrl
+    )
+    {
+        final Object parsed = Json.parse(line);
+        if (!(parsed instanceof Map)) {
+            throw new IllegalArgumentException("not a JSON object");
+        }
+        final Map<String, Object> doc = (Map<String, Object>)parsed;
+        final String blipId = (doc.get("blipId") == null) ? null : String.valueOf(doc.get("blipId"));
+        final String content = (doc.get("content") == null) ? "" : String.valueOf(doc.get("content"));
+
+        // The elements can come in any order, so put them in document order first.
+        final TreeMap<Integer, Map<String, Object>> elements = new TreeMap<Integer, Map<String, Object>>();
+        if (doc.get("elements") instanceof Map) {
+            for (final Map.Entry<String, Object> entry : ((Map<String, Object>)doc.get("elements")).entrySet()) {
+                if (entry.getValue() instanceof Map) {
+                    elements.put(Integer.valueOf(entry.getKey()), (Map<String, Object>)entry.getValue());
+                }
+            }
+        }
+
+        final DocumentRollup rollup = new DocumentRollup();
+        for (final Map.Entry<Integer, Map<String, Object>> entry : elements.entrySet()) {
+            final Object type = entry.getValue().get("type");
+            final Map<String, Object> properties = (entry.getValue().get("properties") instanceof Map) ?
+                    (Map<String, Object>)entry.getValue().get("properties") : new TreeMap<String, Object>();
+            if ("LINE".equals(type)) {
+                rollup.line(entry.getKey(), property(properties, "lineType"), intProperty(properties, "indent"));
+            }
+            else if ("GADGET".equals(type) && trackerUrl.equals(property(properties, "url"))) {
+                if ("wavelet".equals(property(properties, "scope"))) {
+                    rollup.summary(entry.getKey());
+                }
+                else {
+                    rollup.tracker(entry.getKey(), property(properties, "taskTrackerId"),
+                            intProperty(properties, "progress"), Boolean.parseBoolean(property(properties, "readonly")));
+                }
+            }
+        }
+        final int progress = rollup.rollup();
+
+        final MarkerScanner.ListItems listItems = new MarkerScanner.ListItems() {
+            public boolean isListItem(
+                    final int offset
+            )
+            {
+                final Map<String, Object> el = elements.get(offset);
+                return (el != null) && "LINE".equals(el.get("type")) && (el.get("properties") instanceof Map) &&
+                        "li".equals(property((Map<String, Object>)el.get("properties"), "lineType"));
+            }
+        };
+        final int numMarkers =
+                MarkerScanner.find(content, listItems, 0, Integer.MAX_VALUE, MarkerScanner.MARKER).length +
+                MarkerScanner.find(content, listItems, 0, Integer.MAX_VALUE, MarkerScanner.SUMMARY_MARKER).length;
+
+        return "{\"line\":" + lineNum +
+                ",\"blipId\":" + ((blipId == null) ? "null" : Json.quote(blipId)) +
+                ",\"trackers\":" + rollup.getRollup().getSize() +
+                ",\"summaries\":" + rollup.getNumSummaries() +
+                ",\"progress\":" + progress +
+                ",\"changes\":" + rollup.getNumChanges() +
+                ",\"markers\":" + numMarkers +
+                ",\"states\":" + states(rollup) + "}";
+    }
+
+    /**
+     * @param rollup
+     *      A rolled up document.
+     * @return
+     *      The recomputed state of each of the document's trackers, as a JSON array.
+     */
+    private static String states(
+            final DocumentRollup rollup
+    )
+    {
+        final TrackerRollup trackers = rollup.getRollup();
+        final StringBuilder result = new StringBuilder("[");
+        for (int idx = 0; idx < trackers.getSize(); idx++) {
+            final int parentIdx = trackers.getParent(idx);
+            final String trackerId = rollup.getTrackerId(idx);
+            final String parentId = (parentIdx == -1) ? null : rollup.getTrackerId(parentIdx);
+            if (idx > 0) {
+                result.append(',');
+            }
+            result.append("{\"offset\":").append(rollup.getOffset(idx))
+                    .append(",\"id\":").append((trackerId == null) ? "null" : Json.quote(trackerId))
+                    .append(",\"parent\":").append((parentId == null) ? "null" : Json.quote(parentId))
+                    .append(",\"progress\":").append(trackers.getTargetProgress(idx))
+                    .append(",\"readonly\":").append(trackers.getTargetReadonly(idx))
+                    .append(",\"changed\":").append(trackers.isChanged(idx)).append('}');
+        }
+        return result.append(']').toString();
+    }
+
+    /**
+     * @return
+     *      An element property as a string, or null if it isn't there.
+     */
+    private static String property(
+            final Map<String, Object> properties,
+            final String name
+    )
+    {
+        final Object value = properties.get(name);
+        return (value == null) ? null : String.valueOf(value);
+    }
+
+    /**
+     * @return
+     *      An element property as an integer, or zero if it isn't there.
+     */
+    private static int intProperty(
+            final Map<String, Object> properties,
+            final String name
+    )
+    {
+        final Object value = properties.get(name);
+        final int result;
+        if (value instanceof Number) {
+            result = ((Number)value).intValue();
+        }
+        else if ((value == null) || (String.valueOf(value).length() == 0)) {
+            result = 0;
+        }
+        else {
+            result = Integer.parseInt(String.valueOf(value));
+        }
+        return result;
+    }
+
+}
\ No newline at end of file
@@ -0,0 +1,396 @@
+/*
+ * Copyright (C) 2010  David G Loone
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package au.id.loone.apps.tasklistbot.batch;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Just enough JSON for reading and writing one document per line.
+ *
+ * <p>Objects are read as maps (in the order their members appear), arrays as lists,
+ *      numbers as doubles, and the rest as strings, booleans and nulls.
+ *      Values of those types can be written back out.</p>
+ *
+ * @author David G Loone
+ */
+public final class Json
+{
+
+    /**
+     * The text being parsed.
+     */
+    private final String text;
+
+    /**
+     * The position of the next character to parse.
+     */
+    private int pos;
+
+    /**
+     */
+    private Json(
+            final String text
+    )
+    {
+        super();
+
+        this.text = text;
+        pos = 0;
+    }
+
+    /**
+     * @param text
+     *      Some JSON.
+     * @return
+     *      The value.
+     * @throws IllegalArgumentException
+     *      If the text isn't valid JSON.
+     */
+    public static Object parse(
+            final String text
+    )
+    {
+        final Json parser = new Json(text);
+        final Object result = parser.value();
+        parser.skipWhitespace();
+        if (parser.pos != text.length()) {
+            throw parser.error("trailing characters");
+        }
+        return result;
+    }
+
+    /**
+     * @return
+     *      A string as a JSON string literal.
+     */
+    public static String quote(
+            final String str
+    )
+    {
+        final StringBuilder result = new StringBuilder(str.length() + 2);
+        result.append('"');
+        for (int idx = 0; idx < str.length(); idx++) {
+            final char c = str.charAt(idx);
+            switch (c) {
+                case '"':
+                    result.append("\\\"");
+                    break;
+                case '\\':
+                    result.append("\\\\");
+                    break;
+                case '\n':
+                    result.append("\\n");
+                    break;
+                case '\r':
+                    result.append("\\r");
+                    break;
+                case '\t':
+                    result.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        result.append(String.format("\\u%04x", (int)c));
+                    }
+                    else {
+                        result.append(c);
+                    }
+            }
+        }
+        result.append('"');
+        return result.toString();
+    }
+
+    /**
+     * @param value
+     *      A value, as read by {@link #parse(String)}.
+     * @return
+     *      The value as JSON (numbers with no fraction are written as integers).
+     */
+    public static String write(
+            final Object value
+    )
+    {
+        final StringBuilder result = new StringBuilder();
+        write(value, result);
+        return result.toString();
+    }
+
+    /**
+     */
+    private static void write(
+            final Object value,
+            final StringBuilder buf
+    )
+    {
+        if (value instanceof Map) {
+            buf.append('{');
+            boolean first = true;
+            for (final Map.Entry<?, ?> entry : ((Map<?, ?>)value).entrySet()) {
+                if (!first) {
+                    buf.append(',');
+                }
+                first = false;
+                buf.append(quote(String.valueOf(entry.getKey()))).append(':');
+                write(entry.getValue(), buf);
+            }
+            buf.append('}');
+        }
+        else if (value instanceof List) {
+            buf.append('[');
+            boolean first = true;
+            for (final Object element : (List<?>)value) {
+                if (!first) {
+                    buf.append(',');
+                }
+                first = false;
+                write(element, buf);
+            }
+            buf.append(']');
+        }
+        else if (value instanceof String) {
+            buf.append(quote((String)value));
+        }
+        else if ((value instanceof Double) && (((Double)value) == Math.rint((Double)value)) &&
+                !((Double)value).isInfinite()) {
+            buf.append(((Double)value).longValue());
+        }
+        else {
+            buf.append(value);
+        }
+    }
+
+    /**
+     * @return
+     *      The next value.
+     */
+    private Object value()
+    {
+        skipWhitespace();
+        if (pos == text.length()) {
+            throw error("unexpected end");
+        }
+
+        final Object result;
+        final char c = text.charAt(pos);
+        if (c == '{') {
+            result = object();
+        }
+        else if (c == '[') {
+            result = array();
+        }
+        else if (c == '"') {
+            result = string();
+        }
+        else if (text.startsWith("true", pos)) {
+            pos += 4;
+            result = Boolean.TRUE;
+        }
+        else if (text.startsWith("false", pos)) {
+            pos += 5;
+            result = Boolean.FALSE;
+        }
+        else if (text.startsWith("null", pos)) {
+            pos += 4;
+            result = null;
+        }
+        else {
+            result = number();
+        }
+        return result;
+    }
+
+    /**
+     * @return
+     *      The next object.
+     */
+    private Map<String, Object> object()
+    {
+        final Map<String, Object> result = new LinkedHashMap<String, Object>();
+        pos++;
+        skipWhitespace();
+        if (peek() == '}') {
+            pos++;
+            return result;
+        }
+        while (true) {
+            skipWhitespace();
+            if (peek() != '"') {
+                throw error("expected a member name");
+            }
+            final String name = string();
+            skipWhitespace();
+            expect(':');
+            result.put(name, value());
+            skipWhitespace();
+            if (peek() == ',') {
+                pos++;
+            }
+            else {
+                expect('}');
+                return result;
+            }
+        }
+    }
+
+    /**
+     * @return
+     *      The next array.
+     */
+    private List<Object> array()
+    {
+        final List<Object> result = new ArrayList<Object>();
+        pos++;
+        skipWhitespace();
+        if (peek() == ']') {
+            pos++;
+            return result;
+        }
+        while (true) {
+            result.add(value());
+            skipWhitespace();
+            if (peek() == ',') {
+                pos++;
+            }
+            else {
+                expect(']');
+                return result;
+            }
+        }
+    }
+
+    /**
+     * @return
+     *      The next string.
+     */
+    private String string()
+    {
+        final StringBuilder result = new StringBuilder();
+        pos++;
+        while (true) {
+            if (pos >= text.length()) {
+                throw error("unterminated string");
+            }
+            final char c = text.charAt(pos++);
+            if (c == '"') {
+                return result.toString();
+            }
+            else if (c != '\\') {
+                result.append(c);
+            }
+            else {
+                if (pos >= text.length()) {
+                    throw error("unterminated string");
+                }
+                final char escaped = text.charAt(pos++);
+                switch (escaped) {
+                    case 'b':
+                        result.append('\b');
+                        break;
+                    case 'f':
+                        result.append('\f');
+                        break;
+                    case 'n':
+                        result.append('\n');
+                        break;
+                    case 'r':
+                        result.append('\r');
+                        break;
+                    case 't':
+                        result.append('\t');
+                        break;
+                    case 'u':
+                        if (pos + 4 > text.length()) {
+                            throw error("bad unicode escape");
+                        }
+                        result.append((char)Integer.parseInt(text.substring(pos, pos + 4), 16));
+                        pos += 4;
+                        break;
+                    default:
+                        result.append(escaped);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return
+     *      The next number.
+     */
+    private Double number()
+    {
+        final int start = pos;
+        while ((pos < text.length()) && ("+-0123456789.eE".indexOf(text.charAt(pos)) != -1)) {
+            pos++;
+        }
+        if (pos == start) {
+            throw error("unexpected character");
+        }
+        try {
+            return Double.valueOf(text.substring(start, pos));
+        }
+        catch (final NumberFormatException e) {
+            throw error("bad number");
+        }
+    }
+
+    /**
+     * @return
+     *      The next character (without moving past it), or zero at the end.
+     */
+    private char peek()
+    {
+        return (pos < text.length()) ? text.charAt(pos) : 0;
+    }
+
+    /**
+     * Move past a character that must be next.
+     */
+    private void expect(
+            final char c
+    )
+    {
+        if (peek() != c) {
+            throw error("expected '" + c + "'");
+        }
+        pos++;
+    }
+
+    /**
+     * Move past any whitespace.
+     */
+    private void skipWhitespace()
+    {
+        while ((pos < text.length()) && Character.isWhitespace(text.charAt(pos))) {
+            pos++;
+        }
+    }
+
+    /**
+     * @return
+     *      An exception for a parse error at the current position.
+     */
+    private IllegalArgumentException error(
+            final String message
+    )
+    {
+        return new IllegalArgumentException("JSON " + message + " at " + pos);
+    }
+
+}
\ No newline at end of file
@@ -0,0 +1,408 @@
+/*
+ * Copyright (C) 2010  David G Loone
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package au.id.loone.apps.tasklistbot.bot;
+
+import au.id.loone.apps.tasklistbot.metrics.Counter;
+import au.id.loone.apps.tasklistbot.metrics.Histogram;
+import au.id.loone.apps.tasklistbot.metrics.MetricsRegistry;
+
+import com.google.wave.api.event.Event;
+
+/**
+ * The metrics for the hot paths of the robot.
+ *
+ * @author David G Loone
+ */
+final class BotMetrics
+{
+
+    /**
+     * Bucket upper bounds for the number of trackers in a blip.
+     */
+    private static final double[] TRACKER_BOUNDS = {0, 1, 10, 100, 1000, 10000, 100000};
+
+    /**
+     * Bucket upper bounds for the depth of a tracker tree.
+     */
+    private static final double[] DEPTH_BOUNDS = {1, 2, 4, 8, 16, 32, 64, 128};
+
+    /**
+     * Bucket upper bounds for the size of a bundle (in bytes).
+     */
+    private static final double[] BYTES_BOUNDS = {1024, 4096, 16384, 65536, 262144, 1048576, 4194304};
+
+    /**
+     * The metrics for each kind of event that the robot handles.
+     */
+    static final EventMetrics BLIP_SUBMITTED = new EventMetrics("BLIP_SUBMITTED");
+
+    /**
+     */
+    static final EventMetrics DOCUMENT_CHANGED = new EventMetrics("DOCUMENT_CHANGED");
+
+    /**
+     */
+    static final EventMetrics GADGET_STATE_CHANGED = new EventMetrics("GADGET_STATE_CHANGED");
+
+    /**
+     * Time taken by a full check of a blip.
+     */
+    static final Histogram CHECK_TRACKERS_SECONDS = MetricsRegistry.getDefault().histogram(
+            "tasklistbot_check_trackers_seconds", "",
+            "Time taken to check all the trackers in a blip.", Histogram.LATENCY_BOUNDS);
+
+    /**
+     * Time taken to write tracker state changes back to a blip.
+     */
+    static final Histogram SET_TRACKER_STATES_SECONDS = MetricsRegistry.getDefault().histogram(
+            "tasklistbot_set_tracker_states_seconds", "",
+            "Time taken to write tracker state changes back to a blip.", Histogram.LATENCY_BOUNDS);
+
+    /**
+     * Number of trackers found by a full check of a blip.
+     */
+    static final Histogram TRACKERS = MetricsRegistry.getDefault().histogram(
+            "tasklistbot_trackers", "",
+            "Number of trackers in a blip when it is fully checked.", TRACKER_BOUNDS);
+
+    /**
+     * Depth of the tree found by a full check of a blip.
+     */
+    static final Histogram TREE_DEPTH = MetricsRegistry.getDefault().histogram(
+            "tasklistbot_tree_depth", "",
+            "Depth of the tracker tree in a blip when it is fully checked.", DEPTH_BOUNDS);
+
+    /**
+     * Number of checks done incrementally (from the cached tree) instead of in full.
+     */
+    static final Counter INCREMENTAL_CHECKS = MetricsRegistry.getDefault().counter(
+            "tasklistbot_checks_total", "mode=\"incremental\"",
+            "Number of times the trackers in a blip were checked.");
+
+    /**
+     * Number of checks done in full.
+     */
+    static final Counter FULL_CHECKS = MetricsRegistry.getDefault().counter(
+            "tasklistbot_checks_total", "mode=\"full\"",
+            "Number of times the trackers in a blip were checked.");
+
+    /**
+     * Number of checks skipped because the blip hadn't changed since its tree was saved.
+     */
+    static final Counter UNCHANGED_CHECKS = MetricsRegistry.getDefault().counter(
+            "tasklistbot_checks_total", "mode=\"unchanged\"",
+            "Number of times the trackers in a blip were checked.");
+
+    /**
+     * Number of full checks skipped because the tracker structure of the blip hadn't changed.
+     */
+    static final Counter FINGERPRINT_SKIPPED = MetricsRegistry.getDefault().counter(
+            "tasklistbot_fingerprint_checks_total", "result=\"skipped\"",
+            "Number of times a blip's tracker fingerprint was compared, by whether the full check was skipped.");
+
+    /**
+     * Number of full checks done because the tracker structure of the blip had changed.
+     */
+    static final Counter FINGERPRINT_CHANGED = MetricsRegistry.getDefault().counter(
+            "tasklistbot_fingerprint_checks_total", "result=\"changed\"",
+            "Number of times a blip's tracker fingerprint was compared, by whether the full check was skipped.");
+
+    /**
+     * The tracker update metrics when trackers are updated in place.
+     */
+    static final UpdateMetrics DELTA_MODE_UPDATES = new UpdateMetrics("delta");
+
+    /**
+     * The tracker update metrics when trackers are replaced.
+     */
+    static final UpdateMetrics REPLACE_MODE_UPDATES = new UpdateMetrics("replace");
+
+    /**
+     * Number of trackers updated in place.
+     */
+    static final Counter DELTA_UPDATES = MetricsRegistry.getDefault().counter(
+            "tasklistbot_tracker_writes_total", "mode=\"delta\"",
+            "Number of trackers written back, by whether they were updated in place or replaced.");
+
+    /**
+     * Number of trackers replaced.
+     */
+    static final Counter REPLACE_UPDATES = MetricsRegistry.getDefault().counter(
+            "tasklistbot_tracker_writes_total", "mode=\"replace\"",
+            "Number of trackers written back, by whether they were updated in place or replaced.");
+
+    /**
+     * Number of times a request gave up writing to a blip because another request had already written fresher state.
+     */
+    static final Counter VERSION_CONFLICTS = MetricsRegistry.getDefault().counter(
+            "tasklistbot_version_conflicts_total", "",
+            "Number of times writing tracker state to a blip was given up because of a racing write.");
+
+    /**
+     * Number of tracker changes held back because the request was over its budget.
+     */
+    static final Counter DEFERRED_UPDATES = MetricsRegistry.getDefault().counter(
+            "tasklistbot_deferred_updates_total", "result=\"deferred\"",
+            "Number of tracker changes held back by the per-request budget, and carried on with later.");
+
+    /**
+     * Number of held back tracker changes carried on with by a later request.
+     */
+    static final Counter RESUMED_UPDATES = MetricsRegistry.getDefault().counter(
+            "tasklistbot_deferred_updates_total", "result=\"resumed\"",
+            "Number of tracker changes held back by the per-request budget, and carried on with later.");
+
+    /**
+     * Number of bundles whose blips were worked out in parallel.
+     */
+    static final Counter PARALLEL_BUNDLES = MetricsRegistry.getDefault().counter(
+            "tasklistbot_parallel_bundles_total", "",
+            "Number of bundles whose blips were worked out in parallel.");
+
+    /**
+     * Number of checks avoided by folding several events for the same blip into one check.
+     */
+    static final Counter CHECKS_AVOIDED = MetricsRegistry.getDefault().counter(
+            "tasklistbot_checks_avoided_total", "",
+            "Number of checks of a blip avoided by folding several events for it into one check.");
+
+    /**
+     * Number of blips checked per bundle.
+     */
+    static final Histogram BUNDLE_BLIPS = MetricsRegistry.getDefault().histogram(
+            "tasklistbot_bundle_blips", "",
+            "Number of blips checked after a bundle of events has been dispatched.", TRACKER_BOUNDS);
+
+    /**
+     * Number of events per bundle.
+     */
+    static final Histogram BUNDLE_EVENTS = MetricsRegistry.getDefault().histogram(
+            "tasklistbot_bundle_events", "",
+            "Number of events in a bundle.", TRACKER_BOUNDS);
+
+    /**
+     * Size of each bundle posted to the robot.
+     * Together with {@link #BUNDLE_EVENTS} this gives the bytes received per event.
+     */
+    static final Histogram BUNDLE_BYTES = MetricsRegistry.getDefault().histogram(
+            "tasklistbot_bundle_bytes", "",
+            "Size of a bundle posted to the robot (in bytes).", BYTES_BOUNDS);
+
+    /**
+     * Number of bundles answered from a lazy scan, without being deserialised.
+     */
+    static final Counter LAZY_SKIPPED = MetricsRegistry.getDefault().counter(
+            "tasklistbot_lazy_bundles_total", "result=\"skipped\"",
+            "Number of bundles scanned before being deserialised, by whether they needed deserialising.");
+
+    /**
+     * Number of bundles that were scanned, but then needed deserialising.
+     */
+    static final Counter LAZY_FULL = MetricsRegistry.getDefault().counter(
+            "tasklistbot_lazy_bundles_total", "result=\"full\"",
+            "Number of bundles scanned before being deserialised, by whether they needed deserialising.");
+
+    /**
+     * Time taken to scan a bundle.
+     */
+    static final Histogram LAZY_SCAN_SECONDS = MetricsRegistry.getDefault().histogram(
+            "tasklistbot_lazy_scan_seconds", "",
+            "Time taken to scan a bundle before deciding whether to deserialise it.", Histogram.LATENCY_BOUNDS);
+
+    /**
+     */
+    private BotMetrics()
+    {
+        super();
+    }
+
+    /**
+     * @param event
+     *      An event.
+     * @return
+     *      The metrics for the event's kind, or null if the robot doesn't handle it.
+     */
+    static EventMetrics forEvent(
+            final Event event
+    )
+    {
+        final EventMetrics result;
+        switch (event.getType()) {
+            case BLIP_SUBMITTED:
+                result = BLIP_SUBMITTED;
+                break;
+            case DOCUMENT_CHANGED:
+                result = DOCUMENT_CHANGED;
+                break;
+            case GADGET_STATE_CHANGED:
+                result = GADGET_STATE_CHANGED;
+                break;
+            default:
+                result = null;
+                break;
+        }
+        return result;
+    }
+
+    /**
+     * @param deltaUpdates
+     *      Whether trackers are updated in place (otherwise they are replaced).
+     * @return
+     *      The tracker update metrics for the mode.
+     */
+    static UpdateMetrics forMode(
+            final boolean deltaUpdates
+    )
+    {
+        return deltaUpdates ? DELTA_MODE_UPDATES : REPLACE_MODE_UPDATES;
+    }
+
+    /**
+     * The metrics for one kind of event.
+     */
+    static final class EventMetrics
+    {
+
+        /**
+         * Number of events handled.
+         */
+        final Counter events;
+
+        /**
+         * Number of events whose handling failed.
+         */
+        final Counter errors;
+
+        /**
+         * Number of events dropped because they have nothing to do with task trackers.
+         */
+        final Counter rejected;
+
+        /**
+         * Time taken to dispatch an event
+         * (which only notes the blip to check once the whole bundle has been dispatched).
+         */
+        final Histogram seconds;
+
+        /**
+         * Time taken to check a blip and write back its trackers, for the event that first asked for it.
+         */
+        final Histogram recomputeSeconds;
+
+        /**
+         * @param eventType
+         *      The kind of event.
+         */
+        EventMetrics(
+                final String eventType
+        )
+        {
+            super();
+
+            final String labels = "event=\"" + eventType + "\"";
+            events = MetricsRegistry.getDefault().counter("tasklistbot_events_total", labels,
+                    "Number of events handled.");
+            errors = MetricsRegistry.getDefault().counter("tasklistbot_event_errors_total", labels,
+                    "Number of events whose handling failed.");
+            rejected = MetricsRegistry.getDefault().counter("tasklistbot_events_rejected_total", labels,
+                    "Number of events dropped because they have nothing to do with task trackers.");
+            seconds = MetricsRegistry.getDefault().histogram("tasklistbot_event_seconds", labels,
+                    "Time taken to dispatch an event, before its blip is checked.", Histogram.LATENCY_BOUNDS);
+            recomputeSeconds = MetricsRegistry.getDefault().histogram("tasklistbot_recompute_seconds", labels,
+                    "Time taken to check a blip and write back its trackers, by the event that first asked for it.",
+                    Histogram.LATENCY_BOUNDS);
+        }
+
+        /**
+         * Record that an event has been handled.
+         *
+         * @param start
+         *      The value of {@link System#nanoTime()} when handling of the event started.
+         * @param succeeded
+         *      Whether handling the event succeeded.
+         */
+        void done(
+                final long start,
+                final boolean succeeded
+        )
+        {
+            events.inc();
+            if (!succeeded) {
+                errors.inc();
+            }
+            seconds.observeSince(start);
+        }
+
+        /**
+         * Record that a blip has been checked for an event of this kind.
+         *
+         * @param nanos
+         *      The time taken to check the blip (in nanoseconds).
+         * @param succeeded
+         *      Whether the check succeeded.
+         */
+        void recomputed(
+                final long nanos,
+                final boolean succeeded
+        )
+        {
+            if (!succeeded) {
+                errors.inc();
+            }
+            recomputeSeconds.observe(nanos / 1e9);
+        }
+
+    }
+
+    /**
+     * The metrics for the tracker updates worked out in one mode of writing them back.
+     */
+    static final class UpdateMetrics
+    {
+
+        /**
+         * Number of tracker updates issued.
+         */
+        final Counter issued;
+
+        /**
+         * Number of trackers checked that didn't need updating.
+         */
+        final Counter skipped;
+
+        /**
+         * @param mode
+         *      The mode of writing tracker updates back ("delta" or "replace").
+         */
+        UpdateMetrics(
+                final String mode
+        )
+        {
+            super();
+
+            final String labels = "mode=\"" + mode + "\"";
+            issued = MetricsRegistry.getDefault().counter("tasklistbot_tracker_updates_total",
+                    labels + ",result=\"issued\"",
+                    "Number of trackers whose state was checked, by whether an update had to be issued.");
+            skipped = MetricsRegistry.getDefault().counter("tasklistbot_tracker_updates_total",
+                    labels + ",result=\"skipped\"",
+                    "Number of trackers whose state was checked, by whether an update had to be issued.");
+        }
+
+    }
+
+}
\ No newline at end of file
@@ -0,0 +1,311 @@
+/*
+ * Copyright (C) 2010  David G Loone
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package au.id.loone.apps.tasklistbot.bot;
+
+import java.net.URL;
+
+import au.id.loone.apps.tasklistbot.TaskListBotConfig;
+import au.id.loone.util.DGLStringUtil;
+import au.id.loone.util.tracing.TraceUtil;
+
+import org.apache.log4j.Logger;
+
+/**
+ * An immutable snapshot of the robot's configuration,
+ * with anything derived from it (<i>eg</i> URL strings) worked out up front.
+ *
+ * <p>{@link TaskListBotConfig} loads its properties reflectively,
+ *      so it is only ever loaded once (the first time that the snapshot is asked for),
+ *      and the hot paths never go back to it.</p>
+ *
+ * @author David G Loone
+ */
+final class BotSettings
+{
+
+    @SuppressWarnings({"UnusedDeclaration"})
+    private static final Logger LOG = TraceUtil.getLogger(BotSettings.class);
+
+    /**
+     * Current value of the <b>bundleRecordDir</b> property.
+     */
+    private final String bundleRecordDir;
+
+    /**
+     * Current value of the <b>bundleThreads</b> property.
+     */
+    private final int bundleThreads;
+
+    /**
+     * Current value of the <b>deltaUpdates</b> property.
+     */
+    private final boolean deltaUpdates;
+
+    /**
+     * Current value of the <b>lazyBundles</b> property.
+     */
+    private final boolean lazyBundles;
+
+    /**
+     * Current value of the <b>parallelRollupThreshold</b> property.
+     */
+    private final int parallelRollupThreshold;
+
+    /**
+     * Current value of the <b>progressReportSize</b> property.
+     */
+    private final int progressReportSize;
+
+    /**
+     * Current value of the <b>robotAvatarUrl</b> property.
+     */
+    private final String robotAvatarUrl;
+
+    /**
+     * Current value of the <b>robotName</b> property.
+     */
+    private final String robotName;
+
+    /**
+     * Current value of the <b>robotProfilePageUrl</b> property.
+     */
+    private final String robotProfilePageUrl;
+
+    /**
+     * Current value of the <b>securityToken</b> property.
+     */
+    private final String securityToken;
+
+    /**
+     * Current value of the <b>taskTrackerGadgetUrl</b> property.
+     */
+    private final String taskTrackerGadgetUrl;
+
+    /**
+     * Current value of the <b>traceSampleInterval</b> property.
+     */
+    private final int traceSampleInterval;
+
+    /**
+     * Current value of the <b>trackerStateDir</b> property.
+     */
+    private final String trackerStateDir;
+
+    /**
+     * Current value of the <b>trackerStateStore</b> property.
+     */
+    private final String trackerStateStore;
+
+    /**
+     * Current value of the <b>trackerTreeCacheSize</b> property.
+     */
+    private final int trackerTreeCacheSize;
+
+    /**
+     * Current value of the <b>trackerVersionGuard</b> property.
+     */
+    private final String trackerVersionGuard;
+
+    /**
+     * Current value of the <b>updateBudget</b> property.
+     */
+    private final int updateBudget;
+
+    /**
+     * Current value of the <b>verificationToken</b> property.
+     */
+    private final String verificationToken;
+
+    /**
+     * @param config
+     *      The config to take the snapshot of.
+     */
+    BotSettings(
+            final TaskListBotConfig config
+    )
+    {
+        super();
+
+        bundleRecordDir = config.getBundleRecordDir();
+        bundleThreads = config.getBundleThreads();
+        deltaUpdates = !"replace".equals(config.getTrackerUpdateMode());
+        lazyBundles = "lazy".equals(config.getBundleParsing());
+        parallelRollupThreshold = config.getParallelRollupThreshold();
+        progressReportSize = config.getProgressReportSize();
+        robotAvatarUrl = toString(config.getRobotAvatarUrl());
+        robotName = config.getRobotName();
+        robotProfilePageUrl = toString(config.getRobotProfilePageUrl());
+        securityToken = config.getSecurityToken();
+        taskTrackerGadgetUrl = toString(config.getTaskTrackerGadgetUrl());
+        traceSampleInterval = config.getTraceSampleInterval();
+        trackerStateDir = config.getTrackerStateDir();
+        trackerStateStore = config.getTrackerStateStore();
+        trackerTreeCacheSize = config.getTrackerTreeCacheSize();
+        trackerVersionGuard = config.getTrackerVersionGuard();
+        updateBudget = config.getUpdateBudget();
+        verificationToken = config.getVerificationToken();
+
+        if (DGLStringUtil.isNullOrEmpty(taskTrackerGadgetUrl)) {
+            LOG.warn("BotSettings: no taskTrackerGadgetUrl, so no gadget will be taken to be a task tracker");
+        }
+    }
+
+    /**
+     * @return
+     *      The snapshot of the robot's configuration.
+     */
+    static BotSettings get()
+    {
+        return Holder.INSTANCE;
+    }
+
+    /**
+     * @return
+     *      A URL as a string, or null if there is no URL.
+     */
+    private static String toString(
+            final URL url
+    )
+    {
+        return (url == null) ? null : url.toString();
+    }
+
+    /**
+     * Getter method for the <b>bundleRecordDir</b> property.
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public String getBundleRecordDir() {return bundleRecordDir;}
+
+    /**
+     * Getter method for the <b>bundleThreads</b> property.
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public int getBundleThreads() {return bundleThreads;}
+
+    /**
+     * Getter method for the <b>deltaUpdates</b> property.
+     * This is whether trackers are updated in place (instead of being replaced).
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public boolean isDeltaUpdates() {return deltaUpdates;}
+
+    /**
+     * Getter method for the <b>lazyBundles</b> property.
+     * This is whether bundles are scanned for anything to do before they are fully deserialised.
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public boolean isLazyBundles() {return lazyBundles;}
+
+    /**
+     * Getter method for the <b>parallelRollupThreshold</b> property.
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public int getParallelRollupThreshold() {return parallelRollupThreshold;}
+
+    /**
+     * Getter method for the <b>progressReportSize</b> property.
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public int getProgressReportSize() {return progressReportSize;}
+
+    /**
+     * Getter method for the <b>robotAvatarUrl</b> property.
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public String getRobotAvatarUrl() {return robotAvatarUrl;}
+
+    /**
+     * Getter method for the <b>robotName</b> property.
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public String getRobotName() {return robotName;}
+
+    /**
+     * Getter method for the <b>robotProfilePageUrl</b> property.
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public String getRobotProfilePageUrl() {return robotProfilePageUrl;}
+
+    /**
+     * Getter method for the <b>securityToken</b> property.
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public String getSecurityToken() {return securityToken;}
+
+    /**
+     * Getter method for the <b>taskTrackerGadgetUrl</b> property.
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public String getTaskTrackerGadgetUrl() {return taskTrackerGadgetUrl;}
+
+    /**
+     * Getter method for the <b>traceSampleInterval</b> property.
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public int getTraceSampleInterval() {return traceSampleInterval;}
+
+    /**
+     * Getter method for the <b>trackerStateDir</b> property.
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public String getTrackerStateDir() {return trackerStateDir;}
+
+    /**
+     * Getter method for the <b>trackerStateStore</b> property.
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public String getTrackerStateStore() {return trackerStateStore;}
+
+    /**
+     * Getter method for the <b>trackerTreeCacheSize</b> property.
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public int getTrackerTreeCacheSize() {return trackerTreeCacheSize;}
+
+    /**
+     * Getter method for the <b>trackerVersionGuard</b> property.
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public String getTrackerVersionGuard() {return trackerVersionGuard;}
+
+    /**
+     * Getter method for the <b>updateBudget</b> property.
+     * This is the most tracker changes to write back to a blip per request (zero or less for no limit).
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public int getUpdateBudget() {return updateBudget;}
+
+    /**
+     * Getter method for the <b>verificationToken</b> property.
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public String getVerificationToken() {return verificationToken;}
+
+    /**
+     * Holds the snapshot, so that it isn't taken until it is first asked for.
+     */
+    private static final class Holder
+    {
+
+        /**
+         * The snapshot.
+         */
+        static final BotSettings INSTANCE = new BotSettings(TaskListBotConfig.factory());
+
+    }
+
+}
\ No newline at end of file
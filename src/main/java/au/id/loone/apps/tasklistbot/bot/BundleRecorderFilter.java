@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2010  David G Loone
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package au.id.loone.apps.tasklistbot.bot;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+
+import au.id.loone.util.DGLStringUtil;
+import au.id.loone.util.tracing.TraceUtil;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Records the event bundles posted to the robot, so that they can be replayed later,
+ * and measures how big they are.
+ *
+ * <p>Recording is off unless the <b>bundleRecordDir</b> config property is set.
+ *      When it is on, the body of every POST is written to its own file in that directory,
+ *      with anything that looks like a token or an OAuth parameter blanked out.
+ *      Headers and query strings are never recorded.
+ *      This is meant for a local or staging server:
+ *      App Engine itself won't allow the files to be written.</p>
+ *
+ * @author David G Loone
+ */
+public final class BundleRecorderFilter
+        implements Filter
+{
+
+    @SuppressWarnings({"UnusedDeclaration"})
+    private static final Logger LOG = TraceUtil.getLogger(BundleRecorderFilter.class);
+
+    /**
+     * Matches JSON string members whose names look like they hold a secret.
+     */
+    private static final Pattern SECRET_PATTERN = Pattern.compile(
+            "(\"[A-Za-z_]*(?:[Tt]oken|[Ss]ecret|[Ss]ignature|oauth_[A-Za-z_]*)\"\\s*:\\s*\")(?:[^\"\\\\]|\\\\.)*(\")");
+
+    /**
+     * Used to make the file names unique.
+     */
+    private static final AtomicLong SEQUENCE = new AtomicLong();
+
+    /**
+     * The directory to write the bundles to, or null if recording is off.
+     */
+    private File recordDir;
+
+    /**
+     */
+    public BundleRecorderFilter()
+    {
+        super();
+    }
+
+    /**
+     */
+    @Override
+    public void init(
+            final FilterConfig filterConfig
+    )
+    {
+        final String recordDirStr = BotSettings.get().getBundleRecordDir();
+        if (DGLStringUtil.isNullOrEmpty(recordDirStr)) {
+            recordDir = null;
+        }
+        else {
+            recordDir = new File(recordDirStr);
+            if (!recordDir.isDirectory() && !recordDir.mkdirs()) {
+                LOG.warn("init: can't create bundle record directory: " + TraceUtil.formatObj(recordDir));
+                recordDir = null;
+            }
+        }
+    }
+
+    /**
+     */
+    @Override
+    public void doFilter(
+            final ServletRequest request,
+            final ServletResponse response,
+            final FilterChain chain
+    )
+            throws IOException, ServletException
+    {
+        final boolean post = (request instanceof HttpServletRequest) &&
+                "POST".equals(((HttpServletRequest)request).getMethod());
+        if (post && (recordDir != null)) {
+            final byte[] body = readAll(request.getInputStream());
+            BotMetrics.BUNDLE_BYTES.observe(body.length);
+            record(body, request.getCharacterEncoding());
+            chain.doFilter(new BufferedRequest((HttpServletRequest)request, body), response);
+        }
+        else {
+            if (post && (request.getContentLength() >= 0)) {
+                BotMetrics.BUNDLE_BYTES.observe(request.getContentLength());
+            }
+            chain.doFilter(request, response);
+        }
+    }
+
+    /**
+     */
+    @Override
+    public void destroy()
+    {
+    }
+
+    /**
+     * Write a bundle to the record directory.
+     * Failure to record is logged, but doesn't stop the bundle from being processed.
+     *
+     * @param body
+     *      The request body.
+     * @param encoding
+     *      The character encoding of the request body (may be null).
+     */
+    private void record(
+            final byte[] body,
+            final String encoding
+    )
+    {
+        final String charset = DGLStringUtil.isNullOrEmpty(encoding) ? "UTF-8" : encoding;
+        final File file = new File(recordDir,
+                "bundle-" + System.currentTimeMillis() + "-" + SEQUENCE.incrementAndGet() + ".json");
+        try {
+            final String scrubbed = scrub(new String(body, charset));
+            final OutputStream out = new FileOutputStream(file);
+            try {
+                out.write(scrubbed.getBytes("UTF-8"));
+            }
+            finally {
+                out.close();
+            }
+        }
+        catch (final IOException e) {
+            LOG.warn("record: " + TraceUtil.formatObj(file, "file"), e);
+        }
+    }
+
+    /**
+     * Blank out the values of anything that looks like a secret.
+     *
+     * @param json
+     *      The bundle.
+     * @return
+     *      The bundle, with the secrets removed.
+     */
+    static String scrub(
+            final String json
+    )
+    {
+        return SECRET_PATTERN.matcher(json).replaceAll("$1$2");
+    }
+
+    /**
+     * @return
+     *      Everything that's left in a stream.
+     */
+    static byte[] readAll(
+            final InputStream in
+    )
+            throws IOException
+    {
+        final ByteArrayOutputStream result = new ByteArrayOutputStream();
+        final byte[] buf = new byte[8192];
+        int numRead = in.read(buf);
+        while (numRead != -1) {
+            result.write(buf, 0, numRead);
+            numRead = in.read(buf);
+        }
+        return result.toByteArray();
+    }
+
+    /**
+     * A request whose body has already been read.
+     */
+    static final class BufferedRequest
+            extends HttpServletRequestWrapper
+    {
+
+        /**
+         * The request body.
+         */
+        private final byte[] body;
+
+        /**
+         */
+        BufferedRequest(
+                final HttpServletRequest request,
+                final byte[] body
+        )
+        {
+            super(request);
+
+            this.body = body;
+        }
+
+        /**
+         */
+        @Override
+        public ServletInputStream getInputStream()
+        {
+            final InputStream in = new ByteArrayInputStream(body);
+            return new ServletInputStream() {
+                @Override
+                public int read()
+                        throws IOException
+                {
+                    return in.read();
+                }
+
+                @Override
+                public int read(
+                        final byte[] buf,
+                        final int off,
+                        final int len
+                )
+                        throws IOException
+                {
+                    return in.read(buf, off, len);
+                }
+            };
+        }
+
+        /**
+         */
+        @Override
+        public BufferedReader getReader()
+                throws IOException
+        {
+            final String encoding = getCharacterEncoding();
+            return new BufferedReader(new InputStreamReader(getInputStream(),
+                    DGLStringUtil.isNullOrEmpty(encoding) ? "UTF-8" : encoding));
+        }
+
+    }
+
+}
\ No newline at end of file
@@ -0,0 +1,297 @@
+/*
+ * Copyright (C) 2010  David G Loone
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package au.id.loone.apps.tasklistbot.bot;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.Map;
+
+import au.id.loone.util.tracing.TraceUtil;
+
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Transaction;
+import org.apache.log4j.Logger;
+
+/**
+ * Tracker state store that keeps each blip's tree in an App Engine datastore entity.
+ *
+ * <p>There is one entity per blip, of kind {@link #KIND}, named by its key
+ *      (<code>waveId/waveletId/blipId</code>, since blip ids are only unique within a wavelet).
+ *      The tree is kept in an unindexed blob property,
+ *      in the format written by {@link TrackerTree#writeTo(java.io.DataOutput)},
+ *      so no datastore indexes are needed.
+ *      Trees that can't be read or written are logged and treated as missing.</p>
+ *
+ * <p>The contributions of the blips in each wavelet are kept in an entity of kind {@link #WAVELET_KIND},
+ *      named by <code>waveId/waveletId</code>, in the format written by
+ *      {@link WaveletRollup#writeTo(Map, java.io.DataOutput)}.
+ *      Each update is a read and a write in a single transaction,
+ *      which is tried again if another instance updated the same wavelet at the same time.</p>
+ *
+ * @author David G Loone
+ */
+final class DatastoreTrackerStateStore
+        implements TrackerStateStore
+{
+
+    @SuppressWarnings({"UnusedDeclaration"})
+    private static final Logger LOG = TraceUtil.getLogger(DatastoreTrackerStateStore.class);
+
+    /**
+     * The kind of the entities.
+     */
+    static final String KIND = "TrackerTree";
+
+    /**
+     * The kind of the wavelet contribution entities.
+     */
+    static final String WAVELET_KIND = "WaveletContributions";
+
+    /**
+     * The name of the property that holds the wavelet contributions.
+     */
+    private static final String CONTRIBUTIONS_PROPERTY = "contributions";
+
+    /**
+     * How many times to try a wavelet update that keeps losing to other instances.
+     */
+    private static final int MAX_ATTEMPTS = 5;
+
+    /**
+     * The name of the property that holds the tree.
+     */
+    private static final String TREE_PROPERTY = "tree";
+
+    /**
+     * The datastore.
+     */
+    private final DatastoreService datastore;
+
+    /**
+     * @param datastore
+     *      The datastore.
+     */
+    public DatastoreTrackerStateStore(
+            final DatastoreService datastore
+    )
+    {
+        super();
+
+        this.datastore = datastore;
+    }
+
+    /**
+     */
+    public TrackerTree take(
+            final String key
+    )
+    {
+        if (key == null) {
+            return null;
+        }
+
+        TrackerTree result = null;
+        try {
+            final Entity entity = datastore.get(KeyFactory.createKey(KIND, key));
+            final Blob blob = (Blob)entity.getProperty(TREE_PROPERTY);
+            if (blob != null) {
+                result = TrackerTree.readFrom(new DataInputStream(new ByteArrayInputStream(blob.getBytes())));
+            }
+        }
+        catch (final EntityNotFoundException e) {
+            // Never seen this blip (or not since it was invalidated).
+        }
+        catch (final IOException e) {
+            LOG.warn("take: " + TraceUtil.formatObj(key, "key") + ", " + TraceUtil.formatObj(e), e);
+        }
+        catch (final RuntimeException e) {
+            LOG.warn("take: " + TraceUtil.formatObj(key, "key") + ", " + TraceUtil.formatObj(e), e);
+        }
+        return result;
+    }
+
+    /**
+     */
+    public void put(
+            final String key,
+            final TrackerTree tree
+    )
+    {
+        if (key == null) {
+            return;
+        }
+
+        try {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final DataOutputStream out = new DataOutputStream(bytes);
+            tree.writeTo(out);
+            out.flush();
+
+            final Entity entity = new Entity(KIND, key);
+            entity.setUnindexedProperty(TREE_PROPERTY, new Blob(bytes.toByteArray()));
+            datastore.put(entity);
+        }
+        catch (final IOException e) {
+            LOG.warn("put: " + TraceUtil.formatObj(key, "key") + ", " + TraceUtil.formatObj(e), e);
+        }
+        catch (final RuntimeException e) {
+            LOG.warn("put: " + TraceUtil.formatObj(key, "key") + ", " + TraceUtil.formatObj(e), e);
+        }
+    }
+
+    /**
+     */
+    public void invalidate(
+            final String key
+    )
+    {
+        if (key == null) {
+            return;
+        }
+
+        try {
+            datastore.delete(KeyFactory.createKey(KIND, key));
+        }
+        catch (final RuntimeException e) {
+            LOG.warn("invalidate: " + TraceUtil.formatObj(key, "key") + ", " + TraceUtil.formatObj(e), e);
+        }
+    }
+
+    /**
+     */
+    public Map<String, WaveletRollup.Contribution> updateWavelet(
+            final String waveletKey,
+            final String blipId,
+            final WaveletRollup.Contribution contribution
+    )
+    {
+        if (waveletKey == null) {
+            return null;
+        }
+
+        final Key entityKey = KeyFactory.createKey(WAVELET_KIND, waveletKey);
+        for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+            try {
+                final Transaction txn = datastore.beginTransaction();
+                try {
+                    final Map<String, WaveletRollup.Contribution> result = readContributions(txn, entityKey);
+                    if (contribution == null) {
+                        result.remove(blipId);
+                    }
+                    else {
+                        result.put(blipId, contribution);
+                    }
+
+                    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                    final DataOutputStream out = new DataOutputStream(bytes);
+                    WaveletRollup.writeTo(result, out);
+                    out.flush();
+                    final Entity entity = new Entity(entityKey);
+                    entity.setUnindexedProperty(CONTRIBUTIONS_PROPERTY, new Blob(bytes.toByteArray()));
+                    datastore.put(txn, entity);
+                    txn.commit();
+                    return result;
+                }
+                finally {
+                    if (txn.isActive()) {
+                        txn.rollback();
+                    }
+                }
+            }
+            catch (final ConcurrentModificationException e) {
+                // Another instance updated the wavelet at the same time, and got in first.
+            }
+            catch (final IOException e) {
+                LOG.warn("updateWavelet: " + TraceUtil.formatObj(waveletKey, "waveletKey") + ", " +
+                        TraceUtil.formatObj(e), e);
+                return null;
+            }
+            catch (final RuntimeException e) {
+                LOG.warn("updateWavelet: " + TraceUtil.formatObj(waveletKey, "waveletKey") + ", " +
+                        TraceUtil.formatObj(e), e);
+                return null;
+            }
+        }
+        LOG.warn("updateWavelet: gave up: " + TraceUtil.formatObj(waveletKey, "waveletKey"));
+        return null;
+    }
+
+    /**
+     */
+    public Map<String, WaveletRollup.Contribution> getWavelet(
+            final String waveletKey
+    )
+    {
+        if (waveletKey == null) {
+            return null;
+        }
+
+        try {
+            return readContributions(null, KeyFactory.createKey(WAVELET_KIND, waveletKey));
+        }
+        catch (final IOException e) {
+            LOG.warn("getWavelet: " + TraceUtil.formatObj(waveletKey, "waveletKey") + ", " +
+                    TraceUtil.formatObj(e), e);
+        }
+        catch (final RuntimeException e) {
+            LOG.warn("getWavelet: " + TraceUtil.formatObj(waveletKey, "waveletKey") + ", " +
+                    TraceUtil.formatObj(e), e);
+        }
+        return null;
+    }
+
+    /**
+     * @param txn
+     *      The transaction to read in, or null to read outside a transaction.
+     * @param entityKey
+     *      The key of the wavelet's entity.
+     * @return
+     *      The contributions of the blips in the wavelet (empty if there is no entity).
+     * @throws IOException
+     *      If the contributions can't be read.
+     */
+    private Map<String, WaveletRollup.Contribution> readContributions(
+            final Transaction txn,
+            final Key entityKey
+    )
+            throws IOException
+    {
+        Map<String, WaveletRollup.Contribution> result = new HashMap<String, WaveletRollup.Contribution>();
+        try {
+            final Entity entity = (txn == null) ? datastore.get(entityKey) : datastore.get(txn, entityKey);
+            final Blob blob = (Blob)entity.getProperty(CONTRIBUTIONS_PROPERTY);
+            if (blob != null) {
+                result = WaveletRollup.readFrom(new DataInputStream(new ByteArrayInputStream(blob.getBytes())));
+            }
+        }
+        catch (final EntityNotFoundException e) {
+            // No blip in the wavelet has contributed yet.
+        }
+        return result;
+    }
+
+}
\ No newline at end of file
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2010  David G Loone
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package au.id.loone.apps.tasklistbot.bot;
+
+import java.util.ConcurrentModificationException;
+
+import au.id.loone.util.DGLStringUtil;
+import au.id.loone.util.tracing.TraceUtil;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Transaction;
+import org.apache.log4j.Logger;
+
+/**
+ * Tracker version guard that keeps its claims in the App Engine datastore,
+ * so that the claims are shared by all instances.
+ *
+ * <p>There is one entity per blip, of kind {@link #KIND}, named by the key of the blip,
+ *      holding the latest claim in unindexed properties.
+ *      Each claim is a read and a write in a single transaction,
+ *      so if two instances claim at once, one of them fails to commit and loses.
+ *      Anything else that goes wrong is logged and the claim is allowed.</p>
+ *
+ * @author David G Loone
+ */
+final class DatastoreTrackerVersionGuard
+        implements TrackerVersionGuard
+{
+
+    @SuppressWarnings({"UnusedDeclaration"})
+    private static final Logger LOG = TraceUtil.getLogger(DatastoreTrackerVersionGuard.class);
+
+    /**
+     * The kind of the entities.
+     */
+    static final String KIND = "TrackerVersion";
+
+    /**
+     * The name of the property that holds the version of the latest claim.
+     */
+    private static final String VERSION_PROPERTY = "version";
+
+    /**
+     * The name of the property that holds the owner of the latest claim.
+     */
+    private static final String OWNER_PROPERTY = "owner";
+
+    /**
+     * The datastore.
+     */
+    private final DatastoreService datastore;
+
+    /**
+     * @param datastore
+     *      The datastore.
+     */
+    public DatastoreTrackerVersionGuard(
+            final DatastoreService datastore
+    )
+    {
+        super();
+
+        this.datastore = datastore;
+    }
+
+    /**
+     */
+    public boolean claim(
+            final String key,
+            final long version,
+            final String owner
+    )
+    {
+        boolean result = true;
+        try {
+            final Key entityKey = KeyFactory.createKey(KIND, key);
+            final Transaction txn = datastore.beginTransaction();
+            try {
+                try {
+                    final Entity old = datastore.get(txn, entityKey);
+                    final long oldVersion = ((Number)old.getProperty(VERSION_PROPERTY)).longValue();
+                    result = (version > oldVersion) ||
+                            ((version == oldVersion) && DGLStringUtil.equals(owner,
+                                    (String)old.getProperty(OWNER_PROPERTY)));
+                }
+                catch (final EntityNotFoundException e) {
+                    // Never claimed.
+                }
+                if (result) {
+                    final Entity entity = new Entity(KIND, key);
+                    entity.setUnindexedProperty(VERSION_PROPERTY, version);
+                    entity.setUnindexedProperty(OWNER_PROPERTY, owner);
+                    datastore.put(txn, entity);
+                    txn.commit();
+                }
+            }
+            finally {
+                if (txn.isActive()) {
+                    txn.rollback();
+                }
+            }
+        }
+        catch (final ConcurrentModificationException e) {
+            // Someone else claimed the blip at the same time, and got in first.
+            result = false;
+        }
+        catch (final RuntimeException e) {
+            LOG.warn("claim: " + TraceUtil.formatObj(key, "key") + ", " + TraceUtil.formatObj(e), e);
+            result = true;
+        }
+        return result;
+    }
+
+}
\ No newline at end of file
@@ -0,0 +1,294 @@
+/*
+ * Copyright (C) 2010  David G Loone
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package au.id.loone.apps.tasklistbot.bot;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.HashMap;
+import java.util.Map;
+
+import au.id.loone.util.tracing.TraceUtil;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Tracker state store that keeps each blip's tree in a file of its own,
+ * in the format written by {@link TrackerTree#writeTo(java.io.DataOutput)}.
+ *
+ * <p>This needs nothing but a local directory,
+ *      so it works for running locally (and for the load generator).
+ *      A tree is written to a uniquely named temporary file and then renamed,
+ *      so a reader never sees half a tree (even with more than one JVM sharing the directory).
+ *      Trees that can't be read or written are logged and treated as missing.</p>
+ *
+ * <p>The contributions of the blips in each wavelet are kept in a file of their own too,
+ *      which is locked while it is read and rewritten,
+ *      so that any number of JVMs can update a wavelet through the same directory.</p>
+ *
+ * @author David G Loone
+ */
+final class FileTrackerStateStore
+        implements TrackerStateStore
+{
+
+    @SuppressWarnings({"UnusedDeclaration"})
+    private static final Logger LOG = TraceUtil.getLogger(FileTrackerStateStore.class);
+
+    /**
+     * The file name suffix of a tree.
+     */
+    private static final String SUFFIX = ".tree";
+
+    /**
+     * The file name suffix of a wavelet's contributions.
+     */
+    private static final String WAVELET_SUFFIX = ".wavelet";
+
+    /**
+     * Current value of the <b>dir</b> property.
+     */
+    private final File dir;
+
+    /**
+     * Stops two threads from locking the same wavelet file at once
+     * (a file lock only keeps other processes out).
+     */
+    private final Object waveletLock;
+
+    /**
+     * @param dir
+     *      The directory to keep the trees in (created if it doesn't exist).
+     */
+    public FileTrackerStateStore(
+            final File dir
+    )
+    {
+        super();
+
+        this.dir = dir;
+        waveletLock = new Object();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            LOG.warn("FileTrackerStateStore: can't create " + TraceUtil.formatObj(dir, "dir"));
+        }
+    }
+
+    /**
+     */
+    public TrackerTree take(
+            final String key
+    )
+    {
+        final File file = (key == null) ? null : fileFor(key);
+        if ((file == null) || !file.isFile()) {
+            return null;
+        }
+
+        TrackerTree result = null;
+        try {
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                result = TrackerTree.readFrom(in);
+            }
+            finally {
+                in.close();
+            }
+        }
+        catch (final IOException e) {
+            LOG.warn("take: " + TraceUtil.formatObj(file, "file") + ", " + TraceUtil.formatObj(e), e);
+        }
+        return result;
+    }
+
+    /**
+     */
+    public void put(
+            final String key,
+            final TrackerTree tree
+    )
+    {
+        if (key == null) {
+            return;
+        }
+
+        final File file = fileFor(key);
+        File tmpFile = null;
+        try {
+            tmpFile = File.createTempFile(file.getName(), ".tmp", dir);
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            try {
+                tree.writeTo(out);
+            }
+            finally {
+                out.close();
+            }
+            if (!tmpFile.renameTo(file) && (!file.delete() || !tmpFile.renameTo(file))) {
+                throw new IOException("can't rename " + tmpFile + " to " + file);
+            }
+        }
+        catch (final IOException e) {
+            LOG.warn("put: " + TraceUtil.formatObj(file, "file") + ", " + TraceUtil.formatObj(e), e);
+            if (tmpFile != null) {
+                //noinspection ResultOfMethodCallIgnored
+                tmpFile.delete();
+            }
+        }
+    }
+
+    /**
+     */
+    public void invalidate(
+            final String key
+    )
+    {
+        if (key != null) {
+            //noinspection ResultOfMethodCallIgnored
+            fileFor(key).delete();
+        }
+    }
+
+    /**
+     * Getter method for the <b>dir</b> property.
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public File getDir() {return dir;}
+
+    /**
+     */
+    public Map<String, WaveletRollup.Contribution> updateWavelet(
+            final String waveletKey,
+            final String blipId,
+            final WaveletRollup.Contribution contribution
+    )
+    {
+        if (waveletKey == null) {
+            return null;
+        }
+
+        final File file = fileFor(waveletKey, WAVELET_SUFFIX);
+        synchronized (waveletLock) {
+            try {
+                final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                try {
+                    // The lock is let go when the file is closed.
+                    raf.getChannel().lock();
+                    final Map<String, WaveletRollup.Contribution> result = (raf.length() == 0) ?
+                            new HashMap<String, WaveletRollup.Contribution>() : WaveletRollup.readFrom(raf);
+                    if (contribution == null) {
+                        result.remove(blipId);
+                    }
+                    else {
+                        result.put(blipId, contribution);
+                    }
+
+                    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                    final DataOutputStream out = new DataOutputStream(bytes);
+                    WaveletRollup.writeTo(result, out);
+                    out.flush();
+                    raf.seek(0);
+                    raf.write(bytes.toByteArray());
+                    raf.setLength(bytes.size());
+                    return result;
+                }
+                finally {
+                    raf.close();
+                }
+            }
+            catch (final IOException e) {
+                LOG.warn("updateWavelet: " + TraceUtil.formatObj(file, "file") + ", " + TraceUtil.formatObj(e), e);
+                return null;
+            }
+        }
+    }
+
+    /**
+     */
+    public Map<String, WaveletRollup.Contribution> getWavelet(
+            final String waveletKey
+    )
+    {
+        if (waveletKey == null) {
+            return null;
+        }
+
+        final File file = fileFor(waveletKey, WAVELET_SUFFIX);
+        synchronized (waveletLock) {
+            if (!file.isFile()) {
+                return new HashMap<String, WaveletRollup.Contribution>();
+            }
+            try {
+                final RandomAccessFile raf = new RandomAccessFile(file, "r");
+                try {
+                    raf.getChannel().lock(0, Long.MAX_VALUE, true);
+                    return (raf.length() == 0) ? new HashMap<String, WaveletRollup.Contribution>() :
+                            WaveletRollup.readFrom(raf);
+                }
+                finally {
+                    raf.close();
+                }
+            }
+            catch (final IOException e) {
+                LOG.warn("getWavelet: " + TraceUtil.formatObj(file, "file") + ", " + TraceUtil.formatObj(e), e);
+                return null;
+            }
+        }
+    }
+
+    /**
+     * @param key
+     *      Identifies a blip (<code>waveId/waveletId/blipId</code>).
+     * @return
+     *      The file that the blip's tree is kept in.
+     */
+    private File fileFor(
+            final String key
+    )
+    {
+        return fileFor(key, SUFFIX);
+    }
+
+    /**
+     * @param key
+     *      Identifies a blip or a wavelet.
+     * @param suffix
+     *      The file name suffix.
+     * @return
+     *      The file that whatever the key identifies is kept in.
+     */
+    private File fileFor(
+            final String key,
+            final String suffix
+    )
+    {
+        try {
+            return new File(dir, URLEncoder.encode(key, "UTF-8") + suffix);
+        }
+        catch (final UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
\ No newline at end of file
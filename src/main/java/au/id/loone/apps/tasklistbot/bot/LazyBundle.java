@@ -0,0 +1,861 @@
+/*
+ * Copyright (C) 2010  David G Loone
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package au.id.loone.apps.tasklistbot.bot;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import au.id.loone.apps.tasklistbot.core.TrackerElementHandler;
+import au.id.loone.util.DGLStringUtil;
+import au.id.loone.util.tracing.TraceUtil;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Just the parts of an event bundle that the task tracker logic needs,
+ * read in a single pass over the bundle's bytes.
+ *
+ * <p>The events keep their type, blip id and element index.
+ *      Each blip keeps its version, how many elements it has,
+ *      and its lines (type and indent) and gadgets (URL and tracker properties), in document order.
+ *      Everything else (the blip text, annotations, the other elements and properties, and so on)
+ *      is stepped over without being decoded.
+ *      Nothing is built for the Wave API, so this can only be used to decide whether a bundle needs anything done;
+ *      a bundle that does is handed to the full deserialisation.</p>
+ *
+ * <p>This understands the layout of the bundles that the Wave server sends.
+ *      A bundle that doesn't look like that (<i>eg</i> a blip's elements out of document order) isn't read.</p>
+ *
+ * @author David G Loone
+ */
+final class LazyBundle
+{
+
+    @SuppressWarnings({"UnusedDeclaration"})
+    private static final Logger LOG = TraceUtil.getLogger(LazyBundle.class);
+
+    /**
+     * The character set of a bundle.
+     */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * The bundle.
+     */
+    private final byte[] json;
+
+    /**
+     * The position of the next byte to read.
+     */
+    private int pos;
+
+    /**
+     * Current value of the <b>events</b> property.
+     */
+    private final List<LazyEvent> events;
+
+    /**
+     * The blips, by blip id.
+     */
+    private final Map<String, LazyBlip> blips;
+
+    /**
+     * Current value of the <b>waveId</b> property.
+     */
+    private String waveId;
+
+    /**
+     * Current value of the <b>waveletId</b> property.
+     */
+    private String waveletId;
+
+    /**
+     */
+    private LazyBundle(
+            final byte[] json
+    )
+    {
+        super();
+
+        this.json = json;
+        pos = 0;
+        events = new ArrayList<LazyEvent>();
+        blips = new HashMap<String, LazyBlip>();
+    }
+
+    /**
+     * @param json
+     *      The bundle, as posted to the robot (UTF-8).
+     * @return
+     *      The parts of the bundle that matter, or null if the bundle can't be read this way.
+     */
+    static LazyBundle parse(
+            final byte[] json
+    )
+    {
+        final LazyBundle result = new LazyBundle(json);
+        try {
+            result.bundle();
+            return result;
+        }
+        catch (final IllegalArgumentException e) {
+            Tracer.trace(LOG, "parse: not read", "e", e.getMessage());
+            return null;
+        }
+        catch (final IndexOutOfBoundsException e) {
+            Tracer.trace(LOG, "parse: truncated", "pos", result.pos);
+            return null;
+        }
+    }
+
+    /**
+     * @param blipId
+     *      The id of a blip.
+     * @return
+     *      The blip, or null if it isn't in the bundle.
+     */
+    public LazyBlip getBlip(
+            final String blipId
+    )
+    {
+        return blips.get(blipId);
+    }
+
+    /**
+     * Read the whole bundle.
+     */
+    private void bundle()
+    {
+        expect('{');
+        if (!next('}')) {
+            do {
+                final String name = string();
+                expect(':');
+                if ("events".equals(name)) {
+                    events();
+                }
+                else if ("wavelet".equals(name)) {
+                    wavelet();
+                }
+                else if ("blips".equals(name)) {
+                    blips();
+                }
+                else {
+                    skipValue();
+                }
+            } while (next(','));
+            expect('}');
+        }
+        skipWhitespace();
+        if (pos != json.length) {
+            throw new IllegalArgumentException("trailing bytes at " + pos);
+        }
+    }
+
+    /**
+     * Read the events.
+     */
+    private void events()
+    {
+        expect('[');
+        if (next(']')) {
+            return;
+        }
+        do {
+            String type = null;
+            String blipId = null;
+            Integer index = null;
+            expect('{');
+            if (!next('}')) {
+                do {
+                    final String name = string();
+                    expect(':');
+                    if ("type".equals(name)) {
+                        type = string();
+                    }
+                    else if ("properties".equals(name)) {
+                        expect('{');
+                        if (!next('}')) {
+                            do {
+                                final String propertyName = string();
+                                expect(':');
+                                if ("blipId".equals(propertyName)) {
+                                    blipId = nullableString();
+                                }
+                                else if ("index".equals(propertyName)) {
+                                    index = (int)number();
+                                }
+                                else {
+                                    skipValue();
+                                }
+                            } while (next(','));
+                            expect('}');
+                        }
+                    }
+                    else {
+                        skipValue();
+                    }
+                } while (next(','));
+                expect('}');
+            }
+            events.add(new LazyEvent(type, blipId, index));
+        } while (next(','));
+        expect(']');
+    }
+
+    /**
+     * Read the wavelet.
+     */
+    private void wavelet()
+    {
+        expect('{');
+        if (next('}')) {
+            return;
+        }
+        do {
+            final String name = string();
+            expect(':');
+            if ("waveId".equals(name)) {
+                waveId = nullableString();
+            }
+            else if ("waveletId".equals(name)) {
+                waveletId = nullableString();
+            }
+            else {
+                skipValue();
+            }
+        } while (next(','));
+        expect('}');
+    }
+
+    /**
+     * Read the blips.
+     */
+    private void blips()
+    {
+        expect('{');
+        if (next('}')) {
+            return;
+        }
+        do {
+            final String blipId = string();
+            expect(':');
+            final LazyBlip blip = new LazyBlip(blipId);
+            expect('{');
+            if (!next('}')) {
+                do {
+                    final String name = string();
+                    expect(':');
+                    if ("version".equals(name)) {
+                        blip.version = number();
+                    }
+                    else if ("elements".equals(name)) {
+                        elements(blip);
+                    }
+                    else {
+                        skipValue();
+                    }
+                } while (next(','));
+                expect('}');
+            }
+            blips.put(blipId, blip);
+        } while (next(','));
+        expect('}');
+    }
+
+    /**
+     * Read the elements of a blip.
+     */
+    private void elements(
+            final LazyBlip blip
+    )
+    {
+        expect('{');
+        if (next('}')) {
+            return;
+        }
+        int lastOffset = -1;
+        do {
+            final int offset = Integer.parseInt(string());
+            if (offset <= lastOffset) {
+                throw new IllegalArgumentException("elements out of order at " + pos);
+            }
+            lastOffset = offset;
+            expect(':');
+
+            // The type might come after the properties, so the properties are kept until the end of the element.
+            String type = null;
+            String lineType = null;
+            String indent = null;
+            String url = null;
+            String trackerId = null;
+            String progress = null;
+            String readonly = null;
+            String scope = null;
+            expect('{');
+            if (!next('}')) {
+                do {
+                    final String name = string();
+                    expect(':');
+                    if ("type".equals(name)) {
+                        type = string();
+                    }
+                    else if ("properties".equals(name)) {
+                        expect('{');
+                        if (!next('}')) {
+                            do {
+                                final String propertyName = string();
+                                expect(':');
+                                if ("lineType".equals(propertyName)) {
+                                    lineType = nullableString();
+                                }
+                                else if ("indent".equals(propertyName)) {
+                                    indent = nullableString();
+                                }
+                                else if ("url".equals(propertyName)) {
+                                    url = nullableString();
+                                }
+                                else if ("taskTrackerId".equals(propertyName)) {
+                                    trackerId = nullableString();
+                                }
+                                else if ("progress".equals(propertyName)) {
+                                    progress = nullableString();
+                                }
+                                else if ("readonly".equals(propertyName)) {
+                                    readonly = nullableString();
+                                }
+                                else if ("scope".equals(propertyName)) {
+                                    scope = nullableString();
+                                }
+                                else {
+                                    skipValue();
+                                }
+                            } while (next(','));
+                            expect('}');
+                        }
+                    }
+                    else {
+                        skipValue();
+                    }
+                } while (next(','));
+                expect('}');
+            }
+
+            blip.numElements++;
+            if ("LINE".equals(type)) {
+                blip.add(LazyBlip.LINE, offset, lineType,
+                        DGLStringUtil.isNullOrEmpty(indent) ? 0 : Integer.valueOf(indent), false, null);
+            }
+            else if ("GADGET".equals(type)) {
+                blip.add(TrackerTree.SCOPE_WAVELET.equals(scope) ? LazyBlip.SUMMARY : LazyBlip.TRACKER, offset,
+                        trackerId, DGLStringUtil.isNullOrEmpty(progress) ? 0 : Integer.parseInt(progress),
+                        Boolean.parseBoolean(readonly), url);
+            }
+        } while (next(','));
+        expect('}');
+    }
+
+    /**
+     * Step over the whitespace at the current position.
+     */
+    private void skipWhitespace()
+    {
+        while ((pos < json.length) &&
+                ((json[pos] == ' ') || (json[pos] == '\t') || (json[pos] == '\n') || (json[pos] == '\r'))) {
+            pos++;
+        }
+    }
+
+    /**
+     * Step over a character that has to be next.
+     */
+    private void expect(
+            final char c
+    )
+    {
+        if (!next(c)) {
+            throw new IllegalArgumentException("expected '" + c + "' at " + pos);
+        }
+    }
+
+    /**
+     * Step over a character if it is next.
+     *
+     * @return
+     *      Whether it was.
+     */
+    private boolean next(
+            final char c
+    )
+    {
+        skipWhitespace();
+        if ((pos < json.length) && (json[pos] == c)) {
+            pos++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return
+     *      The next value, which has to be a string or null.
+     */
+    private String nullableString()
+    {
+        skipWhitespace();
+        if (json[pos] == 'n') {
+            skipValue();
+            return null;
+        }
+        return string();
+    }
+
+    /**
+     * @return
+     *      The next value, which has to be a string.
+     */
+    private String string()
+    {
+        expect('"');
+        final int start = pos;
+        boolean escaped = false;
+        while (json[pos] != '"') {
+            if (json[pos] == '\\') {
+                escaped = true;
+                pos++;
+            }
+            pos++;
+        }
+        final int end = pos++;
+        if (!escaped) {
+            return new String(json, start, end - start, UTF8);
+        }
+
+        final StringBuilder result = new StringBuilder(end - start);
+        int runStart = start;
+        for (int idx = start; idx < end; idx++) {
+            if (json[idx] == '\\') {
+                result.append(new String(json, runStart, idx - runStart, UTF8));
+                final char c = (char)json[++idx];
+                switch (c) {
+                    case 'b':
+                        result.append('\b');
+                        break;
+                    case 'f':
+                        result.append('\f');
+                        break;
+                    case 'n':
+                        result.append('\n');
+                        break;
+                    case 'r':
+                        result.append('\r');
+                        break;
+                    case 't':
+                        result.append('\t');
+                        break;
+                    case 'u':
+                        result.append((char)Integer.parseInt(new String(json, idx + 1, 4, UTF8), 16));
+                        idx += 4;
+                        break;
+                    default:
+                        result.append(c);
+                }
+                runStart = idx + 1;
+            }
+        }
+        result.append(new String(json, runStart, end - runStart, UTF8));
+        return result.toString();
+    }
+
+    /**
+     * @return
+     *      The next value, which has to be a whole number.
+     */
+    private long number()
+    {
+        skipWhitespace();
+        final boolean negative = (json[pos] == '-');
+        if (negative) {
+            pos++;
+        }
+        if ((json[pos] < '0') || (json[pos] > '9')) {
+            throw new IllegalArgumentException("expected a number at " + pos);
+        }
+        long result = 0;
+        while ((pos < json.length) && (json[pos] >= '0') && (json[pos] <= '9')) {
+            result = (result * 10) + (json[pos++] - '0');
+        }
+        if ((pos < json.length) && ((json[pos] == '.') || (json[pos] == 'e') || (json[pos] == 'E'))) {
+            throw new IllegalArgumentException("expected a whole number at " + pos);
+        }
+        return negative ? -result : result;
+    }
+
+    /**
+     * Step over the next value, whatever it is, without decoding it.
+     */
+    private void skipValue()
+    {
+        skipWhitespace();
+        final byte first = json[pos];
+        if (first == '"') {
+            skipString();
+        }
+        else if ((first == '{') || (first == '[')) {
+            int depth = 0;
+            do {
+                final byte b = json[pos];
+                if (b == '"') {
+                    skipString();
+                    continue;
+                }
+                if ((b == '{') || (b == '[')) {
+                    depth++;
+                }
+                else if ((b == '}') || (b == ']')) {
+                    depth--;
+                }
+                pos++;
+            } while (depth > 0);
+        }
+        else {
+            while ((pos < json.length) && (json[pos] != ',') && (json[pos] != '}') && (json[pos] != ']') &&
+                    (json[pos] != ' ') && (json[pos] != '\n') && (json[pos] != '\r') && (json[pos] != '\t')) {
+                pos++;
+            }
+        }
+    }
+
+    /**
+     * Step over a string without decoding it.
+     */
+    private void skipString()
+    {
+        pos++;
+        while (json[pos] != '"') {
+            if (json[pos] == '\\') {
+                pos++;
+            }
+            pos++;
+        }
+        pos++;
+    }
+
+    /**
+     * Getter method for the <b>events</b> property.
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public List<LazyEvent> getEvents() {return events;}
+
+    /**
+     * Getter method for the <b>waveId</b> property.
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public String getWaveId() {return waveId;}
+
+    /**
+     * Getter method for the <b>waveletId</b> property.
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public String getWaveletId() {return waveletId;}
+
+    /**
+     * An event, as far as it matters.
+     */
+    static final class LazyEvent
+    {
+
+        /**
+         * Current value of the <b>type</b> property.
+         */
+        private final String type;
+
+        /**
+         * Current value of the <b>blipId</b> property.
+         */
+        private final String blipId;
+
+        /**
+         * Current value of the <b>index</b> property.
+         */
+        private final Integer index;
+
+        /**
+         */
+        LazyEvent(
+                final String type,
+                final String blipId,
+                final Integer index
+        )
+        {
+            super();
+
+            this.type = type;
+            this.blipId = blipId;
+            this.index = index;
+        }
+
+        /**
+         * Getter method for the <b>type</b> property.
+         */
+        @SuppressWarnings({"UnusedDeclaration"})
+        public String getType() {return type;}
+
+        /**
+         * Getter method for the <b>blipId</b> property.
+         */
+        @SuppressWarnings({"UnusedDeclaration"})
+        public String getBlipId() {return blipId;}
+
+        /**
+         * Getter method for the <b>index</b> property.
+         * This is the element offset of the gadget, for a gadget state change.
+         */
+        @SuppressWarnings({"UnusedDeclaration"})
+        public Integer getIndex() {return index;}
+
+    }
+
+    /**
+     * A blip, as far as task trackers are concerned.
+     *
+     * <p>The lines and gadgets are kept in parallel arrays, in document order.</p>
+     */
+    static final class LazyBlip
+    {
+
+        /**
+         * The kind of a line.
+         */
+        static final byte LINE = 0;
+
+        /**
+         * The kind of a gadget that isn't a summary tracker.
+         */
+        static final byte TRACKER = 1;
+
+        /**
+         * The kind of a summary tracker.
+         */
+        static final byte SUMMARY = 2;
+
+        /**
+         * Current value of the <b>blipId</b> property.
+         */
+        private final String blipId;
+
+        /**
+         * Current value of the <b>version</b> property.
+         */
+        private long version;
+
+        /**
+         * Current value of the <b>numElements</b> property.
+         */
+        private int numElements;
+
+        /**
+         * The number of lines and gadgets.
+         */
+        private int size;
+
+        /**
+         * The kind of each line or gadget.
+         */
+        private byte[] kinds;
+
+        /**
+         * The element offset of each line or gadget.
+         */
+        private int[] offsets;
+
+        /**
+         * The indent of each line, or the progress of each gadget.
+         */
+        private int[] values;
+
+        /**
+         * The type of each line, or the <b>taskTrackerId</b> of each gadget.
+         */
+        private String[] names;
+
+        /**
+         * Whether each gadget is readonly.
+         */
+        private boolean[] readonlys;
+
+        /**
+         * The URL of each gadget.
+         */
+        private String[] urls;
+
+        /**
+         */
+        LazyBlip(
+                final String blipId
+        )
+        {
+            super();
+
+            this.blipId = blipId;
+            kinds = new byte[16];
+            offsets = new int[16];
+            values = new int[16];
+            names = new String[16];
+            readonlys = new boolean[16];
+            urls = new String[16];
+        }
+
+        /**
+         * Add a line or gadget.
+         */
+        void add(
+                final byte kind,
+                final int offset,
+                final String name,
+                final int value,
+                final boolean readonly,
+                final String url
+        )
+        {
+            if (size == kinds.length) {
+                kinds = Arrays.copyOf(kinds, size * 2);
+                offsets = Arrays.copyOf(offsets, size * 2);
+                values = Arrays.copyOf(values, size * 2);
+                names = Arrays.copyOf(names, size * 2);
+                readonlys = Arrays.copyOf(readonlys, size * 2);
+                urls = Arrays.copyOf(urls, size * 2);
+            }
+            kinds[size] = kind;
+            offsets[size] = offset;
+            values[size] = value;
+            names[size] = name;
+            readonlys[size] = readonly;
+            urls[size] = url;
+            size++;
+        }
+
+        /**
+         * Feed the lines and task tracker gadgets to a handler,
+         * as {@link WaveElements#walk(Map, TrackerElementHandler, List)} would for the full blip.
+         *
+         * <p>Gadgets that aren't task trackers are left out,
+         *      by the same rule as {@link TrackerTree#isTracker(com.google.wave.api.Element)}.</p>
+         *
+         * @param handler
+         *      The handler.
+         */
+        public void walk(
+                final TrackerElementHandler handler
+        )
+        {
+            final String url = BotSettings.get().getTaskTrackerGadgetUrl();
+            for (int idx = 0; idx < size; idx++) {
+                if (kinds[idx] == LINE) {
+                    handler.line(offsets[idx], names[idx], values[idx]);
+                }
+                else if (isTracker(idx, url)) {
+                    if (kinds[idx] == SUMMARY) {
+                        handler.summary(offsets[idx]);
+                    }
+                    else {
+                        handler.tracker(offsets[idx], names[idx], values[idx], readonlys[idx]);
+                    }
+                }
+            }
+        }
+
+        /**
+         * @param offset
+         *      An element offset.
+         * @param url
+         *      The URL of the task tracker gadget (if null or empty, no gadget is taken to be one).
+         * @return
+         *      Whether the gadget at the offset is a task tracker (or summary tracker),
+         *      or null if there isn't a gadget there.
+         */
+        public Boolean isTracker(
+                final int offset,
+                final String url
+        )
+        {
+            final int idx = Arrays.binarySearch(offsets, 0, size, offset);
+            if ((idx < 0) || (kinds[idx] == LINE)) {
+                return null;
+            }
+            return isTracker(idx, url);
+        }
+
+        /**
+         * @param url
+         *      The URL of the task tracker gadget (if null or empty, no gadget is taken to be one).
+         * @return
+         *      Whether the blip has any task tracker (or summary tracker) gadgets.
+         */
+        public boolean hasTrackers(
+                final String url
+        )
+        {
+            for (int idx = 0; idx < size; idx++) {
+                if ((kinds[idx] != LINE) && isTracker(idx, url)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * @param idx
+         *      The index of a gadget.
+         * @param url
+         *      The URL of the task tracker gadget (if null or empty, no gadget is taken to be one).
+         * @return
+         *      Whether the gadget is a task tracker (or summary tracker).
+         */
+        private boolean isTracker(
+                final int idx,
+                final String url
+        )
+        {
+            return !DGLStringUtil.isNullOrEmpty(url) && DGLStringUtil.equals(urls[idx], url);
+        }
+
+        /**
+         * Getter method for the <b>blipId</b> property.
+         */
+        @SuppressWarnings({"UnusedDeclaration"})
+        public String getBlipId() {return blipId;}
+
+        /**
+         * Getter method for the <b>version</b> property.
+         */
+        @SuppressWarnings({"UnusedDeclaration"})
+        public long getVersion() {return version;}
+
+        /**
+         * Getter method for the <b>numElements</b> property.
+         */
+        @SuppressWarnings({"UnusedDeclaration"})
+        public int getNumElements() {return numElements;}
+
+    }
+
+}
\ No newline at end of file
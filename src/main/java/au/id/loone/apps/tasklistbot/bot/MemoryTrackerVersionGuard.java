@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2010  David G Loone
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package au.id.loone.apps.tasklistbot.bot;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import au.id.loone.util.DGLStringUtil;
+import au.id.loone.util.tracing.TraceUtil;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Tracker version guard that keeps its claims in memory,
+ * which is enough to keep the requests of a single instance from racing each other.
+ *
+ * <p>The claims of the least recently claimed blips are dropped once the guard is full,
+ *      after which a stale write to one of them gets through.</p>
+ *
+ * @author David G Loone
+ */
+final class MemoryTrackerVersionGuard
+        implements TrackerVersionGuard
+{
+
+    @SuppressWarnings({"UnusedDeclaration"})
+    private static final Logger LOG = TraceUtil.getLogger(MemoryTrackerVersionGuard.class);
+
+    /**
+     * The latest claim for each blip, in least recently used order.
+     */
+    private final Map<String, Claim> claims;
+
+    /**
+     * @param maxSize
+     *      The maximum number of blips to keep claims for.
+     */
+    public MemoryTrackerVersionGuard(
+            final int maxSize
+    )
+    {
+        super();
+
+        claims = new LinkedHashMap<String, Claim>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(
+                    final Map.Entry<String, Claim> eldest
+            )
+            {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     */
+    public synchronized boolean claim(
+            final String key,
+            final long version,
+            final String owner
+    )
+    {
+        final Claim old = claims.get(key);
+        final boolean result = (old == null) || (version > old.version) ||
+                ((version == old.version) && DGLStringUtil.equals(owner, old.owner));
+        if (result) {
+            claims.put(key, new Claim(version, owner));
+        }
+        return result;
+    }
+
+    /**
+     * The latest claim for a blip.
+     */
+    private static final class Claim
+    {
+
+        /**
+         * The version of the blip that the claim is for.
+         */
+        final long version;
+
+        /**
+         * The request that made the claim.
+         */
+        final String owner;
+
+        /**
+         */
+        Claim(
+                final long version,
+                final String owner
+        )
+        {
+            super();
+
+            this.version = version;
+            this.owner = owner;
+        }
+
+    }
+
+}
\ No newline at end of file
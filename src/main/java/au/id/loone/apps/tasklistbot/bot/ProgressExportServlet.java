@@ -0,0 +1,305 @@
+/*
+ * Copyright (C) 2010  David G Loone
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package au.id.loone.apps.tasklistbot.bot;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Iterator;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import au.id.loone.util.DGLStringUtil;
+import au.id.loone.util.tracing.TraceUtil;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Serves the progress of the blips that the robot has checked (from {@link ProgressReport}),
+ * as newline delimited JSON or CSV, for dashboards to poll.
+ *
+ * <p>Nothing is fetched from the wave server and no document is looked at:
+ *      each row is written straight from the rolled up progress that was kept when its blip was last checked,
+ *      and rows are written as they are read, so the memory used doesn't depend on how many there are.</p>
+ *
+ * <p>The request parameters are:</p>
+ * <ul>
+ *      <li><b>format</b>: <code>ndjson</code> (the default) or <code>csv</code>.</li>
+ *      <li><b>level</b>: <code>blip</code> (the default) for a row per blip,
+ *          or <code>tracker</code> for a row per tracker.</li>
+ *      <li><b>wave</b>, <b>wavelet</b>: only the blips of this wave (and wavelet).</li>
+ *      <li><b>after</b>: only the blips after this key
+ *          (<code>waveId/waveletId/blipId</code>, as given back in the <b>X-Next-After</b> header).</li>
+ *      <li><b>since</b>: only the blips checked after this time (in milliseconds).</li>
+ *      <li><b>limit</b>: the most blips to write (default {@link #DEFAULT_LIMIT}, at most {@link #MAX_LIMIT}).</li>
+ * </ul>
+ *
+ * <p>If there are more blips than the limit,
+ *      the key of the last one written is given back in the <b>X-Next-After</b> header.
+ *      The <b>Last-Modified</b> header is when the latest of the blips asked for was checked,
+ *      rounded up to the next whole second (which is all that the header can hold),
+ *      so a poller that sends <b>If-Modified-Since</b> gets a bodiless 304 until something changes.
+ *      It isn't sent until that second is over,
+ *      so that a blip checked later in the same second isn't hidden behind a 304.</p>
+ *
+ * <p>The report is kept in memory by each instance of the application,
+ *      and only has the blips that the instance has checked since it started.
+ *      With more than one instance (as App Engine runs it),
+ *      each poll gets whichever instance serves it, with its own partial set of rows and its own
+ *      <b>Last-Modified</b>.
+ *      The instance's report id is given back in the <b>X-Instance-Id</b> header,
+ *      so a poller can tell when it has been switched to another instance
+ *      (and shouldn't send it an <b>If-Modified-Since</b> or <b>after</b> from the last one).</p>
+ *
+ * <p>The report gives away the id of every wave the robot has been in,
+ *      so <b>web.xml</b> only lets the application's admins get at it.</p>
+ *
+ * @author David G Loone
+ */
+public final class ProgressExportServlet
+        extends HttpServlet
+{
+
+    @SuppressWarnings({"UnusedDeclaration"})
+    private static final Logger LOG = TraceUtil.getLogger(ProgressExportServlet.class);
+
+    /**
+     * The number of blips written if the request doesn't say.
+     */
+    static final int DEFAULT_LIMIT = 500;
+
+    /**
+     * The most blips written for a single request.
+     */
+    static final int MAX_LIMIT = 10000;
+
+    /**
+     */
+    public ProgressExportServlet()
+    {
+        super();
+    }
+
+    /**
+     */
+    @Override
+    protected long getLastModified(
+            final HttpServletRequest req
+    )
+    {
+        final long modified = ProgressReport.getDefault().getLastModified(getPrefix(req));
+        final long result = ((modified / 1000) + 1) * 1000;
+        return ((modified == 0) || (result > System.currentTimeMillis())) ? -1 : result;
+    }
+
+    /**
+     */
+    @Override
+    protected void doGet(
+            final HttpServletRequest req,
+            final HttpServletResponse resp
+    )
+            throws IOException
+    {
+        final boolean csv = "csv".equals(req.getParameter("format"));
+        final boolean trackers = "tracker".equals(req.getParameter("level"));
+        final String prefix = getPrefix(req);
+        final String after = DGLStringUtil.isNullOrEmpty(req.getParameter("after")) ? null : req.getParameter("after");
+        final long since;
+        final int limit;
+        try {
+            since = DGLStringUtil.isNullOrEmpty(req.getParameter("since")) ? 0 :
+                    Long.parseLong(req.getParameter("since"));
+            limit = DGLStringUtil.isNullOrEmpty(req.getParameter("limit")) ? DEFAULT_LIMIT :
+                    Math.max(1, Math.min(MAX_LIMIT, Integer.parseInt(req.getParameter("limit"))));
+        }
+        catch (final NumberFormatException e) {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "bad since or limit: " + e.getMessage());
+            return;
+        }
+
+        // Find where the page ends first, so the cursor can go in a header before any rows are written.
+        final ProgressReport report = ProgressReport.getDefault();
+        String last = null;
+        boolean more = false;
+        int numRows = 0;
+        for (final Iterator<ProgressReport.BlipProgress> i = report.iterator(after, prefix); i.hasNext();) {
+            final ProgressReport.BlipProgress entry = i.next();
+            if (entry.getModified() > since) {
+                if (numRows == limit) {
+                    more = true;
+                    break;
+                }
+                last = entry.getKey();
+                numRows++;
+            }
+        }
+        final String next = more ? last : null;
+
+        resp.setContentType(csv ? "text/csv" : "application/x-ndjson");
+        resp.setCharacterEncoding("UTF-8");
+        resp.setHeader("Cache-Control", "no-cache");
+        resp.setHeader("X-Instance-Id", report.getInstanceId());
+        if (next != null) {
+            resp.setHeader("X-Next-After", next);
+        }
+        final PrintWriter out = resp.getWriter();
+        if (csv) {
+            out.print(trackers ? "wave_id,wavelet_id,blip_id,version,modified,tracker_id,parent_id,progress,readonly\n" :
+                    "wave_id,wavelet_id,blip_id,version,modified,progress,trackers,pending\n");
+        }
+        for (final Iterator<ProgressReport.BlipProgress> i = report.iterator(after, prefix); i.hasNext();) {
+            final ProgressReport.BlipProgress entry = i.next();
+            if ((next != null) && (entry.getKey().compareTo(next) > 0)) {
+                break;
+            }
+            if (entry.getModified() > since) {
+                if (trackers) {
+                    for (int idx = 0; idx < entry.getNumTrackers(); idx++) {
+                        writeTracker(out, csv, entry, idx);
+                    }
+                }
+                else {
+                    writeBlip(out, csv, entry);
+                }
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * @param req
+     *      The request.
+     * @return
+     *      The start of the keys of the blips asked for, or null for all of them.
+     */
+    private static String getPrefix(
+            final HttpServletRequest req
+    )
+    {
+        final String waveId = req.getParameter("wave");
+        final String waveletId = req.getParameter("wavelet");
+        if (DGLStringUtil.isNullOrEmpty(waveId)) {
+            return null;
+        }
+        return DGLStringUtil.isNullOrEmpty(waveletId) ? (waveId + "/") : (waveId + "/" + waveletId + "/");
+    }
+
+    /**
+     * Write the row for a blip.
+     */
+    private static void writeBlip(
+            final PrintWriter out,
+            final boolean csv,
+            final ProgressReport.BlipProgress entry
+    )
+    {
+        if (csv) {
+            out.print(csvField(entry.getWaveId()) + "," + csvField(entry.getWaveletId()) + "," +
+                    csvField(entry.getBlipId()) + "," + entry.getVersion() + "," + entry.getModified() + "," +
+                    entry.getProgress() + "," + entry.getNumTrackers() + "," + entry.getNumPending() + "\n");
+        }
+        else {
+            out.print("{\"wave\":" + jsonString(entry.getWaveId()) +
+                    ",\"wavelet\":" + jsonString(entry.getWaveletId()) +
+                    ",\"blip\":" + jsonString(entry.getBlipId()) +
+                    ",\"version\":" + entry.getVersion() +
+                    ",\"modified\":" + entry.getModified() +
+                    ",\"progress\":" + entry.getProgress() +
+                    ",\"trackers\":" + entry.getNumTrackers() +
+                    ",\"pending\":" + entry.getNumPending() + "}\n");
+        }
+    }
+
+    /**
+     * Write the row for a tracker.
+     */
+    private static void writeTracker(
+            final PrintWriter out,
+            final boolean csv,
+            final ProgressReport.BlipProgress entry,
+            final int idx
+    )
+    {
+        if (csv) {
+            out.print(csvField(entry.getWaveId()) + "," + csvField(entry.getWaveletId()) + "," +
+                    csvField(entry.getBlipId()) + "," + entry.getVersion() + "," + entry.getModified() + "," +
+                    csvField(entry.getTrackerId(idx)) + "," + csvField(entry.getParentId(idx)) + "," +
+                    entry.getProgress(idx) + "," + entry.getReadonly(idx) + "\n");
+        }
+        else {
+            out.print("{\"wave\":" + jsonString(entry.getWaveId()) +
+                    ",\"wavelet\":" + jsonString(entry.getWaveletId()) +
+                    ",\"blip\":" + jsonString(entry.getBlipId()) +
+                    ",\"version\":" + entry.getVersion() +
+                    ",\"modified\":" + entry.getModified() +
+                    ",\"tracker\":" + jsonString(entry.getTrackerId(idx)) +
+                    ",\"parent\":" + jsonString(entry.getParentId(idx)) +
+                    ",\"progress\":" + entry.getProgress(idx) +
+                    ",\"readonly\":" + entry.getReadonly(idx) + "}\n");
+        }
+    }
+
+    /**
+     * @return
+     *      A string as a JSON value (null as <code>null</code>).
+     */
+    private static String jsonString(
+            final String value
+    )
+    {
+        if (value == null) {
+            return "null";
+        }
+
+        final StringBuilder result = new StringBuilder(value.length() + 2);
+        result.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if ((c == '"') || (c == '\\')) {
+                result.append('\\').append(c);
+            }
+            else if (c < ' ') {
+                result.append(String.format("\\u%04x", (int)c));
+            }
+            else {
+                result.append(c);
+            }
+        }
+        return result.append('"').toString();
+    }
+
+    /**
+     * @return
+     *      A string as a CSV field (null as an empty field).
+     */
+    private static String csvField(
+            final String value
+    )
+    {
+        if (value == null) {
+            return "";
+        }
+        if ((value.indexOf(',') == -1) && (value.indexOf('"') == -1) && (value.indexOf('\n') == -1) &&
+                (value.indexOf('\r') == -1)) {
+            return value;
+        }
+        return "\"" + value.replace("\"", "\"\"") + "\"";
+    }
+
+}
\ No newline at end of file
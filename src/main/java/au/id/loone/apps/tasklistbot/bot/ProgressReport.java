@@ -0,0 +1,533 @@
+/*
+ * Copyright (C) 2010  David G Loone
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package au.id.loone.apps.tasklistbot.bot;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import au.id.loone.apps.tasklistbot.core.TrackerRollup;
+import au.id.loone.util.tracing.TraceUtil;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The latest rolled up progress of each blip that has been checked, for reporting.
+ *
+ * <p>Each blip's entry is a snapshot taken from its tree when the tree is put away,
+ *      so reading the report never touches a tree that a request might be working on,
+ *      and never needs the document.
+ *      Only a full check copies every tracker into the snapshot.
+ *      After an incremental check just the trackers that it looked at are noted on top of the last snapshot,
+ *      so that keeping the report up to date costs no more than the check itself did.
+ *      Entries are kept sorted by wave id, wavelet id and blip id (see {@link #keyOf(String, String, String)}),
+ *      so a reader can page through them from any point without copying them.
+ *      The least recently updated blips are dropped once there are too many.</p>
+ *
+ * <p>Only the blips that this instance has seen since it started are in the report,
+ *      so with more than one instance each one has a different (partial) report.
+ *      Each report has its own random id, so that a reader can tell which instance it came from.</p>
+ *
+ * @author David G Loone
+ */
+final class ProgressReport
+{
+
+    @SuppressWarnings({"UnusedDeclaration"})
+    private static final Logger LOG = TraceUtil.getLogger(ProgressReport.class);
+
+    /**
+     * The entries, keyed by {@link #keyOf(String, String, String)}.
+     */
+    private final ConcurrentNavigableMap<String, BlipProgress> entries;
+
+    /**
+     * The keys of the entries, in least recently updated order (guarded by itself).
+     */
+    private final Map<String, Boolean> order;
+
+    /**
+     * Current value of the <b>instanceId</b> property.
+     */
+    private final String instanceId;
+
+    /**
+     * Current value of the <b>lastModified</b> property.
+     */
+    private volatile long lastModified;
+
+    /**
+     * @param maxSize
+     *      The maximum number of blips to keep.
+     */
+    public ProgressReport(
+            final int maxSize
+    )
+    {
+        super();
+
+        instanceId = TrackerIdGenerator.next();
+        entries = new ConcurrentSkipListMap<String, BlipProgress>();
+        order = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(
+                    final Map.Entry<String, Boolean> eldest
+            )
+            {
+                final boolean result = size() > maxSize;
+                if (result) {
+                    entries.remove(eldest.getKey());
+                }
+                return result;
+            }
+        };
+    }
+
+    /**
+     * @return
+     *      The report that the robot keeps up to date.
+     */
+    public static ProgressReport getDefault()
+    {
+        return Holder.DEFAULT;
+    }
+
+    /**
+     * @param waveId
+     *      The id of the wave.
+     * @param waveletId
+     *      The id of the wavelet.
+     * @param blipId
+     *      The id of the blip.
+     * @return
+     *      The key of the blip's entry.
+     */
+    static String keyOf(
+            final String waveId,
+            final String waveletId,
+            final String blipId
+    )
+    {
+        return waveId + "/" + waveletId + "/" + blipId;
+    }
+
+    /**
+     * Record the progress of a blip.
+     *
+     * @param waveId
+     *      The id of the wave.
+     * @param waveletId
+     *      The id of the wavelet.
+     * @param blipId
+     *      The id of the blip.
+     * @param version
+     *      The version of the blip that the tree was worked out from.
+     * @param tree
+     *      The blip's (up to date) tree.
+     * @param changed
+     *      The indexes of the only trackers whose progress may have changed since the blip was last recorded,
+     *      or null if the tree has been built afresh (in which case every tracker is copied).
+     */
+    public void update(
+            final String waveId,
+            final String waveletId,
+            final String blipId,
+            final long version,
+            final TrackerTree tree,
+            final int[] changed
+    )
+    {
+        final long modified = System.currentTimeMillis();
+        final String key = keyOf(waveId, waveletId, blipId);
+        final BlipProgress snapshot = (changed == null) ?
+                new BlipProgress(waveId, waveletId, blipId, version, modified, tree) : null;
+        synchronized (order) {
+            final BlipProgress previous = (snapshot == null) ? entries.get(key) : null;
+            final BlipProgress entry;
+            if (snapshot != null) {
+                entry = snapshot;
+            }
+            else if ((previous != null) && (previous.getNumTrackers() == tree.getRollup().getSize())) {
+                entry = new BlipProgress(previous, version, modified, tree, changed);
+            }
+            else {
+                entry = new BlipProgress(waveId, waveletId, blipId, version, modified, tree);
+            }
+            entries.put(key, entry);
+            order.put(key, Boolean.TRUE);
+        }
+        if (modified > lastModified) {
+            lastModified = modified;
+        }
+    }
+
+    /**
+     * @param after
+     *      Only entries whose key comes after this (or null for all of them).
+     * @param prefix
+     *      Only entries whose key starts with this (or null for all of them).
+     * @return
+     *      The entries, in key order (the iteration sees updates made while it is going,
+     *      but never fails because of them).
+     */
+    public Iterator<BlipProgress> iterator(
+            final String after,
+            final String prefix
+    )
+    {
+        if (prefix == null) {
+            return ((after == null) ? entries : entries.tailMap(after, false)).values().iterator();
+        }
+
+        final String end = prefix + Character.MAX_VALUE;
+        if ((after != null) && (after.compareTo(end) >= 0)) {
+            return Collections.<BlipProgress>emptyList().iterator();
+        }
+        final ConcurrentNavigableMap<String, BlipProgress> result = ((after != null) && (after.compareTo(prefix) >= 0)) ?
+                entries.subMap(after, false, end, false) : entries.subMap(prefix, true, end, false);
+        return result.values().iterator();
+    }
+
+    /**
+     * @param prefix
+     *      Only entries whose key starts with this (or null for all of them).
+     * @return
+     *      When the latest of the entries was last updated
+     *      (in milliseconds, or zero if there aren't any).
+     */
+    public long getLastModified(
+            final String prefix
+    )
+    {
+        if (prefix == null) {
+            return lastModified;
+        }
+
+        long result = 0;
+        for (final BlipProgress entry : entries.subMap(prefix, prefix + Character.MAX_VALUE).values()) {
+            result = Math.max(result, entry.getModified());
+        }
+        return result;
+    }
+
+    /**
+     * Getter method for the <b>instanceId</b> property.
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public String getInstanceId() {return instanceId;}
+
+    /**
+     * Getter method for the <b>lastModified</b> property.
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public long getLastModified() {return lastModified;}
+
+    /**
+     * The progress of a single blip, as it was when it was last checked.
+     */
+    static final class BlipProgress
+    {
+
+        /**
+         * Current value of the <b>waveId</b> property.
+         */
+        private final String waveId;
+
+        /**
+         * Current value of the <b>waveletId</b> property.
+         */
+        private final String waveletId;
+
+        /**
+         * Current value of the <b>blipId</b> property.
+         */
+        private final String blipId;
+
+        /**
+         * Current value of the <b>version</b> property.
+         */
+        private final long version;
+
+        /**
+         * Current value of the <b>modified</b> property.
+         */
+        private final long modified;
+
+        /**
+         * Current value of the <b>progress</b> property.
+         */
+        private final int progress;
+
+        /**
+         * Current value of the <b>numPending</b> property.
+         */
+        private final int numPending;
+
+        /**
+         * The <b>taskTrackerId</b> of each tracker, in document order.
+         */
+        private final String[] trackerIds;
+
+        /**
+         * The index of the parent of each tracker (or -1 for a top level tracker).
+         */
+        private final int[] parents;
+
+        /**
+         * The rolled up progress of each tracker, as of the last time that they were all copied.
+         */
+        private final int[] progresses;
+
+        /**
+         * The rolled up progress of the trackers that have been looked at since then, by index.
+         */
+        private final Map<Integer, Integer> changedProgresses;
+
+        /**
+         * Whether each tracker is readonly (<i>ie</i> has children).
+         */
+        private final boolean[] readonlys;
+
+        /**
+         */
+        BlipProgress(
+                final String waveId,
+                final String waveletId,
+                final String blipId,
+                final long version,
+                final long modified,
+                final TrackerTree tree
+        )
+        {
+            super();
+
+            this.waveId = waveId;
+            this.waveletId = waveletId;
+            this.blipId = blipId;
+            this.version = version;
+            this.modified = modified;
+
+            final TrackerRollup rollup = tree.getRollup();
+            final int size = rollup.getSize();
+            progress = (rollup.getTopNumNodes() == 0) ? 0 : (rollup.getTopTotal() / rollup.getTopNumNodes());
+            numPending = tree.getNumPending();
+            trackerIds = new String[size];
+            parents = new int[size];
+            progresses = new int[size];
+            readonlys = new boolean[size];
+            for (int idx = 0; idx < size; idx++) {
+                trackerIds[idx] = tree.getTrackerId(idx);
+                parents[idx] = rollup.getParent(idx);
+                progresses[idx] = rollup.getTargetProgress(idx);
+                readonlys[idx] = rollup.getTargetReadonly(idx);
+            }
+            changedProgresses = Collections.emptyMap();
+        }
+
+        /**
+         * Bring an entry up to date after an incremental check,
+         * which leaves the structure of the tree (and so the ids, parents and readonly flags) as it was.
+         *
+         * <p>The trackers that have been looked at are kept apart from the rest until there are enough of them
+         *      for it to be worth copying all the progress values again.</p>
+         *
+         * @param previous
+         *      The blip's entry before the check (with the same number of trackers as the tree).
+         * @param changed
+         *      The indexes of the trackers that the check looked at.
+         */
+        BlipProgress(
+                final BlipProgress previous,
+                final long version,
+                final long modified,
+                final TrackerTree tree,
+                final int[] changed
+        )
+        {
+            super();
+
+            waveId = previous.waveId;
+            waveletId = previous.waveletId;
+            blipId = previous.blipId;
+            this.version = version;
+            this.modified = modified;
+
+            final TrackerRollup rollup = tree.getRollup();
+            progress = (rollup.getTopNumNodes() == 0) ? 0 : (rollup.getTopTotal() / rollup.getTopNumNodes());
+            numPending = tree.getNumPending();
+            trackerIds = previous.trackerIds;
+            parents = previous.parents;
+            readonlys = previous.readonlys;
+            if (changed.length == 0) {
+                progresses = previous.progresses;
+                changedProgresses = previous.changedProgresses;
+                return;
+            }
+
+            final Map<Integer, Integer> newChangedProgresses =
+                    new HashMap<Integer, Integer>(previous.changedProgresses);
+            for (final int idx : changed) {
+                newChangedProgresses.put(idx, rollup.getTargetProgress(idx));
+            }
+            if (newChangedProgresses.size() > (trackerIds.length / 4)) {
+                progresses = previous.progresses.clone();
+                for (final Map.Entry<Integer, Integer> entry : newChangedProgresses.entrySet()) {
+                    progresses[entry.getKey()] = entry.getValue();
+                }
+                changedProgresses = Collections.emptyMap();
+            }
+            else {
+                progresses = previous.progresses;
+                changedProgresses = newChangedProgresses;
+            }
+        }
+
+        /**
+         * @return
+         *      The key of the entry (see {@link ProgressReport#keyOf(String, String, String)}).
+         */
+        public String getKey()
+        {
+            return keyOf(waveId, waveletId, blipId);
+        }
+
+        /**
+         * @return
+         *      The number of trackers in the blip.
+         */
+        public int getNumTrackers()
+        {
+            return trackerIds.length;
+        }
+
+        /**
+         * @param idx
+         *      The index of a tracker (in document order).
+         * @return
+         *      The tracker's <b>taskTrackerId</b>.
+         */
+        public String getTrackerId(
+                final int idx
+        )
+        {
+            return trackerIds[idx];
+        }
+
+        /**
+         * @param idx
+         *      The index of a tracker (in document order).
+         * @return
+         *      The <b>taskTrackerId</b> of the tracker's parent, or null for a top level tracker.
+         */
+        public String getParentId(
+                final int idx
+        )
+        {
+            return (parents[idx] == -1) ? null : trackerIds[parents[idx]];
+        }
+
+        /**
+         * @param idx
+         *      The index of a tracker (in document order).
+         * @return
+         *      The tracker's rolled up progress (as a percentage).
+         */
+        public int getProgress(
+                final int idx
+        )
+        {
+            final Integer result = changedProgresses.get(idx);
+            return (result == null) ? progresses[idx] : result;
+        }
+
+        /**
+         * @param idx
+         *      The index of a tracker (in document order).
+         * @return
+         *      Whether the tracker is readonly (<i>ie</i> its progress comes from its children).
+         */
+        public boolean getReadonly(
+                final int idx
+        )
+        {
+            return readonlys[idx];
+        }
+
+        /**
+         * Getter method for the <b>waveId</b> property.
+         */
+        @SuppressWarnings({"UnusedDeclaration"})
+        public String getWaveId() {return waveId;}
+
+        /**
+         * Getter method for the <b>waveletId</b> property.
+         */
+        @SuppressWarnings({"UnusedDeclaration"})
+        public String getWaveletId() {return waveletId;}
+
+        /**
+         * Getter method for the <b>blipId</b> property.
+         */
+        @SuppressWarnings({"UnusedDeclaration"})
+        public String getBlipId() {return blipId;}
+
+        /**
+         * Getter method for the <b>version</b> property.
+         */
+        @SuppressWarnings({"UnusedDeclaration"})
+        public long getVersion() {return version;}
+
+        /**
+         * Getter method for the <b>modified</b> property.
+         * This is when the entry was recorded (in milliseconds).
+         */
+        @SuppressWarnings({"UnusedDeclaration"})
+        public long getModified() {return modified;}
+
+        /**
+         * Getter method for the <b>progress</b> property.
+         * This is the progress of the blip's top level trackers together (as a percentage).
+         */
+        @SuppressWarnings({"UnusedDeclaration"})
+        public int getProgress() {return progress;}
+
+        /**
+         * Getter method for the <b>numPending</b> property.
+         */
+        @SuppressWarnings({"UnusedDeclaration"})
+        public int getNumPending() {return numPending;}
+
+    }
+
+    /**
+     * Holds the default report, so that it isn't set up until it is first needed.
+     */
+    private static final class Holder
+    {
+
+        /**
+         * The default report.
+         */
+        static final ProgressReport DEFAULT = new ProgressReport(BotSettings.get().getProgressReportSize());
+
+    }
+
+}
\ No newline at end of file
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2010  David G Loone
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package au.id.loone.apps.tasklistbot.bot;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import au.id.loone.util.tracing.TraceUtil;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Collapses bursts of recompute requests for the same blip into a single recompute.
+ *
+ * <p>Each request is scheduled against a key (the blip id) along with an item (<i>eg</i> the event).
+ *      Nothing is recomputed until {@link #flush()} is called,
+ *      and then all the items that arrived for each key are handed over in one go.
+ *      The caller flushes once it has seen everything that it is going to see,
+ *      which for the robot is the end of the event bundle
+ *      (changes can only be written back in the response to the bundle, so there is no later to wait for).</p>
+ *
+ * @param <T>
+ *      The type of the items that are collapsed.
+ * @author David G Loone
+ */
+final class RecomputeScheduler<T>
+{
+
+    @SuppressWarnings({"UnusedDeclaration"})
+    private static final Logger LOG = TraceUtil.getLogger(RecomputeScheduler.class);
+
+    /**
+     * What to do when it's time to recompute.
+     */
+    private final Recompute<T> recompute;
+
+    /**
+     * The items for the recomputes that are waiting, in the order that they were first requested.
+     */
+    private final Map<String, List<T>> pending;
+
+    /**
+     * @param recompute
+     *      What to do when it's time to recompute.
+     */
+    public RecomputeScheduler(
+            final Recompute<T> recompute
+    )
+    {
+        super();
+
+        this.recompute = recompute;
+        pending = new LinkedHashMap<String, List<T>>();
+    }
+
+    /**
+     * Ask for a recompute.
+     *
+     * @param key
+     *      What to recompute (<i>eg</i> the blip id).
+     * @param item
+     *      The reason for the recompute (<i>eg</i> the event).
+     */
+    public void schedule(
+            final String key,
+            final T item
+    )
+    {
+        synchronized (pending) {
+            List<T> items = pending.get(key);
+            if (items == null) {
+                items = new ArrayList<T>();
+                pending.put(key, items);
+            }
+            items.add(item);
+        }
+    }
+
+    /**
+     * Run all the waiting recomputes.
+     *
+     * @return
+     *      The number of recomputes run.
+     */
+    public int flush()
+    {
+        // Take the recomputes out of the map first, so that they are run without holding the lock
+        // (and a request that arrives while they are running is kept for the next flush).
+        final List<String> keys;
+        final List<List<T>> items;
+        synchronized (pending) {
+            keys = new ArrayList<String>(pending.keySet());
+            items = new ArrayList<List<T>>(pending.values());
+            pending.clear();
+        }
+
+        for (int idx = 0; idx < keys.size(); idx++) {
+            recompute.recompute(keys.get(idx), items.get(idx));
+        }
+        return keys.size();
+    }
+
+    /**
+     * What to do when it's time to recompute.
+     *
+     * @param <T>
+     *      The type of the items that are collapsed.
+     */
+    interface Recompute<T>
+    {
+
+        /**
+         * @param key
+         *      What to recompute.
+         * @param items
+         *      All the items scheduled for the key since the last recompute, in the order they arrived.
+         */
+        void recompute(
+                String key,
+                List<T> items
+        );
+
+    }
+
+}
\ No newline at end of file
@@ -16,28 +16,40 @@
 
 package au.id.loone.apps.tasklistbot.bot;
 
-import java.util.LinkedList;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
-import au.id.loone.apps.tasklistbot.TaskListBotConfig;
-import au.id.loone.util.DGLDateTimeUtil;
+import au.id.loone.apps.tasklistbot.core.TrackerRollup;
 import au.id.loone.util.DGLStringUtil;
-import au.id.loone.util.DGLUtil;
 import au.id.loone.util.config.ConfigData;
 import au.id.loone.util.tracing.TraceUtil;
 
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import com.google.wave.api.AbstractRobot;
 import com.google.wave.api.Blip;
-import com.google.wave.api.BlipContentRefs;
 import com.google.wave.api.Context;
 import com.google.wave.api.Element;
-import com.google.wave.api.ElementType;
+import com.google.wave.api.EventMessageBundle;
 import com.google.wave.api.Gadget;
-import com.google.wave.api.Line;
+import com.google.wave.api.Wavelet;
 import com.google.wave.api.event.BlipSubmittedEvent;
 import com.google.wave.api.event.DocumentChangedEvent;
+import com.google.wave.api.event.Event;
 import com.google.wave.api.event.GadgetStateChangedEvent;
-import com.google.wave.api.event.WaveletSelfAddedEvent;
 import org.apache.log4j.Logger;
 
 /**
@@ -57,9 +69,27 @@ public final class TaskListBot
     private static final Logger LOG = TraceUtil.getLogger(TaskListBot.class);
 
     /**
-     * Config bean.
+     * Matches the URL of the task tracker gadget, for the server to filter gadget events on.
+     * Annotation values have to be constants, so this can't come from the <b>taskTrackerGadgetUrl</b> config property,
+     * which has to end with it.
+     */
+    static final String TRACKER_GADGET_FILTER = "TaskTrackerGadget\\.xml";
+
+    /**
+     * The path that event bundles are posted to.
      */
-    private static final TaskListBotConfig CONFIG = TaskListBotConfig.factory();
+    private static final String RPC_PATH = "/_wave/robot/jsonrpc";
+
+    /**
+     * The recompute scheduler for the bundle being processed by the current thread.
+     */
+    private static final ThreadLocal<RecomputeScheduler<Event>> RECOMPUTES =
+            new ThreadLocal<RecomputeScheduler<Event>>();
+
+    /**
+     * The id of the bundle being processed by the current thread (which owns its tracker version claims).
+     */
+    private static final ThreadLocal<String> BUNDLE_IDS = new ThreadLocal<String>();
 
     /**
      */
@@ -70,11 +100,73 @@ public final class TaskListBot
         LOG.trace("TaskListBot()");
 
         // Only need to do this once.
-        setupVerificationToken(CONFIG.getVerificationToken(), CONFIG.getSecurityToken());
+        final BotSettings settings = BotSettings.get();
+        Tracer.setSampleInterval(settings.getTraceSampleInterval());
+        TrackerRollup.setParallelThreshold(settings.getParallelRollupThreshold());
+        setupVerificationToken(settings.getVerificationToken(), settings.getSecurityToken());
 
 //        setupOAuth(CONFIG.getConsumerKey(), CONFIG.getConsumerKey());
     }
 
+    /**
+     * @return
+     *      The persistent store to put behind the tracker tree cache, or null if there isn't one.
+     */
+    private static TrackerStateStore createStateStore()
+    {
+        final BotSettings settings = BotSettings.get();
+        final TrackerStateStore result;
+        if ("file".equals(settings.getTrackerStateStore())) {
+            result = new FileTrackerStateStore(new File(settings.getTrackerStateDir()));
+        }
+        else if ("datastore".equals(settings.getTrackerStateStore())) {
+            result = new DatastoreTrackerStateStore(DatastoreServiceFactory.getDatastoreService());
+        }
+        else {
+            result = null;
+        }
+        return result;
+    }
+
+    /**
+     * @return
+     *      The guard against racing tracker writes, or null if there isn't one.
+     */
+    private static TrackerVersionGuard createVersionGuard()
+    {
+        final BotSettings settings = BotSettings.get();
+        final TrackerVersionGuard result;
+        if ("datastore".equals(settings.getTrackerVersionGuard())) {
+            result = new DatastoreTrackerVersionGuard(DatastoreServiceFactory.getDatastoreService());
+        }
+        else if ("none".equals(settings.getTrackerVersionGuard())) {
+            result = null;
+        }
+        else {
+            result = new MemoryTrackerVersionGuard(settings.getTrackerTreeCacheSize());
+        }
+        return result;
+    }
+
+    /**
+     * @return
+     *      The threads to work out the blips in a bundle on, or null if they are to be done one by one.
+     */
+    private static ExecutorService createBlipExecutor()
+    {
+        final int numThreads = BotSettings.get().getBundleThreads();
+        return (numThreads <= 0) ? null : Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+            public Thread newThread(
+                    final Runnable r
+            )
+            {
+                final Thread result = new Thread(r, "TaskListBot");
+                result.setDaemon(true);
+                return result;
+            }
+        });
+    }
+
     /**
      * Getter method for the <b>robotName</b> property.
      */
@@ -83,7 +175,7 @@ public final class TaskListBot
     {
         LOG.trace("getRobotName()");
 
-        return CONFIG.getRobotName();
+        return BotSettings.get().getRobotName();
     }
 
     /**
@@ -94,8 +186,8 @@ public final class TaskListBot
     {
         LOG.trace("getRobotAvatarUrl()");
 
-        return (CONFIG.getRobotAvatarUrl() == null) ? super.getRobotAvatarUrl() :
-                CONFIG.getRobotAvatarUrl().toString();
+        return (BotSettings.get().getRobotAvatarUrl() == null) ? super.getRobotAvatarUrl() :
+                BotSettings.get().getRobotAvatarUrl();
     }
 
     /**
@@ -106,37 +198,250 @@ public final class TaskListBot
     {
         LOG.trace("getRobotProfilePageUrl()");
 
-        return (CONFIG.getRobotProfilePageUrl() == null) ? null :
-                CONFIG.getRobotProfilePageUrl().toString();
+        return BotSettings.get().getRobotProfilePageUrl();
     }
 
     /**
+     * Handle a post, scanning an event bundle first if it is configured to.
+     *
+     * <p>The whole post is one request as far as tracing goes,
+     *      so everything logged for the bundle (on whichever thread) has the same correlation id.</p>
+     *
+     * <p>Most bundles need nothing doing (<i>eg</i> a submit of a blip where only text was edited),
+     *      but deserialising a bundle builds every blip, element and annotation in it,
+     *      which for a big wave is most of the work of the request.
+     *      So the bundle is scanned for just the lines and gadgets of its blips,
+     *      and if that is enough to see that there is nothing to do, an empty response is sent straight away.
+     *      Otherwise the bundle is deserialised and processed as usual.</p>
      */
     @Override
-    public void onWaveletSelfAdded(
-            final WaveletSelfAddedEvent event
+    protected void doPost(
+            final HttpServletRequest req,
+            final HttpServletResponse resp
     )
+            throws IOException
     {
-        LOG.trace("onWaveletSelfAdded(" + TraceUtil.formatObj(event) + ")");
+        Tracer.begin();
+        try {
+            if (BotSettings.get().isLazyBundles() && (req.getRequestURI() != null) &&
+                    req.getRequestURI().endsWith(RPC_PATH)) {
+                doPostLazily(req, resp);
+            }
+            else {
+                super.doPost(req, resp);
+            }
+        }
+        finally {
+            Tracer.end();
+        }
+    }
+
+    /**
+     * Handle a post of an event bundle, scanning it first.
+     */
+    private void doPostLazily(
+            final HttpServletRequest req,
+            final HttpServletResponse resp
+    )
+            throws IOException
+    {
+        final long start = System.nanoTime();
+        final byte[] body = BundleRecorderFilter.readAll(req.getInputStream());
+        final LazyBundle bundle = LazyBundle.parse(body);
+        final boolean skipped = (bundle != null) && isNothingToDo(bundle);
+        BotMetrics.LAZY_SCAN_SECONDS.observeSince(start);
+        if (skipped) {
+            BotMetrics.LAZY_SKIPPED.inc();
+            BotMetrics.BUNDLE_EVENTS.observe(bundle.getEvents().size());
+            resp.setContentType("application/json");
+            resp.setCharacterEncoding("UTF-8");
+            resp.getWriter().write("[]");
+            return;
+        }
+        BotMetrics.LAZY_FULL.inc();
+        super.doPost(new BundleRecorderFilter.BufferedRequest(req, body), resp);
     }
 
     /**
+     * Check whether a scanned bundle needs anything doing.
+     *
+     * <p>There is nothing to do for a change of a gadget that isn't a tracker,
+     *      a submit of a blip with no trackers that has never had any,
+     *      or a submit of a blip whose trackers are as the tree that we saved last time says they are
+     *      (and which has no summary trackers or held back changes, and is already counted in its wavelet).
+     *      Anything else needs the full bundle.</p>
+     *
+     * @param bundle
+     *      The scanned bundle.
+     * @return
+     *      Whether every event in the bundle can be ignored.
      */
+    private boolean isNothingToDo(
+            final LazyBundle bundle
+    )
+    {
+        if (bundle.getEvents().isEmpty()) {
+            return false;
+        }
+
+        final String url = BotSettings.get().getTaskTrackerGadgetUrl();
+        final String waveletKey = waveletKeyOf(bundle.getWaveId(), bundle.getWaveletId());
+        if (waveletKey == null) {
+            return false;
+        }
+        for (final LazyBundle.LazyEvent event : bundle.getEvents()) {
+            final LazyBundle.LazyBlip blip = bundle.getBlip(event.getBlipId());
+            if (blip == null) {
+                return false;
+            }
+            if ("GADGET_STATE_CHANGED".equals(event.getType())) {
+                if ((event.getIndex() == null) || !Boolean.FALSE.equals(blip.isTracker(event.getIndex(), url))) {
+                    return false;
+                }
+            }
+            else if ("BLIP_SUBMITTED".equals(event.getType())) {
+                if (blip.hasTrackers(url) ? !isUnchanged(waveletKey, blip) :
+                        State.WAVELETS.contains(waveletKey, blip.getBlipId())) {
+                    return false;
+                }
+            }
+            else {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Check whether the trackers of a scanned blip are as the tree that we saved last time says they are,
+     * and if so note that the tree matches this version of the blip.
+     *
+     * @param waveletKey
+     *      Identifies the wavelet that the blip is in (see {@link #waveletKeyOf(String, String)}).
+     * @param blip
+     *      The scanned blip.
+     * @return
+     *      Whether there is nothing to do for the blip.
+     */
+    private static boolean isUnchanged(
+            final String waveletKey,
+            final LazyBundle.LazyBlip blip
+    )
+    {
+        final String key = blipKeyOf(waveletKey, blip.getBlipId());
+        final TrackerTree tree = State.TREES.take(key);
+        if (tree == null) {
+            return false;
+        }
+
+        final boolean result;
+        if ((tree.getNumPending() > 0) || (tree.getSummaryOffsets().length > 0) ||
+                !State.WAVELETS.contains(waveletKey, blip.getBlipId())) {
+            result = false;
+        }
+        else if ((tree.getVersion() != TrackerTree.UNKNOWN_VERSION) && (tree.getVersion() == blip.getVersion()) &&
+                (tree.getNumElements() == blip.getNumElements())) {
+            result = true;
+        }
+        else if (tree.matches(blip)) {
+            BotMetrics.FINGERPRINT_SKIPPED.inc();
+            result = true;
+        }
+        else {
+            BotMetrics.FINGERPRINT_CHANGED.inc();
+            result = false;
+        }
+        if (result) {
+            tree.setVersion(blip.getVersion());
+            BotMetrics.UNCHANGED_CHECKS.inc();
+        }
+        State.TREES.restore(key, tree);
+        return result;
+    }
+
+    /**
+     * Process a bundle of events.
+     *
+     * <p>The event handlers only note which blips need checking,
+     *      and each blip is checked once after all the events have been dispatched.
+     *      A bundle often has several events for the same blip
+     *      (<i>eg</i> a document change, a gadget state change and a blip submit),
+     *      and they all see the same content.
+     *      Changes can only be written back to the document in the response to the bundle,
+     *      so the end of the bundle is as long as a burst of changes can be held back for.</p>
+     */
+    @Override
+    protected void processEvents(
+            final EventMessageBundle events
+    )
+    {
+        final List<List<Event>> blipEvents = new ArrayList<List<Event>>();
+        final RecomputeScheduler<Event> recomputes = new RecomputeScheduler<Event>(
+                new RecomputeScheduler.Recompute<Event>() {
+                    public void recompute(
+                            final String blipId,
+                            final List<Event> events
+                    )
+                    {
+                        blipEvents.add(events);
+                    }
+                });
+        RECOMPUTES.set(recomputes);
+        BUNDLE_IDS.set(TrackerIdGenerator.next());
+        try {
+            BotMetrics.BUNDLE_EVENTS.observe(events.getEvents().size());
+            super.processEvents(events);
+            BotMetrics.BUNDLE_BLIPS.observe(recomputes.flush());
+            recomputeTrackers(blipEvents);
+        }
+        finally {
+            RECOMPUTES.remove();
+            BUNDLE_IDS.remove();
+        }
+    }
+
+    /**
+     * When a user finishes editing a blip.
+     *
+     * <p>Only the blip itself (and the root blip, which is where summary trackers usually are) is needed.
+     *      A blip that has no trackers, and never had any as far as we know, is left alone.</p>
+     */
+    @Capability(
+            contexts = {
+                    Context.SELF,
+                    Context.ROOT
+            }
+    )
     @Override
     public void onBlipSubmitted(
             final BlipSubmittedEvent event
     )
     {
-        LOG.trace("onBlipSubmitted(" + TraceUtil.formatObj(event) + ")");
+        final long start = System.nanoTime();
+        boolean succeeded = false;
+        final Blip blip = event.getBlip();
+        try {
+            Tracer.trace(LOG, "onBlipSubmitted", "event", event);
 
-        checkTrackers(event.getBlip());
+            if (hasTrackers(blip)) {
+                scheduleRecompute(blip, event);
+            }
+            else {
+                BotMetrics.BLIP_SUBMITTED.rejected.inc();
+            }
+            succeeded = true;
+        }
+        finally {
+            BotMetrics.BLIP_SUBMITTED.done(start, succeeded);
+        }
     }
 
     /**
      * Document change events.
      *
-     * <p>We filter on the special character sequence that we want to convert to a task tracker,
-     *      but only respond to it when it occurs at the beginning of an "li" line.
+     * <p>We filter on the special character sequences that we want to convert to a task tracker
+     *      (or a summary tracker),
+     *      but only respond to them when they occur at the beginning of an "li" line.
      *      This kind of works,
      *      but we won't see changes to indenting structure, etc,
      *      nor deletion of task trackers.</p>
@@ -145,286 +450,1067 @@ public final class TaskListBot
             contexts = {
                     Context.SELF
             },
-            filter="\\[\\[\\]\\]"
+            filter="\\[\\[\\*?\\]\\]"
     )
     @Override
     public void onDocumentChanged(
             final DocumentChangedEvent event
     )
     {
+        final long start = System.nanoTime();
+        boolean succeeded = false;
         final Blip blip = event.getBlip();
+        try {
+            Tracer.trace(LOG, "onDocumentChanged", "event", event);
 
-        // Search for, and replace, the target string.
-        int idx = blip.getContent().indexOf("[[]]", 0);
-        LOG.trace("onDocumentChanged: " + TraceUtil.formatObj(idx, "idx"));
-        while (idx != -1) {
-            // The string must be at the start of a line of type "li". Look for an element that starts
-            // right before the string, and check that is right kind, etc.
-            final Element myElement = blip.getElements().get(idx - 1);
-            if ((myElement != null) &&
-                    DGLUtil.equals(myElement.getType(), ElementType.LINE) &&
-                    DGLStringUtil.equals(((Line)myElement).getLineType(), "li")) {
-                // Create the task tracker gadget.
-                final Gadget gadget = new Gadget(CONFIG.getTaskTrackerGadgetUrl().toString());
-                gadget.getProperties().put("taskTrackerId", String.valueOf(DGLDateTimeUtil.now().getTime()));
-                gadget.getProperties().put("progress", String.valueOf(0));
-                gadget.getProperties().put("readonly", Boolean.FALSE.toString());
-                gadget.getProperties().put("version", String.valueOf(1));
-                // And replace.
-                blip.range(idx, idx + 4).replace(gadget);
-            }
-
-            // Find the next instance of the target string.
-            idx = blip.getContent().indexOf("[[]]", idx + 4);
-            LOG.trace("onDocumentChanged: " + TraceUtil.formatObj(idx, "idx"));
+            convertMarkers(blip);
+            scheduleRecompute(blip, event);
+            succeeded = true;
+        }
+        finally {
+            BotMetrics.DOCUMENT_CHANGED.done(start, succeeded);
         }
-
-        checkTrackers(blip);
     }
 
     /**
      * When user modifies (<i>ie</i> checks or unchecks) a task tracker.
+     *
+     * <p>The recompute is held back until the rest of the bundle has been seen,
+     *      so a burst of changes to the same blip only recomputes it (and writes back its trackers) once.
+     *      The server is asked for the changes of task tracker gadgets only,
+     *      but any other gadget's changes that get through are dropped here, before any tree is looked at.</p>
      */
+    @Capability(
+            contexts = {
+                    Context.SELF,
+                    Context.ROOT
+            },
+            filter=TRACKER_GADGET_FILTER
+    )
     @Override
     public void onGadgetStateChanged(
             final GadgetStateChangedEvent event
     )
     {
+        final long start = System.nanoTime();
+        boolean succeeded = false;
+        final Blip blip = event.getBlip();
+        try {
+            Tracer.trace(LOG, "onGadgetStateChanged", "event", event);
+
+            final Element el = (event.getIndex() == null) ? null : blip.getElements().get(event.getIndex());
+            if (!(el instanceof Gadget) || TrackerTree.isTracker(el)) {
+                scheduleRecompute(blip, event);
+            }
+            else {
+                BotMetrics.GADGET_STATE_CHANGED.rejected.inc();
+            }
+            succeeded = true;
+        }
+        finally {
+            BotMetrics.GADGET_STATE_CHANGED.done(start, succeeded);
+        }
+    }
+
+    /**
+     * @param blip
+     *      A blip.
+     * @return
+     *      Whether the blip has any trackers, or had some the last time that it was checked
+     *      (in which case its contribution to the wavelet has to be taken away).
+     */
+    private static boolean hasTrackers(
+            final Blip blip
+    )
+    {
+        for (final Element el : blip.getElements().values()) {
+            if (TrackerTree.isTracker(el)) {
+                return true;
+            }
+        }
+        final String waveletKey = waveletKeyOf(blip);
+        return (waveletKey == null) || State.WAVELETS.contains(waveletKey, blip.getBlipId());
+    }
+
+    /**
+     * @param waveId
+     *      The id of a wave (may be null).
+     * @param waveletId
+     *      The id of a wavelet in the wave (may be null).
+     * @return
+     *      Identifies the wavelet, or null if either id is missing.
+     */
+    static String waveletKeyOf(
+            final String waveId,
+            final String waveletId
+    )
+    {
+        return ((waveId == null) || (waveletId == null)) ? null : (waveId + "/" + waveletId);
+    }
+
+    /**
+     * @param blip
+     *      A blip.
+     * @return
+     *      Identifies the wavelet that the blip is in, or null if it isn't known.
+     */
+    private static String waveletKeyOf(
+            final Blip blip
+    )
+    {
+        final Wavelet wavelet = blip.getWavelet();
+        return ((wavelet == null) || (wavelet.getWaveId() == null)) ? null :
+                waveletKeyOf(wavelet.getWaveId().serialise(), wavelet.getWaveletId());
+    }
+
+    /**
+     * Blip ids are only unique within a wavelet,
+     * so anything that is kept for a blip beyond the current request (<i>eg</i> its tree) is kept under this.
+     *
+     * @param waveletKey
+     *      Identifies the wavelet that the blip is in (may be null).
+     * @param blipId
+     *      The id of the blip (may be null).
+     * @return
+     *      Identifies the blip (<code>waveId/waveletId/blipId</code>, as in the progress report),
+     *      or null if the wavelet or the blip id isn't known.
+     */
+    static String blipKeyOf(
+            final String waveletKey,
+            final String blipId
+    )
+    {
+        return ((waveletKey == null) || (blipId == null)) ? null : (waveletKey + "/" + blipId);
+    }
+
+    /**
+     * @param blip
+     *      A blip.
+     * @return
+     *      Identifies the blip, or null if its wavelet isn't known.
+     */
+    private static String blipKeyOf(
+            final Blip blip
+    )
+    {
+        return blipKeyOf(waveletKeyOf(blip), blip.getBlipId());
+    }
+
+    /**
+     * Note that a blip has to be checked once the rest of the bundle has been seen.
+     *
+     * @param blip
+     *      The blip to check.
+     * @param event
+     *      The event that means the blip has to be checked.
+     */
+    private void scheduleRecompute(
+            final Blip blip,
+            final Event event
+    )
+    {
+        final RecomputeScheduler<Event> recomputes = RECOMPUTES.get();
+        if (recomputes != null) {
+            recomputes.schedule(blip.getBlipId(), event);
+        }
+        else {
+            recompute(Collections.singletonList(event));
+        }
+    }
+
+    /**
+     * Check a blip and write back whatever it needs, there and then.
+     *
+     * @param events
+     *      The events for the blip, in the order they arrived.
+     */
+    private void recompute(
+            final List<Event> events
+    )
+    {
+        final long start = System.nanoTime();
+        boolean succeeded = false;
+        try {
+            applyCheck(prepareCheck(events));
+            succeeded = true;
+        }
+        finally {
+            recomputed(events, System.nanoTime() - start, succeeded);
+        }
+    }
+
+    /**
+     * Record the time taken to check a blip against the event that first asked for it.
+     *
+     * @param events
+     *      The events for the blip, in the order they arrived.
+     * @param nanos
+     *      The time taken to check the blip (in nanoseconds).
+     * @param succeeded
+     *      Whether the check succeeded.
+     */
+    private static void recomputed(
+            final List<Event> events,
+            final long nanos,
+            final boolean succeeded
+    )
+    {
+        final BotMetrics.EventMetrics metrics = BotMetrics.forEvent(events.get(0));
+        if (metrics != null) {
+            metrics.recomputed(nanos, succeeded);
+        }
+    }
+
+    /**
+     * Check each blip in a bundle after all the events in the bundle have been seen.
+     *
+     * <p>Working out what each blip needs only reads the blip,
+     *      so when there is a thread pool for it (and more than one blip), the blips are worked out in parallel.
+     *      Everything that is written back (to the blips, the caches, and the version guard)
+     *      is still done on this thread, one blip at a time, in the order that the blips were first seen,
+     *      so the operations that go back in the response are the same as if the blips had been done one by one.
+     *      Nothing is written back until every blip has been worked out,
+     *      since writing back to one blip can update a summary tracker in another.</p>
+     *
+     * @param blipEvents
+     *      The events for each blip, in the order that the blips were first seen.
+     */
+    private void recomputeTrackers(
+            final List<List<Event>> blipEvents
+    )
+    {
+        final ExecutorService executor = State.BLIP_EXECUTOR;
+        if ((executor == null) || (blipEvents.size() < 2)) {
+            for (final List<Event> events : blipEvents) {
+                recompute(events);
+            }
+            return;
+        }
+
+        // The time that each blip takes to work out (written by the pool, and read once its future is done).
+        final long[] prepareNanos = new long[blipEvents.size()];
+        final String traceId = Tracer.getTraceId();
+        final List<Future<BlipCheck>> futures = new ArrayList<Future<BlipCheck>>(blipEvents.size());
+        try {
+            for (int blipIdx = 0; blipIdx < blipEvents.size(); blipIdx++) {
+                final List<Event> events = blipEvents.get(blipIdx);
+                final int idx = blipIdx;
+                futures.add(executor.submit(new Callable<BlipCheck>() {
+                    public BlipCheck call()
+                    {
+                        final long start = System.nanoTime();
+                        Tracer.join(traceId);
+                        try {
+                            return prepareCheck(events);
+                        }
+                        finally {
+                            Tracer.end();
+                            prepareNanos[idx] = System.nanoTime() - start;
+                        }
+                    }
+                }));
+            }
+
+            // If a blip fails, the blips before it are still written back (as they would have been one by one).
+            final List<BlipCheck> checks = new ArrayList<BlipCheck>(futures.size());
+            RuntimeException failure = null;
+            for (int blipIdx = 0; blipIdx < futures.size(); blipIdx++) {
+                try {
+                    final BlipCheck check = await(futures.get(blipIdx));
+                    if (failure == null) {
+                        checks.add(check);
+                    }
+                }
+                catch (final RuntimeException e) {
+                    recomputed(blipEvents.get(blipIdx), prepareNanos[blipIdx], false);
+                    if (failure == null) {
+                        failure = e;
+                    }
+                }
+            }
+            BotMetrics.PARALLEL_BUNDLES.inc();
+            for (int blipIdx = 0; blipIdx < checks.size(); blipIdx++) {
+                final long start = System.nanoTime();
+                boolean succeeded = false;
+                try {
+                    applyCheck(checks.get(blipIdx));
+                    succeeded = true;
+                }
+                finally {
+                    recomputed(blipEvents.get(blipIdx), prepareNanos[blipIdx] + (System.nanoTime() - start),
+                            succeeded);
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+        finally {
+            for (final Future<BlipCheck> future : futures) {
+                future.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * Wait for a blip to be worked out on the thread pool.
+     *
+     * @param future
+     *      The blip being worked out.
+     * @return
+     *      What the blip needs.
+     */
+    private static BlipCheck await(
+            final Future<BlipCheck> future
+    )
+    {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return future.get();
+                }
+                catch (final InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        catch (final ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException)e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error)e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+        finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Work out what a blip needs after all the events in the bundle for it have been seen,
+     * without writing anything back.
+     *
+     * <p>If the events are all modifications of task trackers,
+     *      and we still have the blip's tracker tree from last time,
+     *      only the trackers on the paths from the modified trackers to the top of the tree are looked at.
+     *      Otherwise the whole blip is checked.</p>
+     *
+     * @param events
+     *      The events for the blip, in the order they arrived.
+     * @return
+     *      What the blip needs.
+     */
+    private BlipCheck prepareCheck(
+            final List<Event> events
+    )
+    {
+        final Blip blip = events.get(events.size() - 1).getBlip();
         try {
-            LOG.trace("onGadgetStateChanged(" + TraceUtil.formatObj(event) + ")");
+            Tracer.trace(LOG, "prepareCheck", "blip", blip.getBlipId());
+            Tracer.trace(LOG, "prepareCheck", "events.size()", events.size());
 
-            checkTrackers(event.getBlip());
+            BotMetrics.CHECKS_AVOIDED.add(events.size() - 1);
+            List<Integer> offsets = new ArrayList<Integer>(events.size());
+            for (final Event event : events) {
+                if (!(event instanceof GadgetStateChangedEvent)) {
+                    offsets = null;
+                    break;
+                }
+                offsets.add(((GadgetStateChangedEvent)event).getIndex());
+            }
+            final BlipCheck result = (offsets == null) ? null :
+                    updateTrackers(blip, State.TREES.take(blipKeyOf(blip)), offsets);
+            return (result == null) ? checkTrackers(blip, offsets) : result;
         }
         catch (final RuntimeException e) {
-            LOG.warn("onGadgetStateChanged: " + TraceUtil.formatObj(e), e);
+            LOG.warn("prepareCheck: " + TraceUtil.formatObj(e), e);
             throw e;
         }
     }
 
     /**
-     * Performs an idempotent check of all the task trackers in the document.
+     * Write back whatever a blip needs, and remember its tree for next time.
+     *
+     * <p>If another request has got in first with fresher state, it has done (or is doing) the work,
+     *      and our tree is out of date.</p>
+     *
+     * @param check
+     *      What the blip needs.
+     */
+    private void applyCheck(
+            final BlipCheck check
+    )
+    {
+        final Blip blip = check.blip;
+        final TrackerTree tree = check.tree;
+        final TrackerUpdatePlan plan = check.plan;
+        try {
+            if (plan == null) {
+                tree.setVersion(blip.getVersion());
+                State.TREES.put(blipKeyOf(blip), tree);
+                updateWaveletProgress(blip, tree, check.changed);
+                return;
+            }
+
+            // New ids are given out here rather than when the blip is worked out, so they are given out in order.
+            // The budget is applied after that, so that it covers the id changes as well.
+            renumberDuplicates(blip, tree, plan);
+            limitUpdates(tree, plan, check.modifiedOffsets);
+            // A blip with no trackers has nothing that a staler request could write, so it isn't claimed.
+            final boolean hasTrackers = (tree.getRollup().getSize() > 0) || (tree.getSummaryOffsets().length > 0);
+            if (!hasTrackers || setTrackerStates(blip, plan)) {
+                tree.setVersion(plan.isEmpty() ? blip.getVersion() : TrackerTree.UNKNOWN_VERSION);
+                State.TREES.put(blipKeyOf(blip), tree);
+                updateWaveletProgress(blip, tree, check.changed);
+            }
+            else {
+                State.TREES.invalidate(blipKeyOf(blip));
+            }
+
+            if (check.gadgets != null) {
+                final TrackerRollup rollup = tree.getRollup();
+                BotMetrics.FULL_CHECKS.inc();
+                BotMetrics.TRACKERS.observe(rollup.getSize());
+                BotMetrics.TREE_DEPTH.observe(rollup.getMaxDepth());
+                BotMetrics.CHECK_TRACKERS_SECONDS.observeSince(check.start);
+            }
+            else {
+                BotMetrics.INCREMENTAL_CHECKS.inc();
+            }
+            final BotMetrics.UpdateMetrics updateMetrics = BotMetrics.forMode(BotSettings.get().isDeltaUpdates());
+            updateMetrics.issued.add(plan.size());
+            updateMetrics.skipped.add(Math.max(0, check.numChecked - plan.size()));
+        }
+        catch (final RuntimeException e) {
+            LOG.warn("applyCheck: " + TraceUtil.formatObj(e), e);
+            throw e;
+        }
+    }
+
+    /**
+     * Convert all the markers in the document to task trackers.
      *
      * @param blip
      *      The blip being processed.
      */
-    private void checkTrackers(
+    private void convertMarkers(
             final Blip blip
     )
     {
-        // Iterate over the elements in the document. The line elements give us an indent level, which we
-        // remember for to attach to a gadget that we find in that line. The result is a list of gadget/indent
-        // pairs, which is a kind of tree.
-        final List<TrackerSpec> trackers = new LinkedList<TrackerSpec>();
-        int indent = 0;
-        for (final Integer offset : blip.getElements().keySet()) {
-            final Element el = blip.getElements().get(offset);
+        // Find all the target strings in one go, then replace them working backwards from the end of the
+        // document, so that replacing one doesn't move any of the ones still to be done. The event doesn't tell
+        // us which part of the document changed, so the whole of it is scanned.
+        final String content = blip.getContent();
+        final Map<Integer, Element> elements = blip.getElements();
+        final int[] markers = TrackerMarkerScanner.find(content, elements, 0, Integer.MAX_VALUE,
+                TrackerMarkerScanner.MARKER);
+        final int[] summaryMarkers = TrackerMarkerScanner.find(content, elements, 0, Integer.MAX_VALUE,
+                TrackerMarkerScanner.SUMMARY_MARKER);
+        Tracer.trace(LOG, "convertMarkers", "markers.length", markers.length + summaryMarkers.length);
+        int markerIdx = markers.length - 1;
+        int summaryMarkerIdx = summaryMarkers.length - 1;
+        while ((markerIdx >= 0) || (summaryMarkerIdx >= 0)) {
+            final boolean summary = (markerIdx < 0) ||
+                    ((summaryMarkerIdx >= 0) && (summaryMarkers[summaryMarkerIdx] > markers[markerIdx]));
+            final int idx = summary ? summaryMarkers[summaryMarkerIdx--] : markers[markerIdx--];
 
-            if (el instanceof Line) {
-                final Line lineEl = (Line)el;
-                indent = DGLStringUtil.isNullOrEmpty(lineEl.getIndent()) ? 0 : Integer.valueOf(lineEl.getIndent());
+            // Create the task tracker gadget. A summary tracker is never changed by the user.
+            final Gadget gadget = new Gadget(BotSettings.get().getTaskTrackerGadgetUrl());
+            gadget.getProperties().put("taskTrackerId", TrackerIdGenerator.next());
+            gadget.getProperties().put("progress", String.valueOf(0));
+            gadget.getProperties().put("readonly", String.valueOf(summary));
+            gadget.getProperties().put("version", String.valueOf(1));
+            if (summary) {
+                gadget.getProperties().put("scope", TrackerTree.SCOPE_WAVELET);
             }
-            else if (el instanceof Gadget) {
-                trackers.add(new TrackerSpec(indent, (Gadget)el));
+            // And replace.
+            blip.range(idx, idx + (summary ? TrackerMarkerScanner.SUMMARY_MARKER :
+                    TrackerMarkerScanner.MARKER).length()).replace(gadget);
+        }
+    }
+
+    /**
+     * Performs an idempotent check of all the task trackers in the document.
+     *
+     * <p>If the tree that we saved last time matches this version of the blip,
+     *      or the trackers are all as the tree says they are (<i>ie</i> only text has been edited),
+     *      there is nothing to check,
+     *      apart from carrying on with any changes that were held back last time.</p>
+     *
+     * @param blip
+     *      The blip being processed.
+     * @param offsets
+     *      The element offsets of the trackers that the user modified, or null if not known.
+     * @return
+     *      What the blip needs.
+     */
+    private BlipCheck checkTrackers(
+            final Blip blip,
+            final List<Integer> offsets
+    )
+    {
+        final long start = System.nanoTime();
+        final Map<Integer, Element> elements = blip.getElements();
+        final TrackerTree savedTree = State.TREES.take(blipKeyOf(blip));
+        if (savedTree != null) {
+            final boolean unchanged;
+            if ((savedTree.getVersion() != TrackerTree.UNKNOWN_VERSION) &&
+                    (savedTree.getVersion() == blip.getVersion()) &&
+                    (savedTree.getNumElements() == elements.size())) {
+                unchanged = true;
+            }
+            else if (savedTree.matches(elements)) {
+                BotMetrics.FINGERPRINT_SKIPPED.inc();
+                unchanged = true;
+            }
+            else {
+                BotMetrics.FINGERPRINT_CHANGED.inc();
+                unchanged = false;
+            }
+            if (unchanged && (savedTree.getNumPending() > 0)) {
+                final TrackerUpdatePlan plan = new TrackerUpdatePlan();
+                final int numResumed = savedTree.resume(elements, plan);
+                BotMetrics.RESUMED_UPDATES.add(numResumed);
+                return new BlipCheck(blip, savedTree, plan, null, new int[0], offsets, numResumed, start);
+            }
+            if (unchanged) {
+                BotMetrics.UNCHANGED_CHECKS.inc();
+                return new BlipCheck(blip, savedTree, null, null, new int[0], offsets, 0, start);
             }
         }
 
-        // Process the tree.
-        processTrackersTree(blip, trackers);
+        // Process the tree, and work out whatever has to change. If anything is written back the blip gets a new
+        // version, which we don't know yet.
+        final List<Gadget> gadgets = new ArrayList<Gadget>();
+        final TrackerTree tree = TrackerTree.build(elements, gadgets);
+        final TrackerUpdatePlan plan = new TrackerUpdatePlan();
+        processTrackersTree(blip, tree, gadgets, plan);
+        return new BlipCheck(blip, tree, plan, gadgets, null, offsets, tree.getRollup().getSize(), start);
     }
 
     /**
-     * Recursively process a tree of gadgets,
-     * and return the completeness value.
+     * Work out the changes to one or more trackers using the tree from the last time the blip was checked.
+     *
+     * <p>The tree can only be used if the document still looks the way it did:
+     *      the same number of elements,
+     *      every tracker at the offset we remember it at and on a line with the same indent
+     *      (an indent can be changed without adding or removing any elements),
+     *      each modified tracker being a leaf,
+     *      and its ancestors still having the ids and state that we last gave them.
+     *      Otherwise the structure has changed (or someone else has been at the document),
+     *      and the whole blip has to be checked.
+     *      All the changes are pushed up the tree before anything is written back,
+     *      so an ancestor shared by several of the modified trackers is only written once (if at all).</p>
      *
      * @param blip
      *      The blip being processed.
-     * @param trackers
-     *      The list of gadget/indent pairs.
+     * @param tree
+     *      The tree from the last time the blip was checked (may be null).
+     * @param offsets
+     *      The element offsets of the trackers that were modified (any of which may be null).
      * @return
-     *      The progress level of the list (as a percentage).
+     *      What the blip needs, or null if the tree can't be used (in which case the tree is discarded).
      */
-    private int processTrackersTree(
+    private BlipCheck updateTrackers(
             final Blip blip,
-            final List<TrackerSpec> trackers
+            final TrackerTree tree,
+            final List<Integer> offsets
     )
     {
-        LOG.trace("processTrackersTree(" +
-                TraceUtil.formatObj(blip) + ", " +
-                "..." + ")");
-        for (final TrackerSpec trackerSpec : trackers) {
-            LOG.trace("processTrackersTree: " + TraceUtil.formatObj(trackerSpec, "trackerSpec"));
+        if (tree == null) {
+            return null;
         }
 
-        final int result;
+        final Map<Integer, Element> elements = blip.getElements();
+        final TrackerRollup rollup = tree.getRollup();
+        if (!tree.hasShape(elements)) {
+            return null;
+        }
+        final int[] idxs = new int[offsets.size()];
+        for (int i = 0; i < idxs.length; i++) {
+            idxs[i] = findLeaf(elements, tree, offsets.get(i));
+            if (idxs[i] == -1) {
+                return null;
+            }
+        }
 
-        if (trackers.size() == 1) {
-            // Single tracker, just return its progress.
-            result = trackers.get(0).getProgress();
+        // Push the changes up the tree, and update whichever ancestors have changed as a result.
+        final TrackerUpdatePlan plan = new TrackerUpdatePlan();
+        final boolean[] visited = new boolean[rollup.getSize()];
+        // Every tracker looked at is on the path from a modified tracker to the top, so there can't be more of them.
+        final int[] changed = new int[Math.min(rollup.getSize(), idxs.length * Math.max(rollup.getMaxDepth(), 1))];
+        int numChanged = 0;
+        for (final int idx : idxs) {
+            rollup.update(idx, TrackerTree.getProgress((Gadget)elements.get(tree.getOffset(idx))));
+            if (!visited[idx]) {
+                visited[idx] = true;
+                changed[numChanged++] = idx;
+            }
         }
-        else {
-            // Process the trackers in the list, keeping enough data (ie cumulative total and number of nodes)
-            // to calculate the average at the end.
-            int idx = 0;
-            int total = 0;
-            int numNodes = 0;
-            while (idx < trackers.size()) {
-                LOG.trace("processTrackersTree: " + TraceUtil.formatObj(idx, "idx"));
-                final int indent = trackers.get(idx).getIndent();
-                // Make a list of all the children (in fact, all the descendants) of this tracker gadget. We
-                // define this as all the gadgets in the document up until the indent gets back to the current
-                // indent. There are various edge cases that might be a bit dodgy (eg if the indent of the next
-                // gadget is two or more than the current indent), but they are sufficiently ill-defined that
-                // the definition contained herein will probably suffice.
-                final List<TrackerSpec> children = new LinkedList<TrackerSpec>();
-                if (idx < trackers.size() - 1) {
-                    int childIdx = idx + 1;
-                    while ((childIdx < trackers.size()) &&
-                            (trackers.get(childIdx).getIndent() > indent)) {
-                        LOG.trace("processTrackersTree: " + TraceUtil.formatObj(childIdx, "childIdx"));
-                        children.add(trackers.get(childIdx));
-                        childIdx++;
-                    }
+        int numAncestors = 0;
+        for (final int idx : idxs) {
+            for (int ancestorIdx = rollup.getParent(idx); (ancestorIdx != -1) && !visited[ancestorIdx];
+                    ancestorIdx = rollup.getParent(ancestorIdx)) {
+                visited[ancestorIdx] = true;
+                changed[numChanged++] = ancestorIdx;
+                numAncestors++;
+                if (rollup.isChanged(ancestorIdx)) {
+                    plan.add(tree.getOffset(ancestorIdx), (Gadget)elements.get(tree.getOffset(ancestorIdx)),
+                            rollup.getTargetReadonly(ancestorIdx), rollup.getTargetProgress(ancestorIdx));
+                    rollup.commit(ancestorIdx);
                 }
-                if (children.size() == 0) {
-                    // Leaf node, so the progress level can be read from the tracker itself.
-                    total += trackers.get(idx).getProgress();
-                    numNodes++;
-
-                    // A leaf node should be readonly. It might be though if things have been rearranged.
-                    if (trackers.get(idx).getReadonly()) {
-                        setTrackerState(blip, trackers.get(idx).getGadget(), false, trackers.get(idx).getProgress());
+            }
+        }
+        if (tree.getNumPending() > 0) {
+            BotMetrics.RESUMED_UPDATES.add(tree.resume(elements, plan));
+        }
+        return new BlipCheck(blip, tree, plan, null, Arrays.copyOf(changed, numChanged), offsets, numAncestors, 0);
+    }
+
+    /**
+     * Check that a modified tracker can be updated using the tree from the last time the blip was checked.
+     *
+     * @param elements
+     *      The elements of the blip.
+     * @param tree
+     *      The tree from the last time the blip was checked.
+     * @param offset
+     *      The element offset of the tracker that was modified (may be null).
+     * @return
+     *      The index of the tracker in the tree, or -1 if the tree can't be used.
+     */
+    private int findLeaf(
+            final Map<Integer, Element> elements,
+            final TrackerTree tree,
+            final Integer offset
+    )
+    {
+        if (offset == null) {
+            return -1;
+        }
+
+        final TrackerRollup rollup = tree.getRollup();
+        final Element el = elements.get(offset);
+        if (!TrackerTree.isTracker(el)) {
+            return -1;
+        }
+        final Gadget gadget = (Gadget)el;
+        final int idx = tree.indexOf(gadget.getProperty("taskTrackerId"));
+        if ((idx == -1) ||
+                (tree.getOffset(idx) != offset) ||
+                rollup.hasChildren(idx) ||
+                (TrackerTree.getReadonly(gadget) != rollup.getReadonly(idx))) {
+            return -1;
+        }
+        for (int ancestorIdx = rollup.getParent(idx); ancestorIdx != -1; ancestorIdx = rollup.getParent(ancestorIdx)) {
+            final Element ancestorEl = elements.get(tree.getOffset(ancestorIdx));
+            if (!TrackerTree.isTracker(ancestorEl) ||
+                    !DGLStringUtil.equals(ancestorEl.getProperty("taskTrackerId"), tree.getTrackerId(ancestorIdx)) ||
+                    (TrackerTree.getProgress((Gadget)ancestorEl) != rollup.getProgress(ancestorIdx)) ||
+                    (TrackerTree.getReadonly((Gadget)ancestorEl) != rollup.getReadonly(ancestorIdx))) {
+                return -1;
+            }
+        }
+        return idx;
+    }
+
+    /**
+     * Cut a plan down to the per-request budget, so that a huge blip can't take the request past its deadline
+     * (which would lose all the changes, not just some of them).
+     *
+     * <p>The most important changes are written now,
+     *      and the rest are carried on with the next time that the blip is checked
+     *      (the tree remembers which they are, wherever it is stored).</p>
+     *
+     * @param tree
+     *      The blip's tree.
+     * @param plan
+     *      The plan to cut down.
+     * @param offsets
+     *      The element offsets of the trackers that the user modified, or null if not known.
+     */
+    private void limitUpdates(
+            final TrackerTree tree,
+            final TrackerUpdatePlan plan,
+            final List<Integer> offsets
+    )
+    {
+        final int numDeferred = tree.limit(plan, BotSettings.get().getUpdateBudget(), offsets);
+        if (numDeferred > 0) {
+            Tracer.trace(LOG, "limitUpdates: over budget", "numDeferred", numDeferred);
+            BotMetrics.DEFERRED_UPDATES.add(numDeferred);
+        }
+    }
+
+    /**
+     * Give a new id to every tracker whose id is missing or is shared with an earlier tracker
+     * (trackers created before ids were unique can share them,
+     * and so can trackers whose new ids were held back by the budget last time).
+     *
+     * @param blip
+     *      The blip being processed.
+     * @param tree
+     *      The blip's tree (which matches the blip).
+     * @param plan
+     *      The plan to add the id changes to.
+     */
+    private void renumberDuplicates(
+            final Blip blip,
+            final TrackerTree tree,
+            final TrackerUpdatePlan plan
+    )
+    {
+        final int[] duplicates = tree.getDuplicates();
+        if (duplicates.length == 0) {
+            return;
+        }
+
+        final Map<Integer, Element> elements = blip.getElements();
+        for (final int idx : duplicates) {
+            final Element el = elements.get(tree.getOffset(idx));
+            if (TrackerTree.isTracker(el)) {
+                final String trackerId = TrackerIdGenerator.next();
+                plan.renumber(tree.getOffset(idx), (Gadget)el, trackerId);
+                tree.setTrackerId(idx, trackerId);
+            }
+        }
+    }
+
+    /**
+     * Update the blip's contribution to the progress of its wavelet,
+     * and bring the wavelet's summary trackers up to date
+     * (and the blip's entry in the progress report).
+     *
+     * <p>Summary trackers in blips that aren't part of the current event bundle can't be written to,
+     *      but they are brought up to date the next time their own blip is checked.
+     *      If the wavelet's progress isn't known (because the store behind it can't be got at),
+     *      the summary trackers are left alone.</p>
+     *
+     * @param blip
+     *      The blip being processed.
+     * @param tree
+     *      The blip's (up to date) tree.
+     * @param changed
+     *      The indexes of the only trackers whose progress may have changed since the blip was last checked,
+     *      or null if the blip was checked in full.
+     */
+    private void updateWaveletProgress(
+            final Blip blip,
+            final TrackerTree tree,
+            final int[] changed
+    )
+    {
+        final Wavelet wavelet = blip.getWavelet();
+        final String waveletKey = waveletKeyOf(blip);
+        if (waveletKey == null) {
+            return;
+        }
+
+        ProgressReport.getDefault().update(wavelet.getWaveId().serialise(), wavelet.getWaveletId(),
+                blip.getBlipId(), blip.getVersion(), tree, changed);
+
+        final int progress = State.WAVELETS.update(waveletKey, blip.getBlipId(), tree.getRollup().getTopTotal(),
+                tree.getRollup().getTopNumNodes(), tree.getSummaryOffsets());
+        if (progress == WaveletRollup.UNKNOWN_PROGRESS) {
+            // Better to leave the summary trackers as they are than to write a guess.
+            LOG.warn("updateWaveletProgress: progress unknown: " + TraceUtil.formatObj(waveletKey, "waveletKey"));
+            return;
+        }
+
+        for (final Map.Entry<String, int[]> entry : State.WAVELETS.getSummaries(waveletKey).entrySet()) {
+            final Blip summaryBlip = DGLStringUtil.equals(entry.getKey(), blip.getBlipId()) ? blip :
+                    wavelet.getBlip(entry.getKey());
+            if (summaryBlip != null) {
+                final Map<Integer, Element> elements = summaryBlip.getElements();
+                final TrackerUpdatePlan plan = new TrackerUpdatePlan();
+                for (final int offset : entry.getValue()) {
+                    final Element el = elements.get(offset);
+                    if (TrackerTree.isSummary(el)) {
+                        plan.add(offset, (Gadget)el, true, progress);
                     }
                 }
-                else {
-                    // This tracker has children. Process them to get the completed value.
-                    final int childrenProgress = processTrackersTree(blip, children);
+                if (!plan.isEmpty()) {
+                    setTrackerStates(summaryBlip, plan);
+                }
+            }
+        }
+    }
 
-                    setTrackerState(blip, trackers.get(idx).getGadget(), true, childrenProgress);
+    /**
+     * Process a tree of gadgets,
+     * and return the completeness value.
+     *
+     * @param blip
+     *      The blip being processed.
+     * @param tree
+     *      The indent/progress/readonly data for the gadgets.
+     * @param gadgets
+     *      The tracker gadgets, in document order.
+     * @param plan
+     *      The plan to add any tracker state changes to.
+     * @return
+     *      The progress level of the list (as a percentage).
+     */
+    private int processTrackersTree(
+            final Blip blip,
+            final TrackerTree tree,
+            final List<Gadget> gadgets,
+            final TrackerUpdatePlan plan
+    )
+    {
+        Tracer.trace(LOG, "processTrackersTree", "blip", blip);
 
-                    total += childrenProgress;
-                    numNodes++;
-                }
+        final int result = tree.rollup(gadgets, plan);
+
+        Tracer.trace(LOG, "~processTrackersTree", "result", result);
+        return result;
+    }
+
+    /**
+     * Write all the changes in a plan back to the document.
+     *
+     * <p>The blip is claimed from the version guard first (even if there is nothing to write),
+     *      so that a request working from an older view of the blip can't later undo what this one has written
+     *      (a fresher request that found nothing to change still blocks a staler one that would change something).
+     *      If the claim fails, another request is working from a view at least as fresh as ours,
+     *      so the plan is given up.
+     *      A change for an offset that doesn't hold a task tracker any more is never written.</p>
+     *
+     * @param blip
+     *      The blip being processed.
+     * @param plan
+     *      The tracker state changes to make.
+     * @return
+     *      Whether all the changes were made.
+     */
+    private boolean setTrackerStates(
+            final Blip blip,
+            final TrackerUpdatePlan plan
+    )
+    {
+        return setTrackerStates(blip, plan, BotSettings.get().isDeltaUpdates());
+    }
 
-                idx += (children.size() + 1);
+    /**
+     * Write all the changes in a plan back to the document, in either update mode
+     * (see {@link #setTrackerStates(Blip, TrackerUpdatePlan)}).
+     *
+     * @param blip
+     *      The blip being processed.
+     * @param plan
+     *      The tracker state changes to make.
+     * @param deltaUpdates
+     *      Whether to update just the changed properties of each tracker (otherwise they are replaced).
+     * @return
+     *      Whether all the changes were made.
+     */
+    boolean setTrackerStates(
+            final Blip blip,
+            final TrackerUpdatePlan plan,
+            final boolean deltaUpdates
+    )
+    {
+        final long start = System.nanoTime();
+        boolean result = claimBlip(blip);
+        if (result) {
+            for (final TrackerUpdatePlan.Update update : plan.getUpdates()) {
+                result &= setTrackerState(blip, update, deltaUpdates);
             }
+        }
+        else {
+            Tracer.trace(LOG, "setTrackerStates: lost race", "plan.size()", plan.size());
+            BotMetrics.VERSION_CONFLICTS.inc();
+        }
+        BotMetrics.SET_TRACKER_STATES_SECONDS.observeSince(start);
+        return result;
+    }
 
-            // Calculate the average to return.
-            result = total / numNodes;
+    /**
+     * Claim the version of a blip that we are working from, ready to write to its trackers.
+     *
+     * @param blip
+     *      The blip being processed.
+     * @return
+     *      Whether the claim succeeded (or there is no guard).
+     */
+    private boolean claimBlip(
+            final Blip blip
+    )
+    {
+        final TrackerVersionGuard guard = State.GUARD;
+        if (guard == null) {
+            return true;
         }
 
-        LOG.trace("~processTrackersTree = " + TraceUtil.formatObj(result));
-        return result;
+        final String key = blipKeyOf(blip);
+        final String owner = BUNDLE_IDS.get();
+        return guard.claim((key == null) ? blip.getBlipId() : key, blip.getVersion(),
+                (owner == null) ? TrackerIdGenerator.next() : owner);
     }
 
     /**
      * @param blip
      *      The blip being processed.
-     * @param tracker
-     *      The task tracker gadget to set the state of.
-     * @param readonly
-     *      Whether the tracker gadget should be set as readonly.
-     * @param progress
-     *      The progress value to assign to the tracker gadget (as a percentage).
-     */
-    private void setTrackerState(
+     * @param update
+     *      The tracker state change to make.
+     *      The plan has already checked that the state is actually different.
+     * @param deltaUpdates
+     *      Whether to update just the changed properties of the tracker (otherwise it is replaced).
+     * @return
+     *      Whether the change was made
+     *      (it isn't if the element at the offset isn't a task tracker, which means the tree is out of date).
+     */
+    private boolean setTrackerState(
             final Blip blip,
-            final Gadget tracker,
-            final boolean readonly,
-            final int progress
+            final TrackerUpdatePlan.Update update,
+            final boolean deltaUpdates
     )
     {
-        // We use the hack of replacing the gadget if its state has to be changed. Only replace the gadget if
-        // the state has actually changed.
-        final boolean oldReadonly = DGLStringUtil.isNullOrEmpty(tracker.getProperty("readonly")) ? false :
-                Boolean.valueOf(tracker.getProperty("readonly"));
-        final int oldProgress = DGLStringUtil.isNullOrEmpty(tracker.getProperty("progress")) ? 0 :
-                Integer.valueOf(tracker.getProperty("progress"));
-        if ((oldReadonly != readonly) ||
-                (oldProgress != progress)) {
-            LOG.trace("setTrackerState: replacing tracker: " + TraceUtil.formatObj(tracker));
-            final BlipContentRefs trackerRefs = blip.all(ElementType.GADGET,
-                    Gadget.restrictByUrl(CONFIG.getTaskTrackerGadgetUrl().toString()),
-                    Gadget.restrictByProperty("taskTrackerId", tracker.getProperty("taskTrackerId")));
-            final Gadget newTracker = new Gadget(CONFIG.getTaskTrackerGadgetUrl().toString());
-            newTracker.getProperties().put("taskTrackerId", tracker.getProperty("taskTrackerId"));
-            newTracker.getProperties().put("progress", String.valueOf(progress));
-            newTracker.getProperties().put("readonly", String.valueOf(readonly));
-            newTracker.getProperties().put("version", tracker.getProperty("version"));
-            trackerRefs.replace(newTracker);
+        // Only ever write to a task tracker, whatever the tree says is at the offset.
+        if (!TrackerTree.isTracker(blip.getElements().get(update.getOffset()))) {
+            LOG.warn("setTrackerState: not a tracker: " + TraceUtil.formatObj(update, "update"));
+            return false;
         }
+
+        // Normally just the properties that have changed are updated, which the gadget sees as a state change.
+        // Otherwise (or if that fails) we fall back on the hack of replacing the gadget, which makes every client
+        // reload it. Either way, we already know where the gadget is, so there is no need to search for it.
+        if (deltaUpdates) {
+            try {
+                Tracer.trace(LOG, "setTrackerState: updating tracker", "update", update);
+                blip.at(update.getOffset()).updateElement(update.getDelta(blip.getVersion()));
+                BotMetrics.DELTA_UPDATES.inc();
+                return true;
+            }
+            catch (final RuntimeException e) {
+                LOG.warn("setTrackerState: " + TraceUtil.formatObj(update, "update") + ", " +
+                        TraceUtil.formatObj(e), e);
+            }
+        }
+
+        Tracer.trace(LOG, "setTrackerState: replacing tracker", "update", update);
+        final Gadget newTracker = new Gadget(BotSettings.get().getTaskTrackerGadgetUrl());
+        newTracker.getProperties().putAll(update.getProperties(blip.getVersion()));
+        blip.range(update.getOffset(), update.getOffset() + 1).replace(newTracker);
+        BotMetrics.REPLACE_UPDATES.inc();
+        return true;
     }
 
     /**
-     * A gadget/indent pair.
+     * What a blip needs, worked out before anything is written back to it.
+     *
+     * <p>Nothing in here is shared with any other blip,
+     *      so it can be worked out on any thread, as long as it is only written back on the bundle's thread.</p>
      */
-    private static class TrackerSpec
+    private static final class BlipCheck
     {
 
-        @SuppressWarnings({"UnusedDeclaration"})
-        private static final Logger LOG = TraceUtil.getLogger(TrackerSpec.class);
+        /**
+         * The blip.
+         */
+        final Blip blip;
+
+        /**
+         * The blip's (up to date) tree.
+         */
+        final TrackerTree tree;
+
+        /**
+         * The changes to write back, or null if the blip hasn't changed since its tree was saved.
+         */
+        final TrackerUpdatePlan plan;
+
+        /**
+         * The tracker gadgets, in document order, if the blip was checked in full (otherwise null).
+         */
+        final List<Gadget> gadgets;
+
+        /**
+         * The indexes of the only trackers whose progress may have changed since the blip was last checked,
+         * or null if the blip was checked in full.
+         */
+        final int[] changed;
+
+        /**
+         * The element offsets of the trackers that the user modified, or null if not known.
+         */
+        final List<Integer> modifiedOffsets;
 
         /**
-         * Current value of the <b>gadget</b> property.
+         * The number of trackers whose state was checked.
          */
-        private Gadget gadget;
+        final int numChecked;
 
         /**
-         * Current value of the <b>indent</b> property.
+         * The value of {@link System#nanoTime()} when the check started.
          */
-        private int indent;
+        final long start;
 
         /**
          */
-        public TrackerSpec(
-                final int indent,
-                final Gadget gadget
+        BlipCheck(
+                final Blip blip,
+                final TrackerTree tree,
+                final TrackerUpdatePlan plan,
+                final List<Gadget> gadgets,
+                final int[] changed,
+                final List<Integer> modifiedOffsets,
+                final int numChecked,
+                final long start
         )
         {
             super();
 
-            this.gadget = gadget;
-            this.indent = indent;
+            this.blip = blip;
+            this.tree = tree;
+            this.plan = plan;
+            this.gadgets = gadgets;
+            this.changed = changed;
+            this.modifiedOffsets = modifiedOffsets;
+            this.numChecked = numChecked;
+            this.start = start;
         }
 
+    }
+
+    /**
+     * Holds the state that is kept between requests,
+     * so that it (and the store behind it) isn't set up until the first event needs it.
+     */
+    private static final class State
+    {
+
         /**
+         * The persistent store behind the tracker trees and wavelet progress, or null if there isn't one.
          */
-        public String toString()
-        {
-            return "TrackerSpec{" +
-                    TraceUtil.formatObj(gadget, "gadget") + ", " +
-                    TraceUtil.formatObj(indent, "indent") + "}";
-        }
+        static final TrackerStateStore STORE = createStateStore();
 
         /**
-         * Getter method for the <b>gadget</b> property.
+         * The tracker trees of the blips that we have seen recently, by {@link TaskListBot#blipKeyOf(Blip)}.
          */
-        @SuppressWarnings({"UnusedDeclaration"})
-        public Gadget getGadget() {return gadget;}
+        static final TrackerTreeCache TREES = new TrackerTreeCache(BotSettings.get().getTrackerTreeCacheSize(),
+                STORE);
 
         /**
-         * Getter method for the <b>indent</b> property.
+         * The progress of the wavelets that we have seen recently, by {@link TaskListBot#waveletKeyOf(Blip)}.
          */
-        @SuppressWarnings({"UnusedDeclaration"})
-        public int getIndent() {return indent;}
+        static final WaveletRollup WAVELETS = new WaveletRollup(BotSettings.get().getTrackerTreeCacheSize(),
+                STORE);
 
         /**
-         * Getter method for the <b>progress</b> property.
+         * The guard against racing tracker writes, or null if there isn't one.
          */
-        @SuppressWarnings({"UnusedDeclaration"})
-        public int getProgress()
-        {
-            final String progressStr = gadget.getProperty("progress");
-            return DGLStringUtil.isNullOrEmpty(progressStr) ? 0 : Integer.parseInt(progressStr);
-        }
+        static final TrackerVersionGuard GUARD = createVersionGuard();
 
         /**
-         * Getter method for the <b>readonly</b> property.
+         * The threads that blips in the same bundle are worked out on, or null to work them out one by one.
          */
-        @SuppressWarnings({"UnusedDeclaration"})
-        public boolean getReadonly()
-        {
-            return Boolean.parseBoolean(gadget.getProperty("readonly"));
-        }
+        static final ExecutorService BLIP_EXECUTOR = createBlipExecutor();
 
     }
 
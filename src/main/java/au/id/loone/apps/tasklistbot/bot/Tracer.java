@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2010  David G Loone
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package au.id.loone.apps.tasklistbot.bot;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import au.id.loone.util.tracing.TraceUtil;
+
+import org.apache.log4j.Logger;
+import org.apache.log4j.MDC;
+
+/**
+ * Per-request tracing for the robot's hot paths.
+ *
+ * <p>Each event bundle that the robot handles is a request,
+ *      bracketed by {@link #begin()} and {@link #end()} on the thread that handles it
+ *      (and by {@link #join(String)} and {@link #end()} on any other thread that does some of its work).
+ *      Only one request in every <b>traceSampleInterval</b> is sampled,
+ *      and trace messages are only built and logged for sampled requests
+ *      (and then only if the logger has TRACE enabled).
+ *      Everywhere else a trace call costs a thread local lookup and nothing more:
+ *      the message parts are passed separately so that no strings are built and nothing is boxed.</p>
+ *
+ * <p>Every sampled request gets a correlation id (a sequence number),
+ *      which is put in the log4j MDC as <b>traceId</b> for as long as the request is going,
+ *      so that all the lines logged for a request can be picked out, whichever thread they come from.</p>
+ *
+ * @author David G Loone
+ */
+final class Tracer
+{
+
+    @SuppressWarnings({"UnusedDeclaration"})
+    private static final Logger LOG = TraceUtil.getLogger(Tracer.class);
+
+    /**
+     * The MDC key for the correlation id.
+     */
+    static final String TRACE_ID_KEY = "traceId";
+
+    /**
+     * The request sequence number.
+     */
+    private static final AtomicLong SEQUENCE = new AtomicLong();
+
+    /**
+     * The correlation id of the current request, or null if it isn't sampled.
+     */
+    private static final ThreadLocal<String> TRACE_IDS = new ThreadLocal<String>();
+
+    /**
+     * Sample one request in this many. Zero or less means never sample.
+     */
+    private static volatile int sampleInterval = 1;
+
+    /**
+     */
+    private Tracer()
+    {
+        super();
+    }
+
+    /**
+     * Setter for the <b>sampleInterval</b> property.
+     */
+    static void setSampleInterval(final int sampleInterval) {Tracer.sampleInterval = sampleInterval;}
+
+    /**
+     * Start a request on this thread, and decide whether it is sampled.
+     */
+    static void begin()
+    {
+        final long seq = SEQUENCE.incrementAndGet();
+        final int interval = sampleInterval;
+        join(((interval > 0) && ((seq % interval) == 0) && LOG.isTraceEnabled()) ? Long.toString(seq, 36) : null);
+    }
+
+    /**
+     * Carry on with a request on this thread (<i>eg</i> a thread that some of the request's work has been handed to).
+     *
+     * @param traceId
+     *      The correlation id of the request (from {@link #getTraceId()} on the thread that began it),
+     *      or null if it isn't sampled.
+     */
+    static void join(
+            final String traceId
+    )
+    {
+        TRACE_IDS.set(traceId);
+        if (traceId != null) {
+            MDC.put(TRACE_ID_KEY, traceId);
+        }
+    }
+
+    /**
+     * Finish with the current request on this thread.
+     */
+    static void end()
+    {
+        if (TRACE_IDS.get() != null) {
+            MDC.remove(TRACE_ID_KEY);
+        }
+        TRACE_IDS.remove();
+    }
+
+    /**
+     * @return
+     *      The correlation id of the current request, or null if it isn't sampled (or there isn't one).
+     */
+    static String getTraceId()
+    {
+        return TRACE_IDS.get();
+    }
+
+    /**
+     * @param log
+     *      The logger that the message would go to.
+     * @return
+     *      Whether trace messages for the current request would be logged.
+     */
+    static boolean isEnabled(
+            final Logger log
+    )
+    {
+        return (TRACE_IDS.get() != null) && log.isTraceEnabled();
+    }
+
+    /**
+     * @param log
+     *      The logger to log to.
+     * @param message
+     *      The message.
+     */
+    static void trace(
+            final Logger log,
+            final String message
+    )
+    {
+        if (isEnabled(log)) {
+            log.trace(message);
+        }
+    }
+
+    /**
+     * @param log
+     *      The logger to log to.
+     * @param message
+     *      The message.
+     * @param name
+     *      The name of a value to add to the message.
+     * @param value
+     *      The value to add to the message.
+     */
+    static void trace(
+            final Logger log,
+            final String message,
+            final String name,
+            final Object value
+    )
+    {
+        if (isEnabled(log)) {
+            log.trace(message + ": " + TraceUtil.formatObj(value, name));
+        }
+    }
+
+    /**
+     * @param log
+     *      The logger to log to.
+     * @param message
+     *      The message.
+     * @param name
+     *      The name of a value to add to the message.
+     * @param value
+     *      The value to add to the message.
+     */
+    static void trace(
+            final Logger log,
+            final String message,
+            final String name,
+            final int value
+    )
+    {
+        if (isEnabled(log)) {
+            log.trace(message + ": " + TraceUtil.formatObj(value, name));
+        }
+    }
+
+}
\ No newline at end of file
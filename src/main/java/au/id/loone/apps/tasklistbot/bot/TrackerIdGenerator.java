@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2010  David G Loone
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package au.id.loone.apps.tasklistbot.bot;
+
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import au.id.loone.util.DGLDateTimeUtil;
+import au.id.loone.util.tracing.TraceUtil;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Generates <b>taskTrackerId</b> values.
+ *
+ * <p>An id is the current time (in milliseconds), an id for this instance, and a sequence number,
+ *      so ids created in the same millisecond (in this instance or in any other) are still different.
+ *      The instance id is random, since there's nothing else that reliably tells instances apart.
+ *      Generating an id takes no locks.</p>
+ *
+ * @author David G Loone
+ */
+final class TrackerIdGenerator
+{
+
+    @SuppressWarnings({"UnusedDeclaration"})
+    private static final Logger LOG = TraceUtil.getLogger(TrackerIdGenerator.class);
+
+    /**
+     * The id of this instance.
+     */
+    private static final String INSTANCE_ID =
+            Long.toString(new SecureRandom().nextLong() & 0xffffffffffffL, Character.MAX_RADIX);
+
+    /**
+     * The sequence number.
+     */
+    private static final AtomicLong SEQUENCE = new AtomicLong();
+
+    /**
+     */
+    private TrackerIdGenerator()
+    {
+        super();
+    }
+
+    /**
+     * @return
+     *      A new, unique tracker id.
+     */
+    static String next()
+    {
+        return DGLDateTimeUtil.now().getTime() + "." + INSTANCE_ID + "." +
+                Long.toString(SEQUENCE.incrementAndGet(), Character.MAX_RADIX);
+    }
+
+}
\ No newline at end of file
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2010  David G Loone
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package au.id.loone.apps.tasklistbot.bot;
+
+import java.util.Map;
+
+import au.id.loone.apps.tasklistbot.core.MarkerScanner;
+import au.id.loone.util.tracing.TraceUtil;
+
+import com.google.wave.api.Element;
+import org.apache.log4j.Logger;
+
+/**
+ * Finds the markers that are to be converted to task trackers in a Wave blip
+ * (see {@link MarkerScanner}).
+ *
+ * @author David G Loone
+ */
+final class TrackerMarkerScanner
+{
+
+    @SuppressWarnings({"UnusedDeclaration"})
+    private static final Logger LOG = TraceUtil.getLogger(TrackerMarkerScanner.class);
+
+    /**
+     * The character sequence that gets converted to a task tracker.
+     */
+    public static final String MARKER = MarkerScanner.MARKER;
+
+    /**
+     * The character sequence that gets converted to a summary tracker.
+     */
+    public static final String SUMMARY_MARKER = MarkerScanner.SUMMARY_MARKER;
+
+    /**
+     */
+    private TrackerMarkerScanner()
+    {
+        super();
+    }
+
+    /**
+     * Find all the ordinary tracker markers in (part of) a blip.
+     *
+     * @see #find(String, Map, int, int, String)
+     */
+    public static int[] find(
+            final String content,
+            final Map<Integer, Element> elements,
+            final int start,
+            final int end
+    )
+    {
+        return find(content, elements, start, end, MARKER);
+    }
+
+    /**
+     * Find all the markers of a kind in (part of) a blip.
+     *
+     * @param content
+     *      The content of the blip.
+     * @param elements
+     *      The elements of the blip, keyed by offset.
+     * @param start
+     *      The offset to start looking from.
+     * @param end
+     *      The offset to stop looking at. Markers must finish at or before this offset.
+     * @param marker
+     *      The marker to look for.
+     * @return
+     *      The offsets of the markers, in increasing order.
+     */
+    public static int[] find(
+            final String content,
+            final Map<Integer, Element> elements,
+            final int start,
+            final int end,
+            final String marker
+    )
+    {
+        return MarkerScanner.find(content, WaveElements.listItems(elements), start, end, marker);
+    }
+
+}
\ No newline at end of file
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2010  David G Loone
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package au.id.loone.apps.tasklistbot.bot;
+
+import java.util.Map;
+
+/**
+ * Somewhere to keep the tracker tree of each blip between requests,
+ * keyed by wave id, wavelet id and blip id (blip ids are only unique within a wavelet).
+ *
+ * <p>A store is only ever a cache:
+ *      a request that gets nothing back simply rebuilds the tree from the document,
+ *      so a store can drop trees whenever it likes (and should, rather than fail, if it can't get at them).
+ *      Each tree remembers the version of the blip that it matches,
+ *      so a request can tell whether the tree is still current.</p>
+ *
+ * <p>A store also keeps what each blip contributes to the progress of its wavelet
+ *      (see {@link WaveletRollup}), keyed by wave id and wavelet id,
+ *      so that every instance works out a wavelet's progress from all of its blips.
+ *      Those aren't a cache: a wavelet's contributions are only ever changed a blip at a time,
+ *      atomically, and a store that can't get at them says so rather than making them up.</p>
+ *
+ * @author David G Loone
+ */
+interface TrackerStateStore
+{
+
+    /**
+     * Take the tree for a blip out of the store.
+     *
+     * <p>The caller owns the tree until it puts it back.</p>
+     *
+     * @param key
+     *      Identifies the blip (<code>waveId/waveletId/blipId</code>).
+     * @return
+     *      The tree, or null if there isn't one.
+     */
+    TrackerTree take(
+            String key
+    );
+
+    /**
+     * Put the (current) tree for a blip into the store.
+     *
+     * @param key
+     *      Identifies the blip (<code>waveId/waveletId/blipId</code>).
+     * @param tree
+     *      The tree.
+     */
+    void put(
+            String key,
+            TrackerTree tree
+    );
+
+    /**
+     * Forget the tree for a blip (because its structure has changed).
+     *
+     * @param key
+     *      Identifies the blip (<code>waveId/waveletId/blipId</code>).
+     */
+    void invalidate(
+            String key
+    );
+
+    /**
+     * Replace what a blip contributes to the progress of its wavelet,
+     * atomically with respect to every other update of the same wavelet (by any instance).
+     *
+     * @param waveletKey
+     *      Identifies the wavelet (<code>waveId/waveletId</code>).
+     * @param blipId
+     *      The id of the blip.
+     * @param contribution
+     *      The blip's new contribution, or null if it no longer has one.
+     * @return
+     *      The contributions of all the blips in the wavelet after the update, by blip id,
+     *      or null if they can't be got at.
+     */
+    Map<String, WaveletRollup.Contribution> updateWavelet(
+            String waveletKey,
+            String blipId,
+            WaveletRollup.Contribution contribution
+    );
+
+    /**
+     * @param waveletKey
+     *      Identifies the wavelet (<code>waveId/waveletId</code>).
+     * @return
+     *      The contributions of all the blips in the wavelet, by blip id (empty if there aren't any),
+     *      or null if they can't be got at.
+     */
+    Map<String, WaveletRollup.Contribution> getWavelet(
+            String waveletKey
+    );
+
+}
\ No newline at end of file
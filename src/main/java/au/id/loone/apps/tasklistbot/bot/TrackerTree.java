@@ -0,0 +1,1030 @@
+/*
+ * Copyright (C) 2010  David G Loone
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package au.id.loone.apps.tasklistbot.bot;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import au.id.loone.apps.tasklistbot.core.TrackerElementHandler;
+import au.id.loone.apps.tasklistbot.core.TrackerRollup;
+import au.id.loone.util.DGLStringUtil;
+import au.id.loone.util.tracing.TraceUtil;
+
+import com.google.wave.api.Element;
+import com.google.wave.api.Gadget;
+import org.apache.log4j.Logger;
+
+/**
+ * The tracker tree of a single blip,
+ * as it was when it was last checked.
+ *
+ * <p>As well as the rollup data,
+ *      this remembers where each tracker is in the document and what its <b>taskTrackerId</b> is,
+ *      so that a change to a single tracker can be applied without walking the whole document.</p>
+ *
+ * <p>Trackers whose new state is still to be written back (because a request ran out of budget)
+ *      keep the state that they have in the document,
+ *      so they show up as changed again when the tree is next used (or read back from a store),
+ *      and the work carries on from where it left off.</p>
+ *
+ * @author David G Loone
+ */
+final class TrackerTree
+        implements TrackerElementHandler
+{
+
+    @SuppressWarnings({"UnusedDeclaration"})
+    private static final Logger LOG = TraceUtil.getLogger(TrackerTree.class);
+
+    /**
+     * The value of the <b>scope</b> property of a summary tracker.
+     */
+    static final String SCOPE_WAVELET = "wavelet";
+
+    /**
+     * The value of the <b>version</b> property when the blip version that the tree matches isn't known.
+     */
+    static final long UNKNOWN_VERSION = -1;
+
+    /**
+     * The starting value of a fingerprint.
+     */
+    private static final long FINGERPRINT_SEED = 0xcbf29ce484222325L;
+
+    /**
+     * The multiplier for each word added to a fingerprint.
+     */
+    private static final long FINGERPRINT_PRIME = 0x100000001b3L;
+
+    /**
+     * Identifies a tree written by {@link #writeTo(DataOutput)}.
+     */
+    private static final int MAGIC = 0x544c4254;
+
+    /**
+     * The version of the format written by {@link #writeTo(DataOutput)}.
+     */
+    private static final int FORMAT = 1;
+
+    /**
+     * Current value of the <b>rollup</b> property.
+     */
+    private final TrackerRollup rollup;
+
+    /**
+     * The <b>taskTrackerId</b> of each tracker.
+     */
+    private String[] trackerIds;
+
+    /**
+     * The element offset of each tracker.
+     */
+    private int[] offsets;
+
+    /**
+     * The element offsets of the summary trackers.
+     */
+    private int[] summaryOffsets;
+
+    /**
+     * The number of summary trackers.
+     */
+    private int numSummaries;
+
+    /**
+     * The trackers (indexes, in document order) whose <b>taskTrackerId</b> is missing,
+     * or is the same as that of an earlier tracker.
+     */
+    private int[] duplicates;
+
+    /**
+     * The number of trackers in {@link #duplicates}.
+     */
+    private int numDuplicates;
+
+    /**
+     * Index of each tracker (in document order) by <b>taskTrackerId</b>.
+     */
+    private final Map<String, Integer> indexById;
+
+    /**
+     * Current value of the <b>numElements</b> property.
+     */
+    private final int numElements;
+
+    /**
+     * Current value of the <b>version</b> property.
+     */
+    private long version;
+
+    /**
+     * Current value of the <b>numPending</b> property.
+     */
+    private int numPending;
+
+    /**
+     * The indent of the current line, while the tree is being built.
+     */
+    private int lineIndent;
+
+    /**
+     * @param numElements
+     *      The number of elements in the blip.
+     */
+    public TrackerTree(
+            final int numElements
+    )
+    {
+        super();
+
+        this.numElements = numElements;
+        version = UNKNOWN_VERSION;
+        rollup = new TrackerRollup();
+        trackerIds = new String[16];
+        offsets = new int[16];
+        summaryOffsets = new int[0];
+        numSummaries = 0;
+        duplicates = new int[0];
+        numDuplicates = 0;
+        indexById = new HashMap<String, Integer>();
+    }
+
+    /**
+     * Build the tree for a blip.
+     *
+     * @param elements
+     *      The elements of the blip, keyed by offset.
+     * @param gadgets
+     *      Gets the tracker gadgets added to it, in document order.
+     * @return
+     *      The tree.
+     */
+    public static TrackerTree build(
+            final Map<Integer, Element> elements,
+            final List<Gadget> gadgets
+    )
+    {
+        // Iterate over the elements in the document. The line elements give us an indent level, which we
+        // remember for to attach to a gadget that we find in that line. The result is a list of gadget/indent
+        // pairs (in document order), which is a kind of tree. Summary trackers show the progress of the whole
+        // wavelet, so they are not part of the tree.
+        final TrackerTree result = new TrackerTree(elements.size());
+        WaveElements.walk(elements, result, gadgets);
+
+        return result;
+    }
+
+    /**
+     */
+    public void line(
+            final int offset,
+            final String lineType,
+            final int indent
+    )
+    {
+        lineIndent = indent;
+    }
+
+    /**
+     */
+    public void tracker(
+            final int offset,
+            final String trackerId,
+            final int progress,
+            final boolean readonly
+    )
+    {
+        add(offset, trackerId, lineIndent, progress, readonly);
+    }
+
+    /**
+     */
+    public void summary(
+            final int offset
+    )
+    {
+        addSummary(offset);
+    }
+
+    /**
+     * Check whether the tracker structure of a blip is still what the tree says it is,
+     * and if so bring the tree's offsets up to date.
+     *
+     * <p>A fingerprint is taken of just the things that the rollup depends on
+     *      (the indent of each tracker's line, and each tracker's id, progress and readonly state),
+     *      in a single walk of the elements that builds nothing.
+     *      Edits that don't touch the trackers (<i>eg</i> typing) leave the fingerprint alone,
+     *      although they can move the trackers, so the offsets are taken from the walk.</p>
+     *
+     * @param elements
+     *      The elements of the blip, keyed by offset.
+     * @return
+     *      Whether the tree still matches the blip (if not, the tree is left as it is).
+     */
+    public boolean matches(
+            final Map<Integer, Element> elements
+    )
+    {
+        if (elements.size() != numElements) {
+            return false;
+        }
+
+        final Match match = new Match();
+        WaveElements.walk(elements, match, null);
+        return match.finish();
+    }
+
+    /**
+     * Check whether the tracker structure of a blip is still what the tree says it is,
+     * and if so bring the tree's offsets up to date (see {@link #matches(Map)}).
+     *
+     * @param blip
+     *      The blip, as read from a bundle without deserialising it.
+     * @return
+     *      Whether the tree still matches the blip (if not, the tree is left as it is).
+     */
+    public boolean matches(
+            final LazyBundle.LazyBlip blip
+    )
+    {
+        if (blip.getNumElements() != numElements) {
+            return false;
+        }
+
+        final Match match = new Match();
+        blip.walk(match);
+        return match.finish();
+    }
+
+    /**
+     * Check whether the trackers of a blip are still where the tree says they are, on lines with the same indents,
+     * so that the tree still has the blip's shape (whatever the state of the trackers).
+     *
+     * <p>Unlike {@link #matches(Map)}, this leaves the tree alone,
+     *      and says nothing about the trackers' ids, progress or readonly state.</p>
+     *
+     * @param elements
+     *      The elements of the blip, keyed by offset.
+     * @return
+     *      Whether the tree has the blip's shape.
+     */
+    public boolean hasShape(
+            final Map<Integer, Element> elements
+    )
+    {
+        if (elements.size() != numElements) {
+            return false;
+        }
+
+        final Shape shape = new Shape();
+        WaveElements.walk(elements, shape, null);
+        return shape.finish();
+    }
+
+    /**
+     * @return
+     *      The fingerprint of the trackers' current state (see {@link #matches(Map)}).
+     */
+    private long fingerprint()
+    {
+        long result = FINGERPRINT_SEED;
+        for (int idx = 0; idx < rollup.getSize(); idx++) {
+            result = fingerprint(result, rollup.getIndent(idx), trackerIds[idx], rollup.getProgress(idx),
+                    rollup.getReadonly(idx));
+        }
+        return result;
+    }
+
+    /**
+     * Add a tracker to a fingerprint (FNV-1a, a word at a time).
+     *
+     * @return
+     *      The new fingerprint.
+     */
+    private static long fingerprint(
+            final long fingerprint,
+            final int indent,
+            final String trackerId,
+            final int progress,
+            final boolean readonly
+    )
+    {
+        long result = fingerprint;
+        result = (result ^ indent) * FINGERPRINT_PRIME;
+        result = (result ^ ((trackerId == null) ? 0 : trackerId.hashCode())) * FINGERPRINT_PRIME;
+        result = (result ^ progress) * FINGERPRINT_PRIME;
+        result = (result ^ (readonly ? 1 : 0)) * FINGERPRINT_PRIME;
+        return result;
+    }
+
+    /**
+     * Read a tree written by {@link #writeTo(DataOutput)}.
+     *
+     * <p>The subtotals aren't written,
+     *      they are worked out again from the trackers' progress in a single pass.</p>
+     *
+     * @param in
+     *      Where to read the tree from.
+     * @return
+     *      The tree.
+     * @throws IOException
+     *      If the tree can't be read, or wasn't written in the current format.
+     */
+    public static TrackerTree readFrom(
+            final DataInput in
+    )
+            throws IOException
+    {
+        if ((in.readInt() != MAGIC) || (in.readUnsignedByte() != FORMAT)) {
+            throw new IOException("not a tracker tree in format " + FORMAT);
+        }
+
+        final TrackerTree result = new TrackerTree(in.readInt());
+        result.setVersion(in.readLong());
+        final int size = in.readInt();
+        for (int idx = 0; idx < size; idx++) {
+            final String trackerId = in.readBoolean() ? in.readUTF() : null;
+            final int offset = in.readInt();
+            final int indent = in.readShort();
+            final int progress = in.readShort();
+            final boolean readonly = in.readBoolean();
+            result.add(offset, trackerId, indent, progress, readonly);
+        }
+        final int numSummaries = in.readInt();
+        for (int idx = 0; idx < numSummaries; idx++) {
+            result.addSummary(in.readInt());
+        }
+        result.rollup.rollup();
+        for (int idx = 0; idx < size; idx++) {
+            if (result.rollup.isChanged(idx)) {
+                result.numPending++;
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Write the tree in a compact binary format.
+     *
+     * <p>The trackers' current state is written, so the tree should have been rolled up and committed.</p>
+     *
+     * @param out
+     *      Where to write the tree to.
+     * @throws IOException
+     *      If the tree can't be written.
+     */
+    public void writeTo(
+            final DataOutput out
+    )
+            throws IOException
+    {
+        out.writeInt(MAGIC);
+        out.writeByte(FORMAT);
+        out.writeInt(numElements);
+        out.writeLong(version);
+        out.writeInt(rollup.getSize());
+        for (int idx = 0; idx < rollup.getSize(); idx++) {
+            out.writeBoolean(trackerIds[idx] != null);
+            if (trackerIds[idx] != null) {
+                out.writeUTF(trackerIds[idx]);
+            }
+            out.writeInt(offsets[idx]);
+            out.writeShort(rollup.getIndent(idx));
+            out.writeShort(rollup.getProgress(idx));
+            out.writeBoolean(rollup.getReadonly(idx));
+        }
+        out.writeInt(numSummaries);
+        for (int idx = 0; idx < numSummaries; idx++) {
+            out.writeInt(summaryOffsets[idx]);
+        }
+    }
+
+    /**
+     * Add the next tracker (in document order).
+     *
+     * @param offset
+     *      The element offset of the tracker in the blip.
+     * @param trackerId
+     *      The <b>taskTrackerId</b> of the tracker.
+     * @param indent
+     *      The indent of the line that the tracker is in.
+     * @param progress
+     *      The current progress of the tracker (as a percentage).
+     * @param readonly
+     *      The current readonly state of the tracker.
+     */
+    public void add(
+            final int offset,
+            final String trackerId,
+            final int indent,
+            final int progress,
+            final boolean readonly
+    )
+    {
+        final int idx = rollup.getSize();
+        if (idx == offsets.length) {
+            final String[] newTrackerIds = new String[idx * 2];
+            final int[] newOffsets = new int[idx * 2];
+            System.arraycopy(trackerIds, 0, newTrackerIds, 0, idx);
+            System.arraycopy(offsets, 0, newOffsets, 0, idx);
+            trackerIds = newTrackerIds;
+            offsets = newOffsets;
+        }
+
+        rollup.add(indent, progress, readonly);
+        trackerIds[idx] = trackerId;
+        offsets[idx] = offset;
+        if ((trackerId == null) || indexById.containsKey(trackerId)) {
+            addDuplicate(idx);
+        }
+        else {
+            indexById.put(trackerId, idx);
+        }
+    }
+
+    /**
+     * Note that a tracker's <b>taskTrackerId</b> is missing or is the same as that of an earlier tracker.
+     *
+     * @param idx
+     *      The index of the tracker (in document order).
+     */
+    private void addDuplicate(
+            final int idx
+    )
+    {
+        if (numDuplicates == duplicates.length) {
+            final int[] newDuplicates = new int[numDuplicates * 2 + 1];
+            System.arraycopy(duplicates, 0, newDuplicates, 0, numDuplicates);
+            duplicates = newDuplicates;
+        }
+        int pos = numDuplicates;
+        while ((pos > 0) && (duplicates[pos - 1] > idx)) {
+            duplicates[pos] = duplicates[pos - 1];
+            pos--;
+        }
+        duplicates[pos] = idx;
+        numDuplicates++;
+    }
+
+    /**
+     * Note that a tracker's <b>taskTrackerId</b> is no longer a duplicate (if it was).
+     *
+     * @param idx
+     *      The index of the tracker (in document order).
+     */
+    private void removeDuplicate(
+            final int idx
+    )
+    {
+        final int pos = Arrays.binarySearch(duplicates, 0, numDuplicates, idx);
+        if (pos >= 0) {
+            System.arraycopy(duplicates, pos + 1, duplicates, pos, numDuplicates - pos - 1);
+            numDuplicates--;
+        }
+    }
+
+    /**
+     * Add a summary tracker.
+     *
+     * @param offset
+     *      The element offset of the summary tracker in the blip.
+     */
+    private void addSummary(
+            final int offset
+    )
+    {
+        if (numSummaries == summaryOffsets.length) {
+            final int[] newSummaryOffsets = new int[numSummaries + 1];
+            System.arraycopy(summaryOffsets, 0, newSummaryOffsets, 0, numSummaries);
+            summaryOffsets = newSummaryOffsets;
+        }
+        summaryOffsets[numSummaries++] = offset;
+    }
+
+    /**
+     * @return
+     *      The element offsets of the summary trackers in the blip.
+     */
+    public int[] getSummaryOffsets()
+    {
+        final int[] result = new int[numSummaries];
+        System.arraycopy(summaryOffsets, 0, result, 0, numSummaries);
+        return result;
+    }
+
+    /**
+     * Roll up the whole tree,
+     * and add whatever tracker state changes are needed to a plan.
+     *
+     * @param gadgets
+     *      The tracker gadgets, in document order.
+     * @param plan
+     *      The plan to add the changes to.
+     * @return
+     *      The progress level of the whole tree (as a percentage).
+     */
+    public int rollup(
+            final List<Gadget> gadgets,
+            final TrackerUpdatePlan plan
+    )
+    {
+        final int result = rollup.rollup();
+
+        for (int idx = 0; idx < rollup.getSize(); idx++) {
+            if (rollup.isChanged(idx)) {
+                plan.add(offsets[idx], gadgets.get(idx), rollup.getTargetReadonly(idx),
+                        rollup.getTargetProgress(idx));
+                rollup.commit(idx);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Add all the changes that are still to be written back to a plan
+     * (<i>ie</i> the ones held back by {@link #limit(TrackerUpdatePlan, int, Collection)}).
+     *
+     * @param elements
+     *      The elements of the blip, keyed by offset (the tree must match them).
+     * @param plan
+     *      The plan to add the changes to.
+     * @return
+     *      The number of changes added.
+     */
+    public int resume(
+            final Map<Integer, Element> elements,
+            final TrackerUpdatePlan plan
+    )
+    {
+        int result = 0;
+        for (int idx = 0; idx < rollup.getSize(); idx++) {
+            final Element el = elements.get(offsets[idx]);
+            if (rollup.isChanged(idx) && isTracker(el)) {
+                plan.add(offsets[idx], (Gadget)el, rollup.getTargetReadonly(idx), rollup.getTargetProgress(idx));
+                rollup.commit(idx);
+                result++;
+            }
+        }
+        numPending = 0;
+        return result;
+    }
+
+    /**
+     * Cut a plan down to a budget, holding back the least important changes until next time.
+     *
+     * <p>The ancestors of the trackers that the user modified come first
+     *      (they are what the user is looking at),
+     *      then the rest from the top of the tree down (the higher a tracker, the more it summarises),
+     *      and in document order after that.
+     *      The trackers whose changes are held back keep the state that they have in the document,
+     *      including their <b>taskTrackerId</b> if they were being given a new one
+     *      (so they are duplicates again, and are given a new one next time).</p>
+     *
+     * @param plan
+     *      The plan (made from this tree).
+     * @param budget
+     *      The most changes to keep, or zero (or less) for no limit.
+     * @param modifiedOffsets
+     *      The element offsets of the trackers that the user modified (may be null, and may contain nulls).
+     * @return
+     *      The number of changes held back.
+     */
+    public int limit(
+            final TrackerUpdatePlan plan,
+            final int budget,
+            final Collection<Integer> modifiedOffsets
+    )
+    {
+        if ((budget <= 0) || (plan.size() <= budget)) {
+            return 0;
+        }
+
+        final int size = rollup.getSize();
+        final boolean[] onPath = new boolean[size];
+        if (modifiedOffsets != null) {
+            for (final Integer offset : modifiedOffsets) {
+                final int idx = (offset == null) ? -1 : Arrays.binarySearch(offsets, 0, size, offset);
+                for (int ancestorIdx = (idx < 0) ? -1 : rollup.getParent(idx);
+                        (ancestorIdx != -1) && !onPath[ancestorIdx]; ancestorIdx = rollup.getParent(ancestorIdx)) {
+                    onPath[ancestorIdx] = true;
+                }
+            }
+        }
+
+        // Rank the changes by a single sort key: off the path or not, then depth, then index.
+        final long[] keys = new long[plan.size()];
+        int keyIdx = 0;
+        for (final TrackerUpdatePlan.Update update : plan.getUpdates()) {
+            final int idx = Arrays.binarySearch(offsets, 0, size, update.getOffset());
+            int depth = 0;
+            for (int ancestorIdx = rollup.getParent(idx); ancestorIdx != -1; ancestorIdx = rollup.getParent(ancestorIdx)) {
+                depth++;
+            }
+            keys[keyIdx++] = ((onPath[idx] ? 0L : 1L) << 62) | ((long)depth << 31) | idx;
+        }
+        Arrays.sort(keys);
+
+        for (keyIdx = budget; keyIdx < keys.length; keyIdx++) {
+            final int idx = (int)(keys[keyIdx] & Integer.MAX_VALUE);
+            final TrackerUpdatePlan.Update update = plan.remove(offsets[idx]);
+            rollup.reset(idx, getProgress(update.getTracker()), getReadonly(update.getTracker()));
+            final String trackerId = update.getTracker().getProperty("taskTrackerId");
+            if (!DGLStringUtil.equals(trackerIds[idx], trackerId)) {
+                setTrackerId(idx, trackerId);
+            }
+        }
+        numPending = keys.length - budget;
+        return numPending;
+    }
+
+    /**
+     * @param trackerId
+     *      The <b>taskTrackerId</b> of a tracker.
+     * @return
+     *      The index of the tracker (in document order), or -1 if it is not in the tree.
+     */
+    public int indexOf(
+            final String trackerId
+    )
+    {
+        final Integer idx = (trackerId == null) ? null : indexById.get(trackerId);
+        return (idx == null) ? -1 : idx;
+    }
+
+    /**
+     * @param trackerId
+     *      The <b>taskTrackerId</b> of a tracker.
+     * @return
+     *      The element offset of the tracker in the blip, or -1 if it is not in the tree.
+     */
+    public int offsetOf(
+            final String trackerId
+    )
+    {
+        final int idx = indexOf(trackerId);
+        return (idx == -1) ? -1 : offsets[idx];
+    }
+
+    /**
+     * @return
+     *      The trackers (indexes, in document order) whose <b>taskTrackerId</b> is missing,
+     *      or is the same as that of an earlier tracker.
+     */
+    public int[] getDuplicates()
+    {
+        final int[] result = new int[numDuplicates];
+        System.arraycopy(duplicates, 0, result, 0, numDuplicates);
+        return result;
+    }
+
+    /**
+     * Give a tracker a new <b>taskTrackerId</b>.
+     *
+     * @param idx
+     *      The index of the tracker (in document order).
+     * @param trackerId
+     *      The new <b>taskTrackerId</b> of the tracker.
+     */
+    public void setTrackerId(
+            final int idx,
+            final String trackerId
+    )
+    {
+        if ((trackerIds[idx] != null) && (indexOf(trackerIds[idx]) == idx)) {
+            indexById.remove(trackerIds[idx]);
+        }
+        removeDuplicate(idx);
+        trackerIds[idx] = trackerId;
+        if ((trackerId == null) || indexById.containsKey(trackerId)) {
+            addDuplicate(idx);
+        }
+        else {
+            indexById.put(trackerId, idx);
+        }
+    }
+
+    /**
+     * @param idx
+     *      The index of the tracker (in document order).
+     * @return
+     *      The <b>taskTrackerId</b> of the tracker.
+     */
+    public String getTrackerId(
+            final int idx
+    )
+    {
+        return trackerIds[idx];
+    }
+
+    /**
+     * @param idx
+     *      The index of the tracker (in document order).
+     * @return
+     *      The element offset of the tracker in the blip.
+     */
+    public int getOffset(
+            final int idx
+    )
+    {
+        return offsets[idx];
+    }
+
+    /**
+     * @param el
+     *      An element.
+     * @return
+     *      Whether the element is a task tracker (or summary tracker) gadget.
+     *      If there is no <b>taskTrackerGadgetUrl</b>, no gadget is taken to be one.
+     */
+    static boolean isTracker(
+            final Element el
+    )
+    {
+        final String url = BotSettings.get().getTaskTrackerGadgetUrl();
+        return (el instanceof Gadget) && !DGLStringUtil.isNullOrEmpty(url) &&
+                DGLStringUtil.equals(((Gadget)el).getUrl(), url);
+    }
+
+    /**
+     * @param el
+     *      An element.
+     * @return
+     *      Whether the element is a summary tracker
+     *      (<i>ie</i> a tracker gadget that shows the progress of the whole wavelet).
+     */
+    static boolean isSummary(
+            final Element el
+    )
+    {
+        return isTracker(el) && SCOPE_WAVELET.equals(el.getProperty("scope"));
+    }
+
+    /**
+     * @param tracker
+     *      A task tracker gadget.
+     * @return
+     *      The progress of the tracker (as a percentage).
+     */
+    static int getProgress(
+            final Gadget tracker
+    )
+    {
+        final String progressStr = tracker.getProperty("progress");
+        return DGLStringUtil.isNullOrEmpty(progressStr) ? 0 : Integer.parseInt(progressStr);
+    }
+
+    /**
+     * @param tracker
+     *      A task tracker gadget.
+     * @return
+     *      Whether the tracker is readonly.
+     */
+    static boolean getReadonly(
+            final Gadget tracker
+    )
+    {
+        return Boolean.parseBoolean(tracker.getProperty("readonly"));
+    }
+
+    /**
+     * Takes the fingerprint and the offsets of a blip's trackers as they are walked,
+     * to see whether they match the tree.
+     */
+    private final class Match
+            implements TrackerElementHandler
+    {
+
+        /**
+         * The element offset of each tracker.
+         */
+        private final int[] newOffsets;
+
+        /**
+         * The element offsets of the summary trackers.
+         */
+        private final int[] newSummaryOffsets;
+
+        /**
+         * The fingerprint of the trackers so far.
+         */
+        private long fingerprint;
+
+        /**
+         * The number of trackers so far.
+         */
+        private int idx;
+
+        /**
+         * The number of summary trackers so far.
+         */
+        private int summaryIdx;
+
+        /**
+         * The indent of the current line.
+         */
+        private int indent;
+
+        /**
+         * Whether there are more trackers (or summary trackers) than in the tree.
+         */
+        private boolean overflow;
+
+        /**
+         */
+        Match()
+        {
+            super();
+
+            newOffsets = new int[rollup.getSize()];
+            newSummaryOffsets = new int[numSummaries];
+            fingerprint = FINGERPRINT_SEED;
+        }
+
+        /**
+         */
+        public void line(
+                final int offset,
+                final String lineType,
+                final int indent
+        )
+        {
+            this.indent = indent;
+        }
+
+        /**
+         */
+        public void tracker(
+                final int offset,
+                final String trackerId,
+                final int progress,
+                final boolean readonly
+        )
+        {
+            if (idx == newOffsets.length) {
+                overflow = true;
+                return;
+            }
+            newOffsets[idx++] = offset;
+            fingerprint = fingerprint(fingerprint, indent, trackerId, progress, readonly);
+        }
+
+        /**
+         */
+        public void summary(
+                final int offset
+        )
+        {
+            if (summaryIdx == newSummaryOffsets.length) {
+                overflow = true;
+                return;
+            }
+            newSummaryOffsets[summaryIdx++] = offset;
+        }
+
+        /**
+         * @return
+         *      Whether the trackers match the tree (if so, the tree's offsets are brought up to date).
+         */
+        boolean finish()
+        {
+            if (overflow || (idx != newOffsets.length) || (summaryIdx != numSummaries) ||
+                    (fingerprint != fingerprint())) {
+                return false;
+            }
+
+            System.arraycopy(newOffsets, 0, offsets, 0, idx);
+            System.arraycopy(newSummaryOffsets, 0, summaryOffsets, 0, numSummaries);
+            return true;
+        }
+
+    }
+
+    /**
+     * Compares the offset and line indent of each tracker in a blip with the tree (see {@link #hasShape(Map)}).
+     */
+    private final class Shape
+            implements TrackerElementHandler
+    {
+
+        /**
+         * The number of trackers so far.
+         */
+        private int idx;
+
+        /**
+         * The indent of the current line.
+         */
+        private int indent;
+
+        /**
+         * Whether a tracker has been found that doesn't match the tree.
+         */
+        private boolean mismatch;
+
+        /**
+         */
+        Shape()
+        {
+            super();
+        }
+
+        /**
+         */
+        public void line(
+                final int offset,
+                final String lineType,
+                final int indent
+        )
+        {
+            this.indent = indent;
+        }
+
+        /**
+         */
+        public void tracker(
+                final int offset,
+                final String trackerId,
+                final int progress,
+                final boolean readonly
+        )
+        {
+            if ((idx == rollup.getSize()) || (offsets[idx] != offset) || (rollup.getIndent(idx) != indent)) {
+                mismatch = true;
+            }
+            idx++;
+        }
+
+        /**
+         */
+        public void summary(
+                final int offset
+        )
+        {
+        }
+
+        /**
+         * @return
+         *      Whether the trackers match the tree.
+         */
+        boolean finish()
+        {
+            return !mismatch && (idx == rollup.getSize());
+        }
+
+    }
+
+    /**
+     * Getter method for the <b>rollup</b> property.
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public TrackerRollup getRollup() {return rollup;}
+
+    /**
+     * Getter method for the <b>numElements</b> property.
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public int getNumElements() {return numElements;}
+
+    /**
+     * Getter method for the <b>numPending</b> property.
+     * This is the number of trackers whose new state is still to be written back.
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public int getNumPending() {return numPending;}
+
+    /**
+     * Setter for the <b>version</b> property.
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public void setVersion(final long version) {this.version = version;}
+
+    /**
+     * Getter method for the <b>version</b> property.
+     * This is the version of the blip that the tree matches, or {@link #UNKNOWN_VERSION}.
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public long getVersion() {return version;}
+
+}
\ No newline at end of file
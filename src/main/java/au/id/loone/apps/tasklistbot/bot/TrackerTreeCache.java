@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2010  David G Loone
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package au.id.loone.apps.tasklistbot.bot;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import au.id.loone.util.tracing.TraceUtil;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Per-blip cache of tracker trees, keyed by wave id, wavelet id and blip id
+ * (blip ids are only unique within a wavelet).
+ *
+ * <p>A tree is taken out of the cache while a request is working on it and put back afterwards,
+ *      so two requests can never update the same tree at once.
+ *      A request that finds nothing in the cache simply rebuilds the tree from the document.
+ *      The least recently used trees are dropped once the cache is full.</p>
+ *
+ * <p>The cache can sit in front of a persistent store,
+ *      which is written through to and only read from when the cache doesn't have the tree,
+ *      so that a tree survives the cache dropping it (or the instance being restarted).
+ *      A tree is only written through when it isn't known to be in the store as it is,
+ *      which is when it is for a different version of the blip than the store has,
+ *      or for a version that isn't known yet (because trackers have just been written).
+ *      Most bundles leave their blips' trees alone, so most puts cost nothing.</p>
+ *
+ * @author David G Loone
+ */
+final class TrackerTreeCache
+        implements TrackerStateStore
+{
+
+    @SuppressWarnings({"UnusedDeclaration"})
+    private static final Logger LOG = TraceUtil.getLogger(TrackerTreeCache.class);
+
+    /**
+     * The trees, in least recently used order.
+     */
+    private final Map<String, TrackerTree> trees;
+
+    /**
+     * The version of the tree for each blip that is known to be in the store,
+     * in least recently used order (empty if there is no store).
+     */
+    private final Map<String, Long> storedVersions;
+
+    /**
+     * The store behind the cache, or null if there isn't one.
+     */
+    private final TrackerStateStore backing;
+
+    /**
+     * @param maxSize
+     *      The maximum number of blips to keep trees for.
+     */
+    public TrackerTreeCache(
+            final int maxSize
+    )
+    {
+        this(maxSize, null);
+    }
+
+    /**
+     * @param maxSize
+     *      The maximum number of blips to keep trees for.
+     * @param backing
+     *      The store behind the cache, or null if there isn't one.
+     */
+    public TrackerTreeCache(
+            final int maxSize,
+            final TrackerStateStore backing
+    )
+    {
+        super();
+
+        this.backing = backing;
+        trees = new LinkedHashMap<String, TrackerTree>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(
+                    final Map.Entry<String, TrackerTree> eldest
+            )
+            {
+                return size() > maxSize;
+            }
+        };
+        storedVersions = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(
+                    final Map.Entry<String, Long> eldest
+            )
+            {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * Take the tree for a blip out of the cache.
+     *
+     * @param key
+     *      Identifies the blip (<code>waveId/waveletId/blipId</code>).
+     * @return
+     *      The tree, or null if there isn't one.
+     */
+    public TrackerTree take(
+            final String key
+    )
+    {
+        if (key == null) {
+            return null;
+        }
+
+        TrackerTree result;
+        synchronized (this) {
+            result = trees.remove(key);
+        }
+        if ((result == null) && (backing != null)) {
+            result = backing.take(key);
+            if (result != null) {
+                synchronized (this) {
+                    storedVersions.put(key, result.getVersion());
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Put the (current) tree for a blip into the cache,
+     * and into the store behind it if the store doesn't already have it.
+     *
+     * @param key
+     *      Identifies the blip (<code>waveId/waveletId/blipId</code>).
+     * @param tree
+     *      The tree.
+     */
+    public void put(
+            final String key,
+            final TrackerTree tree
+    )
+    {
+        if (key != null) {
+            final boolean changed;
+            synchronized (this) {
+                trees.put(key, tree);
+                final Long storedVersion = storedVersions.get(key);
+                changed = (backing != null) && ((tree.getVersion() == TrackerTree.UNKNOWN_VERSION) ||
+                        (storedVersion == null) || (storedVersion != tree.getVersion()));
+                if (changed) {
+                    storedVersions.put(key, tree.getVersion());
+                }
+            }
+            if (changed) {
+                backing.put(key, tree);
+            }
+        }
+    }
+
+    /**
+     * Put a tree that was taken out of the cache back, without writing it through,
+     * because nothing that matters has changed.
+     *
+     * <p>The store's copy may be for an older version of the blip,
+     *      but it still matches the blip, which is all that a request needs to know.</p>
+     *
+     * @param key
+     *      Identifies the blip (<code>waveId/waveletId/blipId</code>).
+     * @param tree
+     *      The tree.
+     */
+    public void restore(
+            final String key,
+            final TrackerTree tree
+    )
+    {
+        if (key != null) {
+            synchronized (this) {
+                trees.put(key, tree);
+            }
+        }
+    }
+
+    /**
+     * Forget the tree for a blip (because its structure has changed).
+     *
+     * @param key
+     *      Identifies the blip (<code>waveId/waveletId/blipId</code>).
+     */
+    public void invalidate(
+            final String key
+    )
+    {
+        if (key != null) {
+            synchronized (this) {
+                trees.remove(key);
+                storedVersions.remove(key);
+            }
+            if (backing != null) {
+                backing.invalidate(key);
+            }
+        }
+    }
+
+    /**
+     * Wavelet contributions aren't cached, they go straight to the store behind the cache.
+     *
+     * @return
+     *      The contributions of all the blips in the wavelet after the update,
+     *      or null if there is no store behind the cache (or it can't get at them).
+     */
+    public Map<String, WaveletRollup.Contribution> updateWavelet(
+            final String waveletKey,
+            final String blipId,
+            final WaveletRollup.Contribution contribution
+    )
+    {
+        return (backing == null) ? null : backing.updateWavelet(waveletKey, blipId, contribution);
+    }
+
+    /**
+     * Wavelet contributions aren't cached, they come straight from the store behind the cache.
+     *
+     * @return
+     *      The contributions of all the blips in the wavelet,
+     *      or null if there is no store behind the cache (or it can't get at them).
+     */
+    public Map<String, WaveletRollup.Contribution> getWavelet(
+            final String waveletKey
+    )
+    {
+        return (backing == null) ? null : backing.getWavelet(waveletKey);
+    }
+
+}
\ No newline at end of file
@@ -0,0 +1,321 @@
+/*
+ * Copyright (C) 2010  David G Loone
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package au.id.loone.apps.tasklistbot.bot;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import au.id.loone.util.DGLStringUtil;
+import au.id.loone.util.tracing.TraceUtil;
+
+import com.google.wave.api.Gadget;
+import org.apache.log4j.Logger;
+
+/**
+ * The complete set of tracker state changes for a blip,
+ * worked out before any of them are written back to the document.
+ *
+ * <p>Changes that would leave a tracker as it is are dropped as they are added,
+ *      and there is at most one change per tracker (the last one added wins,
+ *      but a change of <b>taskTrackerId</b> is kept).
+ *      The changes are kept in document order, keyed by element offset,
+ *      so they can all be applied in a single pass without searching the document.</p>
+ *
+ * @author David G Loone
+ */
+final class TrackerUpdatePlan
+{
+
+    @SuppressWarnings({"UnusedDeclaration"})
+    private static final Logger LOG = TraceUtil.getLogger(TrackerUpdatePlan.class);
+
+    /**
+     * The changes, keyed by element offset.
+     */
+    private final Map<Integer, Update> updates;
+
+    /**
+     */
+    public TrackerUpdatePlan()
+    {
+        super();
+
+        updates = new TreeMap<Integer, Update>();
+    }
+
+    /**
+     * Add a change to the plan (unless it doesn't actually change anything).
+     *
+     * @param offset
+     *      The element offset of the tracker in the blip.
+     * @param tracker
+     *      The task tracker gadget, as it currently is in the document.
+     * @param readonly
+     *      Whether the tracker gadget should be set as readonly.
+     * @param progress
+     *      The progress value to assign to the tracker gadget (as a percentage).
+     * @return
+     *      Whether the change was added.
+     */
+    public boolean add(
+            final int offset,
+            final Gadget tracker,
+            final boolean readonly,
+            final int progress
+    )
+    {
+        final boolean oldReadonly = DGLStringUtil.isNullOrEmpty(tracker.getProperty("readonly")) ? false :
+                Boolean.valueOf(tracker.getProperty("readonly"));
+        final int oldProgress = DGLStringUtil.isNullOrEmpty(tracker.getProperty("progress")) ? 0 :
+                Integer.valueOf(tracker.getProperty("progress"));
+
+        final boolean result;
+        if ((oldReadonly != readonly) ||
+                (oldProgress != progress)) {
+            final Update old = updates.get(offset);
+            updates.put(offset, new Update(offset, tracker, readonly, progress,
+                    (old == null) ? tracker.getProperty("taskTrackerId") : old.getTrackerId()));
+            result = true;
+        }
+        else if ((updates.get(offset) != null) &&
+                DGLStringUtil.equals(updates.get(offset).getTrackerId(), tracker.getProperty("taskTrackerId"))) {
+            updates.remove(offset);
+            result = false;
+        }
+        else {
+            result = false;
+        }
+
+        return result;
+    }
+
+    /**
+     * Add a change of <b>taskTrackerId</b> to the plan,
+     * keeping whatever state change has already been planned for the tracker.
+     *
+     * @param offset
+     *      The element offset of the tracker in the blip.
+     * @param tracker
+     *      The task tracker gadget, as it currently is in the document.
+     * @param trackerId
+     *      The new <b>taskTrackerId</b>.
+     */
+    public void renumber(
+            final int offset,
+            final Gadget tracker,
+            final String trackerId
+    )
+    {
+        final Update old = updates.get(offset);
+        final boolean readonly = (old != null) ? old.getReadonly() :
+                (DGLStringUtil.isNullOrEmpty(tracker.getProperty("readonly")) ? false :
+                        Boolean.valueOf(tracker.getProperty("readonly")));
+        final int progress = (old != null) ? old.getProgress() :
+                (DGLStringUtil.isNullOrEmpty(tracker.getProperty("progress")) ? 0 :
+                        Integer.valueOf(tracker.getProperty("progress")));
+        updates.put(offset, new Update(offset, tracker, readonly, progress, trackerId));
+    }
+
+    /**
+     * Take a change out of the plan.
+     *
+     * @param offset
+     *      The element offset of the tracker in the blip.
+     * @return
+     *      The change, or null if there wasn't one for the tracker.
+     */
+    public Update remove(
+            final int offset
+    )
+    {
+        return updates.remove(offset);
+    }
+
+    /**
+     * @return
+     *      Whether there are no changes to make.
+     */
+    public boolean isEmpty()
+    {
+        return updates.isEmpty();
+    }
+
+    /**
+     * @return
+     *      The number of changes to make.
+     */
+    public int size()
+    {
+        return updates.size();
+    }
+
+    /**
+     * Getter method for the <b>updates</b> property.
+     *
+     * @return
+     *      The changes, in document order.
+     */
+    public Collection<Update> getUpdates()
+    {
+        return updates.values();
+    }
+
+    /**
+     * A single tracker state change.
+     */
+    static final class Update
+    {
+
+        /**
+         * Current value of the <b>offset</b> property.
+         */
+        private final int offset;
+
+        /**
+         * Current value of the <b>tracker</b> property.
+         */
+        private final Gadget tracker;
+
+        /**
+         * Current value of the <b>readonly</b> property.
+         */
+        private final boolean readonly;
+
+        /**
+         * Current value of the <b>progress</b> property.
+         */
+        private final int progress;
+
+        /**
+         * Current value of the <b>trackerId</b> property.
+         */
+        private final String trackerId;
+
+        /**
+         */
+        Update(
+                final int offset,
+                final Gadget tracker,
+                final boolean readonly,
+                final int progress,
+                final String trackerId
+        )
+        {
+            super();
+
+            this.offset = offset;
+            this.tracker = tracker;
+            this.readonly = readonly;
+            this.progress = progress;
+            this.trackerId = trackerId;
+        }
+
+        /**
+         */
+        public String toString()
+        {
+            return "Update{" +
+                    TraceUtil.formatObj(offset, "offset") + ", " +
+                    TraceUtil.formatObj(trackerId, "trackerId") + ", " +
+                    TraceUtil.formatObj(readonly, "readonly") + ", " +
+                    TraceUtil.formatObj(progress, "progress") + "}";
+        }
+
+        /**
+         * @param version
+         *      The <b>version</b> to give the tracker
+         *      (<i>ie</i> the version of the blip that the change was worked out from).
+         * @return
+         *      Just the properties of the tracker that change
+         *      (for updating the tracker in place).
+         */
+        public Map<String, String> getDelta(
+                final long version
+        )
+        {
+            final Map<String, String> result = new LinkedHashMap<String, String>();
+            if (!DGLStringUtil.equals(tracker.getProperty("taskTrackerId"), trackerId)) {
+                result.put("taskTrackerId", trackerId);
+            }
+            if (!String.valueOf(progress).equals(tracker.getProperty("progress"))) {
+                result.put("progress", String.valueOf(progress));
+            }
+            if (!String.valueOf(readonly).equals(tracker.getProperty("readonly"))) {
+                result.put("readonly", String.valueOf(readonly));
+            }
+            result.put("version", String.valueOf(version));
+            return result;
+        }
+
+        /**
+         * @param version
+         *      The <b>version</b> to give the tracker
+         *      (<i>ie</i> the version of the blip that the change was worked out from).
+         * @return
+         *      All the properties that the tracker should have
+         *      (for replacing the tracker with a new one).
+         */
+        public Map<String, String> getProperties(
+                final long version
+        )
+        {
+            final Map<String, String> result = new LinkedHashMap<String, String>();
+            result.put("taskTrackerId", trackerId);
+            result.put("progress", String.valueOf(progress));
+            result.put("readonly", String.valueOf(readonly));
+            result.put("version", String.valueOf(version));
+            if (tracker.getProperty("scope") != null) {
+                result.put("scope", tracker.getProperty("scope"));
+            }
+            return result;
+        }
+
+        /**
+         * Getter method for the <b>offset</b> property.
+         */
+        @SuppressWarnings({"UnusedDeclaration"})
+        public int getOffset() {return offset;}
+
+        /**
+         * Getter method for the <b>tracker</b> property.
+         */
+        @SuppressWarnings({"UnusedDeclaration"})
+        public Gadget getTracker() {return tracker;}
+
+        /**
+         * Getter method for the <b>readonly</b> property.
+         */
+        @SuppressWarnings({"UnusedDeclaration"})
+        public boolean getReadonly() {return readonly;}
+
+        /**
+         * Getter method for the <b>progress</b> property.
+         */
+        @SuppressWarnings({"UnusedDeclaration"})
+        public int getProgress() {return progress;}
+
+        /**
+         * Getter method for the <b>trackerId</b> property.
+         */
+        @SuppressWarnings({"UnusedDeclaration"})
+        public String getTrackerId() {return trackerId;}
+
+    }
+
+}
\ No newline at end of file
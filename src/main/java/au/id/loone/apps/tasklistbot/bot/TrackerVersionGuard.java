@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2010  David G Loone
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package au.id.loone.apps.tasklistbot.bot;
+
+/**
+ * Decides which of several racing requests gets to write to a blip's trackers,
+ * when more than one request (in this instance or in another) is working on the same blip at once.
+ *
+ * <p>Every write to a tracker stamps its <b>version</b> property with the version of the blip
+ *      that the new state was worked out from,
+ *      so the version of a tracker is the generation of the state that it holds.
+ *      Before writing (or deciding that there is nothing to write),
+ *      a request claims the version of the blip that it is working from:
+ *      the claim fails if anyone else has already claimed the same or a later version,
+ *      since that request's view is at least as fresh as ours, and anything we wrote would only undo its work.
+ *      A request can claim the same blip and version again
+ *      (<i>eg</i> a blip with a summary tracker that is written once for each blip in a bundle).</p>
+ *
+ * <p>A guard that can't get at its claims should let the request through,
+ *      which is no worse than having no guard at all.</p>
+ *
+ * @author David G Loone
+ */
+interface TrackerVersionGuard
+{
+
+    /**
+     * Claim a version of a blip, ready to write to its trackers.
+     *
+     * @param key
+     *      Identifies the blip.
+     * @param version
+     *      The version of the blip that the write was worked out from.
+     * @param owner
+     *      Identifies the request making the claim.
+     * @return
+     *      Whether the claim succeeded (and so the write should go ahead).
+     */
+    boolean claim(
+            String key,
+            long version,
+            String owner
+    );
+
+}
\ No newline at end of file
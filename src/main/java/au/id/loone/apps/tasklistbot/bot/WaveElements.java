@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2010  David G Loone
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package au.id.loone.apps.tasklistbot.bot;
+
+import java.util.List;
+import java.util.Map;
+
+import au.id.loone.apps.tasklistbot.core.MarkerScanner;
+import au.id.loone.apps.tasklistbot.core.TrackerElementHandler;
+import au.id.loone.util.DGLStringUtil;
+import au.id.loone.util.tracing.TraceUtil;
+
+import com.google.wave.api.Element;
+import com.google.wave.api.Gadget;
+import com.google.wave.api.Line;
+import org.apache.log4j.Logger;
+
+/**
+ * Turns the elements of a Wave blip into the neutral form that the tracker core works on.
+ *
+ * @author David G Loone
+ */
+final class WaveElements
+{
+
+    @SuppressWarnings({"UnusedDeclaration"})
+    private static final Logger LOG = TraceUtil.getLogger(WaveElements.class);
+
+    /**
+     */
+    private WaveElements()
+    {
+        super();
+    }
+
+    /**
+     * Feed the elements of a blip that matter to task trackers to a handler.
+     *
+     * <p>Gadgets that aren't task trackers (see {@link TrackerTree#isTracker(Element)}) are left out,
+     *      so they never get into a tree, and so never have anything written to them.</p>
+     *
+     * @param elements
+     *      The elements of the blip, keyed by offset.
+     * @param handler
+     *      The handler.
+     * @param gadgets
+     *      Gets the tracker gadgets added to it, in the order that they are given to the handler
+     *      (may be null if they aren't wanted).
+     */
+    static void walk(
+            final Map<Integer, Element> elements,
+            final TrackerElementHandler handler,
+            final List<Gadget> gadgets
+    )
+    {
+        for (final Map.Entry<Integer, Element> entry : elements.entrySet()) {
+            final Element el = entry.getValue();
+
+            if (el instanceof Line) {
+                final Line lineEl = (Line)el;
+                handler.line(entry.getKey(), lineEl.getLineType(),
+                        DGLStringUtil.isNullOrEmpty(lineEl.getIndent()) ? 0 : Integer.valueOf(lineEl.getIndent()));
+            }
+            else if (TrackerTree.isSummary(el)) {
+                handler.summary(entry.getKey());
+            }
+            else if (TrackerTree.isTracker(el)) {
+                final Gadget gadget = (Gadget)el;
+                if (gadgets != null) {
+                    gadgets.add(gadget);
+                }
+                handler.tracker(entry.getKey(), gadget.getProperty("taskTrackerId"), TrackerTree.getProgress(gadget),
+                        TrackerTree.getReadonly(gadget));
+            }
+        }
+    }
+
+    /**
+     * @param elements
+     *      The elements of a blip, keyed by offset.
+     * @return
+     *      Where the "li" lines of the blip start.
+     */
+    static MarkerScanner.ListItems listItems(
+            final Map<Integer, Element> elements
+    )
+    {
+        return new MarkerScanner.ListItems() {
+            public boolean isListItem(
+                    final int offset
+            )
+            {
+                final Element el = elements.get(offset);
+                return (el instanceof Line) && DGLStringUtil.equals(((Line)el).getLineType(), "li");
+            }
+        };
+    }
+
+}
\ No newline at end of file
@@ -0,0 +1,431 @@
+/*
+ * Copyright (C) 2010  David G Loone
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package au.id.loone.apps.tasklistbot.bot;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import au.id.loone.util.tracing.TraceUtil;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The progress of whole wavelets,
+ * made up of per-blip subtotals.
+ *
+ * <p>The top level trackers of every blip in a wavelet are treated as siblings,
+ *      so the progress of the wavelet is the cumulative progress of all of them divided by how many there are.
+ *      Each blip's contribution (its top level total and count, and where its summary trackers are) is kept,
+ *      and when a blip changes, only its contribution is swapped out of the wavelet's running totals.</p>
+ *
+ * <p>With a tracker state store behind it,
+ *      the contributions are kept in the store (see {@link TrackerStateStore#updateWavelet}),
+ *      so that every instance (and an instance that has just started) works from the same totals,
+ *      and the totals here are only a cache of what the store last gave back.
+ *      If the store can't be got at, the wavelet's progress isn't known, rather than being made up
+ *      from whichever blips this instance has seen.
+ *      Without a store, only the blips that this instance has seen since it started contribute.
+ *      The least recently used wavelets are dropped once there are too many.</p>
+ *
+ * @author David G Loone
+ */
+final class WaveletRollup
+{
+
+    @SuppressWarnings({"UnusedDeclaration"})
+    private static final Logger LOG = TraceUtil.getLogger(WaveletRollup.class);
+
+    /**
+     * The progress of a wavelet that isn't known.
+     */
+    static final int UNKNOWN_PROGRESS = -1;
+
+    /**
+     * Identifies contributions written by {@link #writeTo(Map, DataOutput)}.
+     */
+    private static final int MAGIC = 0x544c4257;
+
+    /**
+     * The version of the format written by {@link #writeTo(Map, DataOutput)}.
+     */
+    private static final int FORMAT = 1;
+
+    /**
+     * The totals for each wavelet, in least recently used order.
+     */
+    private final Map<String, WaveletTotals> wavelets;
+
+    /**
+     * The store that the contributions are kept in, or null if they are only kept here.
+     */
+    private final TrackerStateStore store;
+
+    /**
+     * @param maxSize
+     *      The maximum number of wavelets to keep totals for.
+     * @param store
+     *      The store that the contributions are kept in, or null if they are only kept here.
+     */
+    public WaveletRollup(
+            final int maxSize,
+            final TrackerStateStore store
+    )
+    {
+        super();
+
+        this.store = store;
+        wavelets = new LinkedHashMap<String, WaveletTotals>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(
+                    final Map.Entry<String, WaveletTotals> eldest
+            )
+            {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * Replace a blip's contribution to its wavelet.
+     *
+     * <p>A blip with no trackers left (no top level trackers and no summary trackers) has its entry removed,
+     *      so that it isn't taken to have a contribution any more
+     *      (and a wavelet with no blips left is dropped).</p>
+     *
+     * @param waveletKey
+     *      Identifies the wavelet.
+     * @param blipId
+     *      The id of the blip.
+     * @param total
+     *      The cumulative progress of the blip's top level trackers.
+     * @param numNodes
+     *      The number of top level trackers in the blip.
+     * @param summaryOffsets
+     *      The element offsets of the summary trackers in the blip.
+     * @return
+     *      The progress of the whole wavelet (as a percentage),
+     *      or {@link #UNKNOWN_PROGRESS} if the store can't be got at.
+     */
+    public int update(
+            final String waveletKey,
+            final String blipId,
+            final int total,
+            final int numNodes,
+            final int[] summaryOffsets
+    )
+    {
+        final Contribution contribution = ((numNodes == 0) && (summaryOffsets.length == 0)) ? null :
+                new Contribution(total, numNodes, summaryOffsets);
+
+        if (store != null) {
+            // The store does the swap, so that two instances updating the same wavelet don't lose either change.
+            final Map<String, Contribution> contributions = store.updateWavelet(waveletKey, blipId, contribution);
+            synchronized (this) {
+                if (contributions == null) {
+                    wavelets.remove(waveletKey);
+                    return UNKNOWN_PROGRESS;
+                }
+                return replace(waveletKey, contributions).getProgress();
+            }
+        }
+
+        synchronized (this) {
+            WaveletTotals totals = wavelets.get(waveletKey);
+            if (totals == null) {
+                totals = new WaveletTotals();
+                wavelets.put(waveletKey, totals);
+            }
+            totals.put(blipId, contribution);
+            if (totals.contributions.isEmpty()) {
+                wavelets.remove(waveletKey);
+            }
+            return totals.getProgress();
+        }
+    }
+
+    /**
+     * @param waveletKey
+     *      Identifies the wavelet.
+     * @param blipId
+     *      The id of the blip.
+     * @return
+     *      Whether the blip has a contribution to the wavelet
+     *      (the store is only asked if the wavelet isn't cached here,
+     *      and what it says is cached even if no blip has a contribution).
+     */
+    public boolean contains(
+            final String waveletKey,
+            final String blipId
+    )
+    {
+        synchronized (this) {
+            final WaveletTotals totals = wavelets.get(waveletKey);
+            if ((totals != null) || (store == null)) {
+                return (totals != null) && totals.contributions.containsKey(blipId);
+            }
+        }
+
+        final Map<String, Contribution> contributions = store.getWavelet(waveletKey);
+        if (contributions == null) {
+            return false;
+        }
+        synchronized (this) {
+            if (!wavelets.containsKey(waveletKey)) {
+                wavelets.put(waveletKey, totalsOf(contributions));
+            }
+        }
+        return contributions.containsKey(blipId);
+    }
+
+    /**
+     * @param waveletKey
+     *      Identifies the wavelet.
+     * @return
+     *      The element offsets of the summary trackers in the wavelet, by blip id.
+     */
+    public synchronized Map<String, int[]> getSummaries(
+            final String waveletKey
+    )
+    {
+        final Map<String, int[]> result = new HashMap<String, int[]>();
+        final WaveletTotals totals = wavelets.get(waveletKey);
+        if (totals != null) {
+            for (final Map.Entry<String, Contribution> entry : totals.contributions.entrySet()) {
+                if (entry.getValue().summaryOffsets.length > 0) {
+                    result.put(entry.getKey(), entry.getValue().summaryOffsets);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Replace the cached totals for a wavelet with the contributions that the store gave back.
+     *
+     * @param waveletKey
+     *      Identifies the wavelet.
+     * @param contributions
+     *      The contribution of each blip in the wavelet, by blip id.
+     * @return
+     *      The new totals.
+     */
+    private WaveletTotals replace(
+            final String waveletKey,
+            final Map<String, Contribution> contributions
+    )
+    {
+        final WaveletTotals result = totalsOf(contributions);
+        if (result.contributions.isEmpty()) {
+            wavelets.remove(waveletKey);
+        }
+        else {
+            wavelets.put(waveletKey, result);
+        }
+        return result;
+    }
+
+    /**
+     * @param contributions
+     *      The contribution of each blip in a wavelet, by blip id.
+     * @return
+     *      The wavelet's totals.
+     */
+    private static WaveletTotals totalsOf(
+            final Map<String, Contribution> contributions
+    )
+    {
+        final WaveletTotals result = new WaveletTotals();
+        for (final Map.Entry<String, Contribution> entry : contributions.entrySet()) {
+            result.put(entry.getKey(), entry.getValue());
+        }
+        return result;
+    }
+
+    /**
+     * Write the contributions of the blips in a wavelet in a compact binary format.
+     *
+     * @param contributions
+     *      The contribution of each blip, by blip id.
+     * @param out
+     *      Where to write the contributions to.
+     * @throws IOException
+     *      If the contributions can't be written.
+     */
+    static void writeTo(
+            final Map<String, Contribution> contributions,
+            final DataOutput out
+    )
+            throws IOException
+    {
+        out.writeInt(MAGIC);
+        out.writeByte(FORMAT);
+        out.writeInt(contributions.size());
+        for (final Map.Entry<String, Contribution> entry : contributions.entrySet()) {
+            final Contribution contribution = entry.getValue();
+            out.writeUTF(entry.getKey());
+            out.writeInt(contribution.total);
+            out.writeInt(contribution.numNodes);
+            out.writeInt(contribution.summaryOffsets.length);
+            for (final int offset : contribution.summaryOffsets) {
+                out.writeInt(offset);
+            }
+        }
+    }
+
+    /**
+     * Read the contributions written by {@link #writeTo(Map, DataOutput)}.
+     *
+     * @param in
+     *      Where to read the contributions from.
+     * @return
+     *      The contribution of each blip, by blip id.
+     * @throws IOException
+     *      If the contributions can't be read, or weren't written in the current format.
+     */
+    static Map<String, Contribution> readFrom(
+            final DataInput in
+    )
+            throws IOException
+    {
+        if ((in.readInt() != MAGIC) || (in.readUnsignedByte() != FORMAT)) {
+            throw new IOException("not wavelet contributions in format " + FORMAT);
+        }
+
+        final int size = in.readInt();
+        final Map<String, Contribution> result = new HashMap<String, Contribution>();
+        for (int idx = 0; idx < size; idx++) {
+            final String blipId = in.readUTF();
+            final int total = in.readInt();
+            final int numNodes = in.readInt();
+            final int[] summaryOffsets = new int[in.readInt()];
+            for (int summaryIdx = 0; summaryIdx < summaryOffsets.length; summaryIdx++) {
+                summaryOffsets[summaryIdx] = in.readInt();
+            }
+            result.put(blipId, new Contribution(total, numNodes, summaryOffsets));
+        }
+        return result;
+    }
+
+    /**
+     * What a single blip adds to the progress of its wavelet.
+     */
+    static final class Contribution
+    {
+
+        /**
+         * The cumulative progress of the blip's top level trackers.
+         */
+        final int total;
+
+        /**
+         * The number of top level trackers in the blip.
+         */
+        final int numNodes;
+
+        /**
+         * The element offsets of the summary trackers in the blip.
+         */
+        final int[] summaryOffsets;
+
+        /**
+         */
+        Contribution(
+                final int total,
+                final int numNodes,
+                final int[] summaryOffsets
+        )
+        {
+            super();
+
+            this.total = total;
+            this.numNodes = numNodes;
+            this.summaryOffsets = summaryOffsets;
+        }
+
+    }
+
+    /**
+     * The running totals for a single wavelet.
+     */
+    private static final class WaveletTotals
+    {
+
+        /**
+         * The contribution of each blip.
+         */
+        final Map<String, Contribution> contributions;
+
+        /**
+         * The cumulative progress of the top level trackers of all the blips.
+         */
+        long total;
+
+        /**
+         * The number of top level trackers in all the blips.
+         */
+        long numNodes;
+
+        /**
+         */
+        WaveletTotals()
+        {
+            super();
+
+            contributions = new HashMap<String, Contribution>();
+        }
+
+        /**
+         * Swap a blip's contribution in the running totals.
+         *
+         * @param blipId
+         *      The id of the blip.
+         * @param contribution
+         *      The blip's new contribution, or null if it has none.
+         */
+        void put(
+                final String blipId,
+                final Contribution contribution
+        )
+        {
+            final Contribution old = (contribution == null) ? contributions.remove(blipId) :
+                    contributions.put(blipId, contribution);
+            if (old != null) {
+                total -= old.total;
+                numNodes -= old.numNodes;
+            }
+            if (contribution != null) {
+                total += contribution.total;
+                numNodes += contribution.numNodes;
+            }
+        }
+
+        /**
+         * @return
+         *      The progress of the wavelet (as a percentage).
+         */
+        int getProgress()
+        {
+            return (numNodes == 0) ? 0 : (int)(total / numNodes);
+        }
+
+    }
+
+}
\ No newline at end of file
@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2010  David G Loone
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package au.id.loone.apps.tasklistbot.core;
+
+import au.id.loone.util.tracing.TraceUtil;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Rolls up the task trackers of a single document, fed to it as a stream of elements.
+ *
+ * <p>Each tracker takes the indent of the line that it is in.
+ *      Once the whole document has been fed in, {@link #rollup()} works out the state that each tracker should have,
+ *      and the trackers whose state has to change can be read back by index.</p>
+ *
+ * @author David G Loone
+ */
+public final class DocumentRollup
+        implements TrackerElementHandler
+{
+
+    @SuppressWarnings({"UnusedDeclaration"})
+    private static final Logger LOG = TraceUtil.getLogger(DocumentRollup.class);
+
+    /**
+     * Current value of the <b>rollup</b> property.
+     */
+    private final TrackerRollup rollup;
+
+    /**
+     * The <b>taskTrackerId</b> of each tracker.
+     */
+    private String[] trackerIds;
+
+    /**
+     * The element offset of each tracker.
+     */
+    private int[] offsets;
+
+    /**
+     * The indent of the current line.
+     */
+    private int indent;
+
+    /**
+     * Current value of the <b>numSummaries</b> property.
+     */
+    private int numSummaries;
+
+    /**
+     */
+    public DocumentRollup()
+    {
+        super();
+
+        rollup = new TrackerRollup();
+        trackerIds = new String[16];
+        offsets = new int[16];
+        indent = 0;
+        numSummaries = 0;
+    }
+
+    /**
+     */
+    public void line(
+            final int offset,
+            final String lineType,
+            final int indent
+    )
+    {
+        this.indent = indent;
+    }
+
+    /**
+     */
+    public void tracker(
+            final int offset,
+            final String trackerId,
+            final int progress,
+            final boolean readonly
+    )
+    {
+        final int idx = rollup.getSize();
+        if (idx == offsets.length) {
+            final String[] newTrackerIds = new String[idx * 2];
+            final int[] newOffsets = new int[idx * 2];
+            System.arraycopy(trackerIds, 0, newTrackerIds, 0, idx);
+            System.arraycopy(offsets, 0, newOffsets, 0, idx);
+            trackerIds = newTrackerIds;
+            offsets = newOffsets;
+        }
+
+        rollup.add(indent, progress, readonly);
+        trackerIds[idx] = trackerId;
+        offsets[idx] = offset;
+    }
+
+    /**
+     */
+    public void summary(
+            final int offset
+    )
+    {
+        numSummaries++;
+    }
+
+    /**
+     * Work out the state that every tracker should have.
+     *
+     * @return
+     *      The progress level of the whole document (as a percentage), or zero if there are no trackers.
+     */
+    public int rollup()
+    {
+        return rollup.rollup();
+    }
+
+    /**
+     * @return
+     *      The number of trackers whose state has to change (valid after {@link #rollup()}).
+     */
+    public int getNumChanges()
+    {
+        int result = 0;
+        for (int idx = 0; idx < rollup.getSize(); idx++) {
+            if (rollup.isChanged(idx)) {
+                result++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @param idx
+     *      The index of the tracker (in document order).
+     * @return
+     *      The <b>taskTrackerId</b> of the tracker.
+     */
+    public String getTrackerId(
+            final int idx
+    )
+    {
+        return trackerIds[idx];
+    }
+
+    /**
+     * @param idx
+     *      The index of the tracker (in document order).
+     * @return
+     *      The element offset of the tracker.
+     */
+    public int getOffset(
+            final int idx
+    )
+    {
+        return offsets[idx];
+    }
+
+    /**
+     * Getter method for the <b>rollup</b> property.
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public TrackerRollup getRollup() {return rollup;}
+
+    /**
+     * Getter method for the <b>numSummaries</b> property.
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public int getNumSummaries() {return numSummaries;}
+
+}
\ No newline at end of file
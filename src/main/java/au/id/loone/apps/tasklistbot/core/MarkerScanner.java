@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2010  David G Loone
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package au.id.loone.apps.tasklistbot.core;
+
+import au.id.loone.util.tracing.TraceUtil;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Finds the markers that are to be converted to task trackers.
+ *
+ * <p>A marker is a special character sequence at the beginning of an "li" line:
+ *      {@link #MARKER} for an ordinary tracker,
+ *      or {@link #SUMMARY_MARKER} for a tracker that shows the progress of the whole wavelet.
+ *      All the markers of a kind are found in a single scan of one snapshot of the content.
+ *      Where the lines are is looked up through a {@link ListItems},
+ *      so the scanner doesn't care how the document is represented.</p>
+ *
+ * @author David G Loone
+ */
+public final class MarkerScanner
+{
+
+    @SuppressWarnings({"UnusedDeclaration"})
+    private static final Logger LOG = TraceUtil.getLogger(MarkerScanner.class);
+
+    /**
+     * The character sequence that gets converted to a task tracker.
+     */
+    public static final String MARKER = "[[]]";
+
+    /**
+     * The character sequence that gets converted to a summary tracker.
+     */
+    public static final String SUMMARY_MARKER = "[[*]]";
+
+    /**
+     */
+    private MarkerScanner()
+    {
+        super();
+    }
+
+    /**
+     * Find all the markers of a kind in (part of) a document.
+     *
+     * @param content
+     *      The content of the document.
+     * @param listItems
+     *      Where the "li" lines start.
+     * @param start
+     *      The offset to start looking from.
+     * @param end
+     *      The offset to stop looking at. Markers must finish at or before this offset.
+     * @param marker
+     *      The marker to look for.
+     * @return
+     *      The offsets of the markers, in increasing order.
+     */
+    public static int[] find(
+            final String content,
+            final ListItems listItems,
+            final int start,
+            final int end,
+            final String marker
+    )
+    {
+        int[] result = new int[4];
+        int numMarkers = 0;
+
+        final int limit = Math.min(end, content.length()) - marker.length();
+        int idx = content.indexOf(marker, Math.max(start, 0));
+        while ((idx != -1) && (idx <= limit)) {
+            // The string must be at the start of a line of type "li", ie right after the line's element.
+            if (listItems.isListItem(idx - 1)) {
+                if (numMarkers == result.length) {
+                    final int[] newResult = new int[numMarkers * 2];
+                    System.arraycopy(result, 0, newResult, 0, numMarkers);
+                    result = newResult;
+                }
+                result[numMarkers++] = idx;
+            }
+
+            // Find the next instance of the target string.
+            idx = content.indexOf(marker, idx + marker.length());
+        }
+
+        final int[] markers = new int[numMarkers];
+        System.arraycopy(result, 0, markers, 0, numMarkers);
+        return markers;
+    }
+
+    /**
+     * Where the "li" lines of a document start.
+     */
+    public interface ListItems
+    {
+
+        /**
+         * @param offset
+         *      An offset in the document.
+         * @return
+         *      Whether an "li" line starts (<i>ie</i> has its line element) at the offset.
+         */
+        boolean isListItem(
+                int offset
+        );
+
+    }
+
+}
\ No newline at end of file
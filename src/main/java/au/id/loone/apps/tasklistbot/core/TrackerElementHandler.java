@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2010  David G Loone
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package au.id.loone.apps.tasklistbot.core;
+
+/**
+ * Receives the elements of a document that matter to task trackers, in document order.
+ *
+ * <p>This is the neutral form that a document is turned into
+ *      (whether it's a Wave blip or a line of an exported dump),
+ *      so that the rest of the core doesn't need to know where the document came from.</p>
+ *
+ * @author David G Loone
+ */
+public interface TrackerElementHandler
+{
+
+    /**
+     * The start of a line.
+     *
+     * @param offset
+     *      The offset of the line's element.
+     * @param lineType
+     *      The type of the line (<i>eg</i> "li"), or null if it doesn't have one.
+     * @param indent
+     *      The indent of the line.
+     */
+    void line(
+            int offset,
+            String lineType,
+            int indent
+    );
+
+    /**
+     * A task tracker.
+     *
+     * @param offset
+     *      The offset of the tracker's element.
+     * @param trackerId
+     *      The <b>taskTrackerId</b> of the tracker (may be null).
+     * @param progress
+     *      The progress of the tracker (as a percentage).
+     * @param readonly
+     *      Whether the tracker is readonly.
+     */
+    void tracker(
+            int offset,
+            String trackerId,
+            int progress,
+            boolean readonly
+    );
+
+    /**
+     * A summary tracker (<i>ie</i> one that shows the progress of the whole wavelet).
+     *
+     * @param offset
+     *      The offset of the summary tracker's element.
+     */
+    void summary(
+            int offset
+    );
+
+}
\ No newline at end of file
@@ -0,0 +1,660 @@
+/*
+ * Copyright (C) 2010  David G Loone
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package au.id.loone.apps.tasklistbot.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import au.id.loone.util.tracing.TraceUtil;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Rolls up the progress of a flattened tree of task trackers.
+ *
+ * <p>The trackers are added in document order as indent/progress/readonly triples.
+ *      A tracker's descendants are all the trackers that follow it up until the indent gets back to
+ *      (or below) its own indent.
+ *      The rollup is done in a single pass using an explicit stack of open trackers,
+ *      so it takes linear time and does not recurse no matter how deep the indenting gets.</p>
+ *
+ * <p>This knows nothing about where the trackers came from (<i>ie</i> Wave documents),
+ *      so it can be used anywhere.</p>
+ *
+ * <p>The results (the progress and readonly state that each tracker should have)
+ *      are exactly what the old recursive algorithm produced,
+ *      including its quirk that a tracker that is the only member of its list
+ *      (<i>ie</i> the only child of its parent, or the only tracker in the document)
+ *      is taken at face value and is not made writable.</p>
+ *
+ * @author David G Loone
+ */
+public final class TrackerRollup
+{
+
+    @SuppressWarnings({"UnusedDeclaration"})
+    private static final Logger LOG = TraceUtil.getLogger(TrackerRollup.class);
+
+    /**
+     * The number of trackers at which the rollup is done in parallel, or zero for never.
+     */
+    private static volatile int parallelThreshold = 0;
+
+    /**
+     * The indent of each tracker.
+     */
+    private int[] indents;
+
+    /**
+     * The current progress of each tracker.
+     */
+    private int[] progresses;
+
+    /**
+     * The current readonly state of each tracker.
+     */
+    private boolean[] readonlys;
+
+    /**
+     * The progress that each tracker should have (valid after {@link #rollup()}).
+     */
+    private int[] targetProgresses;
+
+    /**
+     * The readonly state that each tracker should have (valid after {@link #rollup()}).
+     */
+    private boolean[] targetReadonlys;
+
+    /**
+     * The parent of each tracker, or -1 for a top level tracker (valid after {@link #rollup()}).
+     */
+    private int[] parents;
+
+    /**
+     * The cumulative progress of the children of each tracker (valid after {@link #rollup()}).
+     */
+    private int[] totals;
+
+    /**
+     * The number of children of each tracker (valid after {@link #rollup()}).
+     */
+    private int[] numNodes;
+
+    /**
+     * The cumulative progress of the top level trackers.
+     */
+    private int topTotal;
+
+    /**
+     * The number of top level trackers.
+     */
+    private int topNumNodes;
+
+    /**
+     * Current value of the <b>maxDepth</b> property.
+     */
+    private int maxDepth;
+
+    /**
+     * Current value of the <b>size</b> property.
+     */
+    private int size;
+
+    /**
+     */
+    public TrackerRollup()
+    {
+        this(16);
+    }
+
+    /**
+     * @param capacity
+     *      The initial number of trackers to allow for.
+     */
+    public TrackerRollup(
+            final int capacity
+    )
+    {
+        super();
+
+        final int initialCapacity = Math.max(capacity, 1);
+        indents = new int[initialCapacity];
+        progresses = new int[initialCapacity];
+        readonlys = new boolean[initialCapacity];
+        size = 0;
+    }
+
+    /**
+     * Add the next tracker (in document order).
+     *
+     * @param indent
+     *      The indent of the line that the tracker is in.
+     * @param progress
+     *      The current progress of the tracker (as a percentage).
+     * @param readonly
+     *      The current readonly state of the tracker.
+     */
+    public void add(
+            final int indent,
+            final int progress,
+            final boolean readonly
+    )
+    {
+        if (size == indents.length) {
+            final int newCapacity = indents.length * 2;
+            final int[] newIndents = new int[newCapacity];
+            final int[] newProgresses = new int[newCapacity];
+            final boolean[] newReadonlys = new boolean[newCapacity];
+            System.arraycopy(indents, 0, newIndents, 0, size);
+            System.arraycopy(progresses, 0, newProgresses, 0, size);
+            System.arraycopy(readonlys, 0, newReadonlys, 0, size);
+            indents = newIndents;
+            progresses = newProgresses;
+            readonlys = newReadonlys;
+        }
+
+        indents[size] = indent;
+        progresses[size] = progress;
+        readonlys[size] = readonly;
+        size++;
+    }
+
+    /**
+     * Calculate the state that every tracker should have.
+     *
+     * <p>If there are at least as many trackers as the parallel threshold,
+     *      the rollup is done in parallel (see {@link #rollup(ExecutorService)}).</p>
+     *
+     * @return
+     *      The progress level of the whole list (as a percentage), or zero if there are no trackers.
+     */
+    public int rollup()
+    {
+        final int threshold = parallelThreshold;
+        return rollup(((threshold > 0) && (size >= threshold)) ? Pool.EXECUTOR : null);
+    }
+
+    /**
+     * Calculate the state that every tracker should have.
+     *
+     * <p>The subtrees under the top level trackers have nothing to do with each other,
+     *      so with an executor the trackers are split at top level boundaries into a chunk per thread or so,
+     *      each chunk is rolled up as a separate task,
+     *      and the top level totals are added up at the end.
+     *      The results are exactly the same as rolling up the whole lot in one go.</p>
+     *
+     * @param executor
+     *      What to run the chunks on, or null to do the rollup in this thread.
+     * @return
+     *      The progress level of the whole list (as a percentage), or zero if there are no trackers.
+     */
+    public int rollup(
+            final ExecutorService executor
+    )
+    {
+        targetProgresses = new int[size];
+        targetReadonlys = new boolean[size];
+        System.arraycopy(progresses, 0, targetProgresses, 0, size);
+        System.arraycopy(readonlys, 0, targetReadonlys, 0, size);
+        parents = new int[size];
+        totals = new int[size];
+        numNodes = new int[size];
+        topTotal = 0;
+        topNumNodes = 0;
+        maxDepth = Math.min(size, 1);
+
+        final int result;
+
+        if (size == 0) {
+            result = 0;
+        }
+        else if (size == 1) {
+            // Single tracker, just return its progress.
+            parents[0] = -1;
+            topTotal = progresses[0];
+            topNumNodes = 1;
+            result = progresses[0];
+        }
+        else {
+            final int[] chunkTotals;
+            if (executor == null) {
+                chunkTotals = rollupRange(0, size);
+            }
+            else {
+                chunkTotals = rollupParallel(executor);
+            }
+            topTotal = chunkTotals[0];
+            topNumNodes = chunkTotals[1];
+            maxDepth = chunkTotals[2];
+
+            // Calculate the average to return.
+            result = topTotal / topNumNodes;
+        }
+
+        return result;
+    }
+
+    /**
+     * Roll up the trackers in chunks on an executor.
+     *
+     * @return
+     *      The cumulative progress of the top level trackers, the number of them, and the depth of the tree.
+     */
+    private int[] rollupParallel(
+            final ExecutorService executor
+    )
+    {
+        // Find the top level trackers. A tracker is top level if nothing before it is less indented.
+        final int targetChunkSize = Math.max(size / (Runtime.getRuntime().availableProcessors() * 4), 1);
+        final List<Future<int[]>> futures = new ArrayList<Future<int[]>>();
+        int chunkStart = 0;
+        int lastTop = 0;
+        for (int idx = 1; idx < size; idx++) {
+            if (indents[idx] <= indents[lastTop]) {
+                lastTop = idx;
+                if (idx - chunkStart >= targetChunkSize) {
+                    futures.add(executor.submit(new RollupTask(chunkStart, idx)));
+                    chunkStart = idx;
+                }
+            }
+        }
+
+        // Do the last chunk in this thread while the others run.
+        final int[] result = rollupRange(chunkStart, size);
+        try {
+            for (final Future<int[]> future : futures) {
+                final int[] chunkTotals = future.get();
+                result[0] += chunkTotals[0];
+                result[1] += chunkTotals[1];
+                result[2] = Math.max(result[2], chunkTotals[2]);
+            }
+        }
+        catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+        catch (final ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+        return result;
+    }
+
+    /**
+     * Roll up a range of trackers that starts with a top level tracker and ends just before one (or at the end).
+     * Different ranges touch different trackers, so they can be rolled up at the same time.
+     *
+     * @param start
+     *      The index of the first tracker in the range.
+     * @param end
+     *      The index just past the last tracker in the range.
+     * @return
+     *      The cumulative progress of the top level trackers in the range, the number of them,
+     *      and the depth of the tree in the range.
+     */
+    private int[] rollupRange(
+            final int start,
+            final int end
+    )
+    {
+        int rangeTopTotal = 0;
+        int rangeTopNumNodes = 0;
+        int rangeMaxDepth = 0;
+
+        // The stack of trackers whose descendants are still being read. The indents on the stack are
+        // strictly increasing, and the top of the stack is the parent of the next tracker.
+        final int[] stack = new int[end - start];
+        int depth = 0;
+
+        // The extra iteration at the end closes off whatever is left on the stack.
+        for (int idx = start; idx <= end; idx++) {
+            final int indent = (idx < end) ? indents[idx] : Integer.MIN_VALUE;
+
+            // Everything on the stack with an indent at least this one has now seen all its descendants.
+            while ((depth > 0) && (indents[stack[depth - 1]] >= indent)) {
+                depth--;
+                final int closed = stack[depth];
+                final int progress;
+                if (idx - closed == 1) {
+                    // Leaf node, so the progress level can be read from the tracker itself.
+                    progress = progresses[closed];
+
+                    // A leaf node should not be readonly. Leave it alone though if it is the only child
+                    // of its parent (ie the parent's descendants are exactly this tracker).
+                    final boolean onlyChild = (depth > 0) &&
+                            (stack[depth - 1] == closed - 1) &&
+                            (indents[closed - 1] >= indent);
+                    if (readonlys[closed] && !onlyChild) {
+                        targetReadonlys[closed] = false;
+                    }
+                }
+                else {
+                    // This tracker has children, so its progress is their average.
+                    progress = totals[closed] / numNodes[closed];
+                    targetProgresses[closed] = progress;
+                    targetReadonlys[closed] = true;
+                }
+
+                if (parents[closed] >= 0) {
+                    totals[parents[closed]] += progress;
+                    numNodes[parents[closed]]++;
+                }
+                else {
+                    rangeTopTotal += progress;
+                    rangeTopNumNodes++;
+                }
+            }
+
+            if (idx < end) {
+                parents[idx] = (depth > 0) ? stack[depth - 1] : -1;
+                stack[depth] = idx;
+                depth++;
+                rangeMaxDepth = Math.max(rangeMaxDepth, depth);
+            }
+        }
+
+        return new int[] {rangeTopTotal, rangeTopNumNodes, rangeMaxDepth};
+    }
+
+    /**
+     * Set the number of trackers at which the rollup is done in parallel.
+     *
+     * @param threshold
+     *      The number of trackers, or zero (or less) for never.
+     */
+    public static void setParallelThreshold(
+            final int threshold
+    )
+    {
+        parallelThreshold = threshold;
+    }
+
+    /**
+     * Change the progress of a single leaf tracker,
+     * and recalculate the state that its ancestors should have.
+     *
+     * <p>Only the path from the tracker to the top of the tree is visited,
+     *      and the walk stops as soon as an ancestor's progress does not change.
+     *      Must be called after {@link #rollup()}.</p>
+     *
+     * @param idx
+     *      The index of the leaf tracker (in document order).
+     * @param progress
+     *      The new progress of the tracker (as a percentage).
+     * @return
+     *      The progress level of the whole list (as a percentage).
+     */
+    public int update(
+            final int idx,
+            final int progress
+    )
+    {
+        int node = idx;
+        int oldProgress = progresses[node];
+        int newProgress = progress;
+        progresses[node] = progress;
+        targetProgresses[node] = progress;
+        while ((oldProgress != newProgress) && (parents[node] >= 0)) {
+            node = parents[node];
+            totals[node] += newProgress - oldProgress;
+            oldProgress = targetProgresses[node];
+            newProgress = totals[node] / numNodes[node];
+            targetProgresses[node] = newProgress;
+        }
+        if ((oldProgress != newProgress) && (parents[node] < 0)) {
+            topTotal += newProgress - oldProgress;
+        }
+
+        return (topNumNodes == 0) ? 0 : (topTotal / topNumNodes);
+    }
+
+    /**
+     * Record that a tracker now has the state that it should have
+     * (<i>ie</i> its new state has been written back to the document).
+     *
+     * @param idx
+     *      The index of the tracker (in document order).
+     */
+    public void commit(
+            final int idx
+    )
+    {
+        progresses[idx] = targetProgresses[idx];
+        readonlys[idx] = targetReadonlys[idx];
+    }
+
+    /**
+     * Record that a tracker still has the state that it has in the document
+     * (<i>ie</i> its new state wasn't written back after all, and is still to be written).
+     *
+     * @param idx
+     *      The index of the tracker (in document order).
+     * @param progress
+     *      The progress that the tracker has in the document.
+     * @param readonly
+     *      The readonly state that the tracker has in the document.
+     */
+    public void reset(
+            final int idx,
+            final int progress,
+            final boolean readonly
+    )
+    {
+        progresses[idx] = progress;
+        readonlys[idx] = readonly;
+    }
+
+    /**
+     * Getter method for the <b>topTotal</b> property.
+     * This is the cumulative progress of the top level trackers (valid after {@link #rollup()}).
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public int getTopTotal() {return topTotal;}
+
+    /**
+     * Getter method for the <b>topNumNodes</b> property.
+     * This is the number of top level trackers (valid after {@link #rollup()}).
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public int getTopNumNodes() {return topNumNodes;}
+
+    /**
+     * Getter method for the <b>maxDepth</b> property.
+     * This is the number of levels in the tree (valid after {@link #rollup()}).
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public int getMaxDepth() {return maxDepth;}
+
+    /**
+     * Getter method for the <b>size</b> property.
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public int getSize() {return size;}
+
+    /**
+     * @param idx
+     *      The index of the tracker (in document order).
+     * @return
+     *      The indent of the tracker.
+     */
+    public int getIndent(
+            final int idx
+    )
+    {
+        return indents[idx];
+    }
+
+    /**
+     * @param idx
+     *      The index of the tracker (in document order).
+     * @return
+     *      The index of the tracker's parent, or -1 if it is a top level tracker.
+     */
+    public int getParent(
+            final int idx
+    )
+    {
+        return parents[idx];
+    }
+
+    /**
+     * @param idx
+     *      The index of the tracker (in document order).
+     * @return
+     *      Whether the tracker has any children.
+     */
+    public boolean hasChildren(
+            final int idx
+    )
+    {
+        return numNodes[idx] > 0;
+    }
+
+    /**
+     * @param idx
+     *      The index of the tracker (in document order).
+     * @return
+     *      The current progress of the tracker.
+     */
+    public int getProgress(
+            final int idx
+    )
+    {
+        return progresses[idx];
+    }
+
+    /**
+     * @param idx
+     *      The index of the tracker (in document order).
+     * @return
+     *      The current readonly state of the tracker.
+     */
+    public boolean getReadonly(
+            final int idx
+    )
+    {
+        return readonlys[idx];
+    }
+
+    /**
+     * @param idx
+     *      The index of the tracker (in document order).
+     * @return
+     *      The progress that the tracker should have.
+     */
+    public int getTargetProgress(
+            final int idx
+    )
+    {
+        return targetProgresses[idx];
+    }
+
+    /**
+     * @param idx
+     *      The index of the tracker (in document order).
+     * @return
+     *      The readonly state that the tracker should have.
+     */
+    public boolean getTargetReadonly(
+            final int idx
+    )
+    {
+        return targetReadonlys[idx];
+    }
+
+    /**
+     * @param idx
+     *      The index of the tracker (in document order).
+     * @return
+     *      Whether the state of the tracker has to change.
+     */
+    public boolean isChanged(
+            final int idx
+    )
+    {
+        return (targetProgresses[idx] != progresses[idx]) ||
+                (targetReadonlys[idx] != readonlys[idx]);
+    }
+
+    /**
+     * Rolls up a range of trackers.
+     */
+    private final class RollupTask
+            implements Callable<int[]>
+    {
+
+        /**
+         * The index of the first tracker in the range.
+         */
+        private final int start;
+
+        /**
+         * The index just past the last tracker in the range.
+         */
+        private final int end;
+
+        /**
+         */
+        RollupTask(
+                final int start,
+                final int end
+        )
+        {
+            super();
+
+            this.start = start;
+            this.end = end;
+        }
+
+        /**
+         */
+        public int[] call()
+        {
+            return rollupRange(start, end);
+        }
+
+    }
+
+    /**
+     * Holds the threads for parallel rollups, so that they aren't started unless they are needed.
+     */
+    private static final class Pool
+    {
+
+        /**
+         * The threads (one per processor).
+         */
+        static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(
+                Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+                    public Thread newThread(
+                            final Runnable r
+                    )
+                    {
+                        final Thread result = new Thread(r, "TrackerRollup");
+                        result.setDaemon(true);
+                        return result;
+                    }
+                });
+
+    }
+
+}
\ No newline at end of file
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2010  David G Loone
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package au.id.loone.apps.tasklistbot.metrics;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A count that only goes up.
+ *
+ * @author David G Loone
+ */
+public final class Counter
+        extends Metric
+{
+
+    /**
+     * The count.
+     */
+    private final AtomicLong count;
+
+    /**
+     * @see Metric#Metric(String, String, String)
+     */
+    Counter(
+            final String name,
+            final String labels,
+            final String help
+    )
+    {
+        super(name, labels, help);
+
+        count = new AtomicLong();
+    }
+
+    /**
+     * Add one to the count.
+     */
+    public void inc()
+    {
+        count.incrementAndGet();
+    }
+
+    /**
+     * @param amount
+     *      How much to add to the count.
+     */
+    public void add(
+            final long amount
+    )
+    {
+        count.addAndGet(amount);
+    }
+
+    /**
+     * @return
+     *      The count.
+     */
+    public long get()
+    {
+        return count.get();
+    }
+
+    /**
+     */
+    @Override
+    public String getType()
+    {
+        return "counter";
+    }
+
+    /**
+     */
+    @Override
+    public void write(
+            final PrintWriter out
+    )
+    {
+        out.print(sampleName("", null));
+        out.print(' ');
+        out.println(count.get());
+    }
+
+}
\ No newline at end of file
@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2010  David G Loone
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package au.id.loone.apps.tasklistbot.metrics;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A distribution of values, counted into fixed buckets.
+ *
+ * <p>Observing a value takes no locks and allocates nothing.</p>
+ *
+ * @author David G Loone
+ */
+public final class Histogram
+        extends Metric
+{
+
+    /**
+     * Bucket upper bounds for latencies (in seconds).
+     */
+    public static final double[] LATENCY_BOUNDS = {
+            0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10
+    };
+
+    /**
+     * The (inclusive) upper bound of each bucket, in increasing order.
+     * There is an extra bucket at the end for everything else.
+     */
+    private final double[] bounds;
+
+    /**
+     * The number of observations in each bucket (not cumulative).
+     */
+    private final AtomicLongArray counts;
+
+    /**
+     * The sum of all the observations, as the raw bits of a double.
+     */
+    private final AtomicLong sum;
+
+    /**
+     * @param bounds
+     *      The (inclusive) upper bound of each bucket, in increasing order.
+     * @see Metric#Metric(String, String, String)
+     */
+    Histogram(
+            final String name,
+            final String labels,
+            final String help,
+            final double[] bounds
+    )
+    {
+        super(name, labels, help);
+
+        this.bounds = bounds.clone();
+        counts = new AtomicLongArray(bounds.length + 1);
+        sum = new AtomicLong();
+    }
+
+    /**
+     * @param value
+     *      The value to count.
+     */
+    public void observe(
+            final double value
+    )
+    {
+        int bucket = 0;
+        while ((bucket < bounds.length) && (value > bounds[bucket])) {
+            bucket++;
+        }
+        counts.incrementAndGet(bucket);
+
+        long oldBits = sum.get();
+        while (!sum.compareAndSet(oldBits, Double.doubleToLongBits(Double.longBitsToDouble(oldBits) + value))) {
+            oldBits = sum.get();
+        }
+    }
+
+    /**
+     * @param start
+     *      The value of {@link System#nanoTime()} at the start of whatever is being timed.
+     */
+    public void observeSince(
+            final long start
+    )
+    {
+        observe((System.nanoTime() - start) / 1e9);
+    }
+
+    /**
+     */
+    @Override
+    public String getType()
+    {
+        return "histogram";
+    }
+
+    /**
+     */
+    @Override
+    public void write(
+            final PrintWriter out
+    )
+    {
+        long cumulative = 0;
+        for (int bucket = 0; bucket <= bounds.length; bucket++) {
+            cumulative += counts.get(bucket);
+            out.print(sampleName("_bucket", "le=\"" +
+                    ((bucket < bounds.length) ? formatBound(bounds[bucket]) : "+Inf") + "\""));
+            out.print(' ');
+            out.println(cumulative);
+        }
+        out.print(sampleName("_sum", null));
+        out.print(' ');
+        out.println(Double.longBitsToDouble(sum.get()));
+        out.print(sampleName("_count", null));
+        out.print(' ');
+        out.println(cumulative);
+    }
+
+    /**
+     * @return
+     *      A bucket bound, without a pointless trailing ".0".
+     */
+    private static String formatBound(
+            final double bound
+    )
+    {
+        return (bound == Math.rint(bound)) ? String.valueOf((long)bound) : String.valueOf(bound);
+    }
+
+}
\ No newline at end of file
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2010  David G Loone
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package au.id.loone.apps.tasklistbot.metrics;
+
+import java.io.PrintWriter;
+
+/**
+ * Something that can be scraped.
+ *
+ * @author David G Loone
+ */
+public abstract class Metric
+{
+
+    /**
+     * Current value of the <b>name</b> property.
+     */
+    private final String name;
+
+    /**
+     * Current value of the <b>labels</b> property.
+     */
+    private final String labels;
+
+    /**
+     * Current value of the <b>help</b> property.
+     */
+    private final String help;
+
+    /**
+     * @param name
+     *      The name of the metric.
+     * @param labels
+     *      The labels of the metric, in scrape format without the braces (<i>eg</i> <code>event="x"</code>),
+     *      or the empty string.
+     * @param help
+     *      A description of the metric.
+     */
+    protected Metric(
+            final String name,
+            final String labels,
+            final String help
+    )
+    {
+        super();
+
+        this.name = name;
+        this.labels = (labels == null) ? "" : labels;
+        this.help = help;
+    }
+
+    /**
+     * @return
+     *      The scrape format type of the metric.
+     */
+    public abstract String getType();
+
+    /**
+     * Write out the samples of the metric in scrape format.
+     *
+     * @param out
+     *      Where to write the samples to.
+     */
+    public abstract void write(
+            final PrintWriter out
+    );
+
+    /**
+     * @param suffix
+     *      A suffix for the metric name (may be empty).
+     * @param extraLabel
+     *      Another label to add (may be null).
+     * @return
+     *      The sample name and labels, in scrape format.
+     */
+    protected String sampleName(
+            final String suffix,
+            final String extraLabel
+    )
+    {
+        final StringBuilder result = new StringBuilder(name).append(suffix);
+        if ((labels.length() > 0) || (extraLabel != null)) {
+            result.append('{').append(labels);
+            if (extraLabel != null) {
+                if (labels.length() > 0) {
+                    result.append(',');
+                }
+                result.append(extraLabel);
+            }
+            result.append('}');
+        }
+        return result.toString();
+    }
+
+    /**
+     * Getter method for the <b>name</b> property.
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public String getName() {return name;}
+
+    /**
+     * Getter method for the <b>labels</b> property.
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public String getLabels() {return labels;}
+
+    /**
+     * Getter method for the <b>help</b> property.
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public String getHelp() {return help;}
+
+}
\ No newline at end of file
@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2010  David G Loone
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package au.id.loone.apps.tasklistbot.metrics;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import au.id.loone.util.tracing.TraceUtil;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Holds all the metrics for the application,
+ * and writes them out in a plain text scrape format.
+ *
+ * <p>Metrics are meant to be created once (<i>eg</i> in static fields) and then updated directly,
+ *      so there is no lookup on the hot path.</p>
+ *
+ * @author David G Loone
+ */
+public final class MetricsRegistry
+{
+
+    @SuppressWarnings({"UnusedDeclaration"})
+    private static final Logger LOG = TraceUtil.getLogger(MetricsRegistry.class);
+
+    /**
+     * The registry that the application uses.
+     */
+    private static final MetricsRegistry DEFAULT = new MetricsRegistry();
+
+    /**
+     * The metrics, grouped by name (in name order), and in creation order within each name.
+     */
+    private final Map<String, List<Metric>> metrics;
+
+    /**
+     */
+    public MetricsRegistry()
+    {
+        super();
+
+        metrics = new TreeMap<String, List<Metric>>();
+    }
+
+    /**
+     * @return
+     *      The registry that the application uses.
+     */
+    public static MetricsRegistry getDefault()
+    {
+        return DEFAULT;
+    }
+
+    /**
+     * Create a counter.
+     *
+     * @param name
+     *      The name of the counter.
+     * @param labels
+     *      The labels of the counter (<i>eg</i> <code>event="x"</code>), or the empty string.
+     * @param help
+     *      A description of the counter.
+     * @return
+     *      The counter.
+     */
+    public Counter counter(
+            final String name,
+            final String labels,
+            final String help
+    )
+    {
+        return register(new Counter(name, labels, help));
+    }
+
+    /**
+     * Create a histogram.
+     *
+     * @param name
+     *      The name of the histogram.
+     * @param labels
+     *      The labels of the histogram (<i>eg</i> <code>event="x"</code>), or the empty string.
+     * @param help
+     *      A description of the histogram.
+     * @param bounds
+     *      The (inclusive) upper bound of each bucket, in increasing order.
+     * @return
+     *      The histogram.
+     */
+    public Histogram histogram(
+            final String name,
+            final String labels,
+            final String help,
+            final double[] bounds
+    )
+    {
+        return register(new Histogram(name, labels, help, bounds));
+    }
+
+    /**
+     * Write out all the metrics.
+     *
+     * @param out
+     *      Where to write the metrics to.
+     */
+    public void write(
+            final PrintWriter out
+    )
+    {
+        final List<List<Metric>> groups;
+        synchronized (metrics) {
+            groups = new ArrayList<List<Metric>>();
+            for (final List<Metric> group : metrics.values()) {
+                groups.add(new ArrayList<Metric>(group));
+            }
+        }
+
+        for (final List<Metric> group : groups) {
+            final Metric first = group.get(0);
+            out.println("# HELP " + first.getName() + " " + first.getHelp());
+            out.println("# TYPE " + first.getName() + " " + first.getType());
+            for (final Metric metric : group) {
+                metric.write(out);
+            }
+        }
+    }
+
+    /**
+     * @return
+     *      The metric.
+     */
+    private <M extends Metric> M register(
+            final M metric
+    )
+    {
+        synchronized (metrics) {
+            List<Metric> group = metrics.get(metric.getName());
+            if (group == null) {
+                group = new ArrayList<Metric>();
+                metrics.put(metric.getName(), group);
+            }
+            group.add(metric);
+        }
+        return metric;
+    }
+
+}
\ No newline at end of file
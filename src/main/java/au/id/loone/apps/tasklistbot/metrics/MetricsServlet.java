@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2010  David G Loone
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package au.id.loone.apps.tasklistbot.metrics;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import au.id.loone.util.tracing.TraceUtil;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Serves the application's metrics as plain text, for a scraper to pick up.
+ *
+ * <p>The metrics say a lot about the robot's traffic,
+ *      so <b>web.xml</b> only lets the application's admins get at them.</p>
+ *
+ * @author David G Loone
+ */
+public final class MetricsServlet
+        extends HttpServlet
+{
+
+    @SuppressWarnings({"UnusedDeclaration"})
+    private static final Logger LOG = TraceUtil.getLogger(MetricsServlet.class);
+
+    /**
+     */
+    public MetricsServlet()
+    {
+        super();
+    }
+
+    /**
+     */
+    @Override
+    protected void doGet(
+            final HttpServletRequest req,
+            final HttpServletResponse resp
+    )
+            throws IOException
+    {
+        resp.setContentType("text/plain; version=0.0.4");
+        resp.setCharacterEncoding("UTF-8");
+        resp.setHeader("Cache-Control", "no-cache");
+        final PrintWriter out = resp.getWriter();
+        MetricsRegistry.getDefault().write(out);
+        out.flush();
+    }
+
+}
\ No newline at end of file